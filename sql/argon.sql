@@ -60,6 +60,7 @@ CREATE TABLE `accounts` (
   `storageslots` TINYINT(3) UNSIGNED NOT NULL DEFAULT 4,
   `storagemesos` INT(11) NOT NULL DEFAULT 0,
   `gm` TINYINT(4) NOT NULL DEFAULT 0,
+  `savecount` INT(11) NOT NULL DEFAULT 0,
   PRIMARY KEY (`id`),
   KEY (`name`)
 ) ENGINE = InnoDB;
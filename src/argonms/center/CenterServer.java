@@ -109,7 +109,7 @@ public class CenterServer {
 			FileReader fr = new FileReader(System.getProperty("argonms.db.config.file", "db.properties"));
 			prop.load(fr);
 			fr.close();
-			DatabaseManager.setProps(prop, false, useNio);
+			DatabaseManager.setProps(prop, false);
 		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "Could not load database properties!", ex);
 			System.exit(3);
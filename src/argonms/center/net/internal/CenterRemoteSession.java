@@ -20,6 +20,7 @@ package argonms.center.net.internal;
 
 import argonms.center.CenterServer;
 import argonms.common.ServerType;
+import argonms.common.net.IdleMonitor;
 import argonms.common.net.Session;
 import argonms.common.net.UnorderedQueue;
 import argonms.common.net.internal.CenterRemoteOps;
@@ -66,13 +67,12 @@ public class CenterRemoteSession implements Session {
 	private final UnorderedQueue sendQueue;
 
 	private KeepAliveTask heartbeatTask;
-	private final Runnable idleTask = new Runnable() {
+	private final IdleMonitor idleMonitor = new IdleMonitor(new Runnable() {
 		@Override
 		public void run() {
 			startPingTask();
 		}
-	};
-	private ScheduledFuture<?> idleTaskFuture;
+	}, IDLE_TIME);
 
 	private MessageType nextMessageType;
 
@@ -91,7 +91,7 @@ public class CenterRemoteSession implements Session {
 		this.selectionKey = key;
 		this.interServerPwd = authKey;
 
-		idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
+		idleMonitor.activity();
 	}
 
 	public CenterRemoteInterface getModel() {
@@ -156,8 +156,7 @@ public class CenterRemoteSession implements Session {
 				LOG.log(Level.WARNING, "Error while closing " + getServerName() + " server (" + getAddress() + ")", ex);
 			}
 			stopPingTask();
-			//idleTaskFuture has to be non-null as long as the this pointer was not leaked in the constructor
-			idleTaskFuture.cancel(false);
+			idleMonitor.stop();
 
 			LOG.log(Level.FINE, "{0} server ({1}) disconnected: {2}", new Object[] { getServerName(), getAddress(), reason });
 			if (cri != null)
@@ -278,7 +277,7 @@ public class CenterRemoteSession implements Session {
 	 * was fully read, or the just received message if the body was fully read.
 	 */
 	/* package-private */ byte[] readMessage(int readBytes) {
-		idleTaskFuture.cancel(false);
+		idleMonitor.activity();
 		if (readBytes == -1) {
 			//connection closed
 			close("EOF received");
@@ -286,7 +285,6 @@ public class CenterRemoteSession implements Session {
 		}
 		if (readBuffer.remaining() != 0) { //buffer is still not full
 			//we limited buffer to the expected length of the next packet - continue reading
-			idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 			return null;
 		}
 		switch (nextMessageType) {
@@ -301,7 +299,6 @@ public class CenterRemoteSession implements Session {
 				}
 				readBuffer.limit(length);
 				nextMessageType = MessageType.BODY;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return EMPTY_ARRAY;
 			}
 			case BODY: {
@@ -311,7 +308,6 @@ public class CenterRemoteSession implements Session {
 				readBuffer.clear();
 				readBuffer.limit(HEADER_LENGTH);
 				nextMessageType = MessageType.HEADER;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return message;
 			}
 			default:
@@ -21,6 +21,7 @@ package argonms.common.character;
 import argonms.common.character.inventory.InventorySlot;
 import argonms.common.character.inventory.Pet;
 import argonms.common.util.Scheduler;
+import argonms.common.util.WriteBehindQueue;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -99,10 +100,68 @@ public abstract class LoggedInPlayer extends Player {
 	private final ReadWriteLock statLocks;
 	private final ReadWriteLock questLocks;
 	protected ItemExpireTask itemExpireTask;
+	private final Object saveLock;
+	private final WriteBehindQueue.Write backgroundSave;
+	private volatile boolean backgroundSavesEnabled;
 
 	protected LoggedInPlayer() {
 		statLocks = new ReentrantReadWriteLock();
 		questLocks = new ReentrantReadWriteLock();
+		saveLock = new Object();
+		backgroundSave = new WriteBehindQueue.Write() {
+			@Override
+			public boolean commit() {
+				return backgroundSave();
+			}
+		};
+	}
+
+	/**
+	 * Writes this character to the database in a single transaction.
+	 * @return true if the character was saved, false if the transaction was
+	 * rolled back.
+	 */
+	protected abstract boolean commitCharacter();
+
+	/**
+	 * Writes this character to the database. If the character is being
+	 * autosaved at the same time, waits for the autosave to finish first so
+	 * that two saves of the same character never overlap.
+	 * @return true if the character was saved, false if the transaction was
+	 * rolled back.
+	 */
+	public boolean saveCharacter() {
+		synchronized (saveLock) {
+			return commitCharacter();
+		}
+	}
+
+	/* package-private */ void setBackgroundSavesEnabled(boolean enabled) {
+		backgroundSavesEnabled = enabled;
+	}
+
+	/**
+	 * Saves this character if it has not left the server yet. Once a
+	 * character leaves the server, it must not be saved by anyone other than
+	 * the leaving code, since the next server may have already loaded it.
+	 * @return false if the character could not be saved.
+	 */
+	/* package-private */ boolean backgroundSave() {
+		synchronized (saveLock) {
+			if (!backgroundSavesEnabled)
+				return true;
+			return commitCharacter();
+		}
+	}
+
+	/**
+	 * Saves this character on one of the given queue's writer threads rather
+	 * than on the calling thread. Like autosaves, the save is dropped if the
+	 * character leaves the server before it is written.
+	 * @param queue
+	 */
+	protected void requestSave(WriteBehindQueue queue) {
+		queue.submit(this, backgroundSave);
 	}
 
 	public abstract ReadableBuddyList getBuddyList();
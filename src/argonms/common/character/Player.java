@@ -37,9 +37,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -190,6 +194,19 @@ public abstract class Player {
 		return inventories.get(type);
 	}
 
+	/**
+	 * Returns the amount of items in all of this player's inventories. Only
+	 * inventories that were loaded with this player are counted, e.g. storage
+	 * is not included.
+	 * @return
+	 */
+	public int getItemCount() {
+		int items = 0;
+		for (Inventory inv : inventories.values())
+			items += inv.getAll().size();
+		return items;
+	}
+
 	public byte getPrivilegeLevel() {
 		return gm;
 	}
@@ -335,8 +352,11 @@ public abstract class Player {
 					+ "VALUES (?,?,?,?)");
 			cps = con.prepareStatement("UPDATE `cashshoppurchases` "
 					+ "SET `inventoryitemid` = ? WHERE `uniqueid` = ?");
-			ps.setInt(1, characterId);
 			ps.setInt(2, accountId);
+			//insert every item in one batch, then match the generated keys to
+			//the items in the order that they were added to the batch so that
+			//the rows of the child tables can be batched too
+			List<InventorySlot> items = new ArrayList<InventorySlot>();
 			for (Entry<InventoryType, ? extends IInventory> ent : inventories.entrySet()) {
 				switch (ent.getKey()) {
 					case STORAGE:
@@ -358,96 +378,70 @@ public abstract class Player {
 						ps.setLong(6, item.getExpiration());
 						ps.setString(7, item.getOwner());
 						ps.setShort(8, item.getQuantity());
-						//TODO: refactor so we can use addBatch here for inventories
-						//(equip, ring, pet, mount) and for items. Run getGeneratedKeys()
-						//after executeBatch to get generated keys for each item
-						//in iteration order...
-
-						int inventoryKey = -1;
-						switch (item.getType()) {
-							case RING: {
-								Ring ring = (Ring) item;
-
-								ps.executeUpdate(); //need the generated keys, so no batch
-								rs = ps.getGeneratedKeys();
-								inventoryKey = rs.next() ? rs.getInt(1) : -1;
-								rs.close();
-
-								setEquipUpdateVariables(ring, inventoryKey, eps);
-								eps.addBatch();
-
-								rps.setInt(1, inventoryKey);
-								rps.setInt(2, ring.getPartnerCharId());
-								rps.setLong(3, ring.getPartnerRingId());
-								rps.addBatch();
-								break;
-							}
-							case EQUIP: {
-								ps.executeUpdate(); //need the generated keys, so no batch
-								rs = ps.getGeneratedKeys();
-								inventoryKey = rs.next() ? rs.getInt(1) : -1;
-								rs.close();
-
-								setEquipUpdateVariables((Equip) item, inventoryKey, eps);
-								eps.addBatch();
-								break;
-							}
-							case PET: {
-								Pet pet = (Pet) item;
-
-								ps.executeUpdate(); //need the generated keys, so no batch
-								rs = ps.getGeneratedKeys();
-								inventoryKey = rs.next() ? rs.getInt(1) : -1;
-								rs.close();
-
-								pps.setInt(1, inventoryKey);
-								pps.setByte(2, indexOf(pets, pet));
-								pps.setString(3, pet.getName());
-								pps.setByte(4, pet.getLevel());
-								pps.setShort(5, pet.getCloseness());
-								pps.setByte(6, pet.getFullness());
-								pps.addBatch();
-								break;
-							}
-							case MOUNT: {
-								TamingMob mount = (TamingMob) item;
-
-								ps.executeUpdate(); //need the generated keys, so no batch
-								rs = ps.getGeneratedKeys();
-								inventoryKey = rs.next() ? rs.getInt(1) : -1;
-								rs.close();
-
-								setEquipUpdateVariables(mount, inventoryKey, eps);
-								eps.addBatch();
-
-								mps.setInt(1, inventoryKey);
-								mps.setByte(2, mount.getMountLevel());
-								mps.setShort(3, mount.getExp());
-								mps.setByte(4, mount.getTiredness());
-								mps.addBatch();
-								break;
-							}
-							case ITEM:
-								if (item.getUniqueId() <= 0) {
-									ps.addBatch();
-								} else {
-									ps.executeUpdate(); //need the generated keys, so no batch
-									rs = ps.getGeneratedKeys();
-									inventoryKey = rs.next() ? rs.getInt(1) : -1;
-									rs.close();
-								}
-								break;
-						}
-
-						if (item.getUniqueId() > 0) {
-							cps.setInt(1, inventoryKey);
-							cps.setLong(2, item.getUniqueId());
-							cps.addBatch();
-						}
+						ps.addBatch();
+						items.add(item);
 					}
 				}
 			}
+			if (items.isEmpty())
+				return;
 			ps.executeBatch();
+			rs = ps.getGeneratedKeys();
+			for (InventorySlot item : items) {
+				if (!rs.next())
+					throw new SQLException("Only received some of the " + items.size() + " generated keys of inventory items for character " + characterId);
+				int inventoryKey = rs.getInt(1);
+				switch (item.getType()) {
+					case RING: {
+						Ring ring = (Ring) item;
+
+						setEquipUpdateVariables(ring, inventoryKey, eps);
+						eps.addBatch();
+
+						rps.setInt(1, inventoryKey);
+						rps.setInt(2, ring.getPartnerCharId());
+						rps.setLong(3, ring.getPartnerRingId());
+						rps.addBatch();
+						break;
+					}
+					case EQUIP: {
+						setEquipUpdateVariables((Equip) item, inventoryKey, eps);
+						eps.addBatch();
+						break;
+					}
+					case PET: {
+						Pet pet = (Pet) item;
+
+						pps.setInt(1, inventoryKey);
+						pps.setByte(2, indexOf(pets, pet));
+						pps.setString(3, pet.getName());
+						pps.setByte(4, pet.getLevel());
+						pps.setShort(5, pet.getCloseness());
+						pps.setByte(6, pet.getFullness());
+						pps.addBatch();
+						break;
+					}
+					case MOUNT: {
+						TamingMob mount = (TamingMob) item;
+
+						setEquipUpdateVariables(mount, inventoryKey, eps);
+						eps.addBatch();
+
+						mps.setInt(1, inventoryKey);
+						mps.setByte(2, mount.getMountLevel());
+						mps.setShort(3, mount.getExp());
+						mps.setByte(4, mount.getTiredness());
+						mps.addBatch();
+						break;
+					}
+				}
+
+				if (item.getUniqueId() > 0) {
+					cps.setInt(1, inventoryKey);
+					cps.setLong(2, item.getUniqueId());
+					cps.addBatch();
+				}
+			}
 			eps.executeBatch();
 			rps.executeBatch();
 			pps.executeBatch();
@@ -467,104 +461,136 @@ public abstract class Player {
 		commitInventory(getDataId(), getClient().getAccountId(), pets, con, inventories);
 	}
 
+	private static String keyList(Set<Integer> keys) {
+		StringBuilder sb = new StringBuilder();
+		for (Integer key : keys)
+			sb.append(key).append(',');
+		sb.setLength(sb.length() - 1);
+		return sb.toString();
+	}
+
+	/**
+	 * Creates the items in the given result set of inventoryitems rows and
+	 * puts them in the given inventories. Properties of the items that are
+	 * kept in other tables (equipment stats, rings, mounts, pets, and cash
+	 * shop unique ids) are loaded using one query per table for all items,
+	 * rather than one query per item.
+	 * @param pets
+	 * @param con
+	 * @param rs
+	 * @param inventories
+	 * @throws SQLException
+	 */
 	public static void loadInventory(Pet[] pets, Connection con, ResultSet rs, Map<InventoryType, ? extends IInventory> inventories) throws SQLException {
-		PreparedStatement ips = null;
+		Map<Integer, Equip> equips = new HashMap<Integer, Equip>();
+		Map<Integer, Ring> rings = new HashMap<Integer, Ring>();
+		Map<Integer, TamingMob> mounts = new HashMap<Integer, TamingMob>();
+		Map<Integer, Pet> petItems = new HashMap<Integer, Pet>();
+		Map<Integer, InventorySlot> cashItems = new HashMap<Integer, InventorySlot>();
+		while (rs.next()) {
+			InventorySlot item;
+			InventoryType inventoryType = InventoryType.valueOf(rs.getByte(4));
+			short position = rs.getShort(5);
+			int itemid = rs.getInt(6);
+			Integer inventoryKey = Integer.valueOf(rs.getInt(1));
+			if (InventoryTools.isEquip(itemid)) {
+				Equip e;
+				if (InventoryTools.isPartnerRing(itemid)) {
+					e = new Ring(itemid);
+					rings.put(inventoryKey, (Ring) e);
+				} else if (InventoryTools.isMount(itemid)) {
+					e = new TamingMob(itemid);
+					mounts.put(inventoryKey, (TamingMob) e);
+				} else {
+					e = new Equip(itemid);
+				}
+				equips.put(inventoryKey, e);
+				item = e;
+			} else {
+				if (InventoryTools.isPet(itemid)) {
+					Pet pet = new Pet(itemid);
+					petItems.put(inventoryKey, pet);
+					item = pet;
+				} else {
+					item = new Item(itemid);
+					item.setQuantity(rs.getShort(9));
+				}
+			}
+			if (InventoryTools.isCashItem(itemid))
+				cashItems.put(inventoryKey, item);
+			item.setExpiration(rs.getLong(7));
+			item.setOwner(rs.getString(8));
+			inventories.get(inventoryType).put(position, item);
+		}
+
+		//the key lists are different for every load, so don't let them take up
+		//space in the connection's prepared statement cache
+		Statement ips = null;
 		ResultSet irs = null;
 		try {
-			while (rs.next()) {
-				InventorySlot item;
-				InventoryType inventoryType = InventoryType.valueOf(rs.getByte(4));
-				short position = rs.getShort(5);
-				int itemid = rs.getInt(6);
-				int inventoryKey = rs.getInt(1);
-				if (InventoryTools.isEquip(itemid)) {
-					Equip e;
-					if (InventoryTools.isPartnerRing(itemid)) {
-						e = new Ring(itemid);
-						ips = con.prepareStatement("SELECT * FROM `inventoryrings` WHERE `inventoryitemid` = ?");
-						ips.setInt(1, inventoryKey);
-						irs = ips.executeQuery();
-						if (irs.next()) {
-							((Ring) e).setPartnerCharId(irs.getInt(3));
-							((Ring) e).setPartnerRingId(irs.getLong(4));
-						}
-						irs.close();
-						ips.close();
-					} else if (InventoryTools.isMount(itemid)) {
-						e = new TamingMob(itemid);
-						ips = con.prepareStatement("SELECT * FROM `inventorymounts` WHERE `inventoryitemid` = ?");
-						ips.setInt(1, inventoryKey);
-						irs = ips.executeQuery();
-						if (irs.next()) {
-							((TamingMob) e).setLevel(irs.getByte(3));
-							((TamingMob) e).setExp(irs.getShort(4));
-							((TamingMob) e).setTiredness(irs.getByte(5));
-						}
-						irs.close();
-						ips.close();
-					} else {
-						e = new Equip(itemid);
-					}
-					ips = con.prepareStatement("SELECT * FROM `inventoryequipment` WHERE `inventoryitemid` = ?");
-					ips.setInt(1, inventoryKey);
-					irs = ips.executeQuery();
-					if (irs.next()) {
-						e.setUpgradeSlots(irs.getByte(3));
-						e.setLevel(irs.getByte(4));
-						e.setStr(irs.getShort(5));
-						e.setDex(irs.getShort(6));
-						e.setInt(irs.getShort(7));
-						e.setLuk(irs.getShort(8));
-						e.setHp(irs.getShort(9));
-						e.setMp(irs.getShort(10));
-						e.setWatk(irs.getShort(11));
-						e.setMatk(irs.getShort(12));
-						e.setWdef(irs.getShort(13));
-						e.setMdef(irs.getShort(14));
-						e.setAcc(irs.getShort(15));
-						e.setAvoid(irs.getShort(16));
-						e.setHands(irs.getShort(17));
-						e.setSpeed(irs.getShort(18));
-						e.setJump(irs.getShort(19));
-					}
-					irs.close();
-					ips.close();
-					item = e;
-				} else {
-					if (InventoryTools.isPet(itemid)) {
-						Pet pet = new Pet(itemid);
-						ips = con.prepareStatement("SELECT * FROM `inventorypets` WHERE `inventoryitemid` = ?");
-						ips.setInt(1, inventoryKey);
-						irs = ips.executeQuery();
-						if (irs.next()) {
-							pet.setName(irs.getString(4));
-							pet.setLevel(irs.getByte(5));
-							pet.setCloseness(irs.getShort(6));
-							pet.setFullness(irs.getByte(7));
-							byte pos = irs.getByte(3);
-							if (pos >= 0 && pos < 3)
-								pets[pos] = pet;
-						}
-						irs.close();
-						ips.close();
-						item = pet;
-					} else {
-						item = new Item(itemid);
-						item.setQuantity(rs.getShort(9));
-					}
+			ips = con.createStatement();
+			if (!rings.isEmpty()) {
+				irs = ips.executeQuery("SELECT * FROM `inventoryrings` WHERE `inventoryitemid` IN (" + keyList(rings.keySet()) + ")");
+				while (irs.next()) {
+					Ring r = rings.get(Integer.valueOf(irs.getInt(2)));
+					r.setPartnerCharId(irs.getInt(3));
+					r.setPartnerRingId(irs.getLong(4));
 				}
-				if (InventoryTools.isCashItem(itemid)) {
-					ips = con.prepareStatement("SELECT `uniqueid` FROM `cashshoppurchases` WHERE `inventoryitemid` = ?");
-					ips.setInt(1, inventoryKey);
-					irs = ips.executeQuery();
-					if (irs.next())
-						item.setUniqueId(irs.getLong(1));
-					irs.close();
-					ips.close();
+				irs.close();
+			}
+			if (!mounts.isEmpty()) {
+				irs = ips.executeQuery("SELECT * FROM `inventorymounts` WHERE `inventoryitemid` IN (" + keyList(mounts.keySet()) + ")");
+				while (irs.next()) {
+					TamingMob m = mounts.get(Integer.valueOf(irs.getInt(2)));
+					m.setLevel(irs.getByte(3));
+					m.setExp(irs.getShort(4));
+					m.setTiredness(irs.getByte(5));
 				}
-				item.setExpiration(rs.getLong(7));
-				item.setOwner(rs.getString(8));
-				inventories.get(inventoryType).put(position, item);
+				irs.close();
+			}
+			if (!equips.isEmpty()) {
+				irs = ips.executeQuery("SELECT * FROM `inventoryequipment` WHERE `inventoryitemid` IN (" + keyList(equips.keySet()) + ")");
+				while (irs.next()) {
+					Equip e = equips.get(Integer.valueOf(irs.getInt(2)));
+					e.setUpgradeSlots(irs.getByte(3));
+					e.setLevel(irs.getByte(4));
+					e.setStr(irs.getShort(5));
+					e.setDex(irs.getShort(6));
+					e.setInt(irs.getShort(7));
+					e.setLuk(irs.getShort(8));
+					e.setHp(irs.getShort(9));
+					e.setMp(irs.getShort(10));
+					e.setWatk(irs.getShort(11));
+					e.setMatk(irs.getShort(12));
+					e.setWdef(irs.getShort(13));
+					e.setMdef(irs.getShort(14));
+					e.setAcc(irs.getShort(15));
+					e.setAvoid(irs.getShort(16));
+					e.setHands(irs.getShort(17));
+					e.setSpeed(irs.getShort(18));
+					e.setJump(irs.getShort(19));
+				}
+				irs.close();
+			}
+			if (!petItems.isEmpty()) {
+				irs = ips.executeQuery("SELECT * FROM `inventorypets` WHERE `inventoryitemid` IN (" + keyList(petItems.keySet()) + ")");
+				while (irs.next()) {
+					Pet pet = petItems.get(Integer.valueOf(irs.getInt(2)));
+					pet.setName(irs.getString(4));
+					pet.setLevel(irs.getByte(5));
+					pet.setCloseness(irs.getShort(6));
+					pet.setFullness(irs.getByte(7));
+					byte pos = irs.getByte(3);
+					if (pos >= 0 && pos < 3)
+						pets[pos] = pet;
+				}
+				irs.close();
+			}
+			if (!cashItems.isEmpty()) {
+				irs = ips.executeQuery("SELECT `inventoryitemid`,`uniqueid` FROM `cashshoppurchases` WHERE `inventoryitemid` IN (" + keyList(cashItems.keySet()) + ")");
+				while (irs.next())
+					cashItems.get(Integer.valueOf(irs.getInt(1))).setUniqueId(irs.getLong(2));
+				irs.close();
 			}
 		} finally {
 			DatabaseManager.cleanup(DatabaseType.STATE, irs, ips, null);
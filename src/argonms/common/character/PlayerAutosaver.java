@@ -0,0 +1,260 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.character;
+
+import argonms.common.util.Scheduler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically saves every character that is connected to this server, so
+ * that a crash does not lose everything that happened since each character
+ * logged in.
+ *
+ * The autosave interval is divided into a fixed number of slots, and each
+ * character is put in the slot with the fewest characters when it enters the
+ * server. Every tick, the characters of the next slot are saved, so the
+ * database sees a steady trickle of saves rather than everyone at once.
+ * Saves run on a small dedicated thread pool with a bounded queue, so packet
+ * workers and the scheduler are never blocked by the database. If the pool
+ * falls so far behind that its queue is full, or a character's previous
+ * autosave has not even started yet, the character is simply skipped until
+ * its slot comes around again.
+ */
+public class PlayerAutosaver {
+	private static final Logger LOG = Logger.getLogger(PlayerAutosaver.class.getName());
+
+	private static final long TICK_PERIOD = 1000;
+	private static final int QUEUED_SAVES_PER_THREAD = 256;
+
+	private final List<Map<LoggedInPlayer, Boolean>> slots;
+	private final Map<LoggedInPlayer, Integer> assignedSlots;
+	private final Map<LoggedInPlayer, Boolean> queued;
+	private final ThreadPoolExecutor savers;
+	private final ScheduledFuture<?> tick;
+	private int nextSlot;
+
+	private final AtomicLong saves, failures, skipped, totalLatency, maxLatency;
+
+	/**
+	 * Starts autosaving. The general Scheduler must already be enabled.
+	 * @param interval the amount of milliseconds between two saves of the
+	 * same character, or 0 to never autosave.
+	 * @param threads the amount of threads that characters can be saved on at
+	 * the same time.
+	 */
+	public PlayerAutosaver(long interval, int threads) {
+		saves = new AtomicLong(0);
+		failures = new AtomicLong(0);
+		skipped = new AtomicLong(0);
+		totalLatency = new AtomicLong(0);
+		maxLatency = new AtomicLong(0);
+		assignedSlots = new ConcurrentHashMap<LoggedInPlayer, Integer>();
+		queued = new ConcurrentHashMap<LoggedInPlayer, Boolean>();
+		if (interval <= 0) {
+			slots = null;
+			savers = null;
+			tick = null;
+			return;
+		}
+
+		int slotCount = (int) Math.max(interval / TICK_PERIOD, 1);
+		slots = new ArrayList<Map<LoggedInPlayer, Boolean>>(slotCount);
+		for (int i = 0; i < slotCount; i++)
+			slots.add(new ConcurrentHashMap<LoggedInPlayer, Boolean>());
+		savers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUED_SAVES_PER_THREAD), new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "autosave-thread-" + threadNumber.getAndIncrement());
+				if (t.isDaemon())
+					t.setDaemon(false);
+				if (t.getPriority() != Thread.NORM_PRIORITY)
+					t.setPriority(Thread.NORM_PRIORITY);
+				return t;
+			}
+		});
+		tick = Scheduler.getInstance().runRepeatedly(new Runnable() {
+			@Override
+			public void run() {
+				saveNextSlot();
+			}
+		}, TICK_PERIOD, interval / slotCount);
+	}
+
+	public boolean isEnabled() {
+		return slots != null;
+	}
+
+	/**
+	 * Starts autosaving the given character. Call this once the character
+	 * has fully entered the server.
+	 * @param p the character
+	 */
+	public void register(LoggedInPlayer p) {
+		p.setBackgroundSavesEnabled(true);
+		if (slots == null)
+			return;
+
+		int leastLoaded;
+		synchronized (this) {
+			leastLoaded = 0;
+			for (int i = 1; i < slots.size(); i++)
+				if (slots.get(i).size() < slots.get(leastLoaded).size())
+					leastLoaded = i;
+			slots.get(leastLoaded).put(p, Boolean.TRUE);
+		}
+		assignedSlots.put(p, Integer.valueOf(leastLoaded));
+	}
+
+	/**
+	 * Stops autosaving the given character. This must be called before the
+	 * final save of a character that leaves the server, and guarantees that
+	 * no autosave or queued save of the character will write to the database
+	 * after that final save.
+	 * @param p the character
+	 */
+	public void unregister(LoggedInPlayer p) {
+		p.setBackgroundSavesEnabled(false);
+		Integer slot = assignedSlots.remove(p);
+		if (slot != null)
+			slots.get(slot.intValue()).remove(p);
+	}
+
+	private void recordLatency(long nanos) {
+		totalLatency.addAndGet(nanos);
+		long max;
+		do {
+			max = maxLatency.get();
+		} while (nanos > max && !maxLatency.compareAndSet(max, nanos));
+	}
+
+	private void saveNextSlot() {
+		Map<LoggedInPlayer, Boolean> slot;
+		synchronized (this) {
+			slot = slots.get(nextSlot);
+			nextSlot = (nextSlot + 1) % slots.size();
+		}
+		for (final LoggedInPlayer p : slot.keySet()) {
+			if (queued.put(p, Boolean.TRUE) != null) {
+				//previous autosave of this character is still waiting
+				skipped.incrementAndGet();
+				continue;
+			}
+			try {
+				savers.execute(new Runnable() {
+					@Override
+					public void run() {
+						queued.remove(p);
+						long start = System.nanoTime();
+						boolean success;
+						try {
+							success = p.backgroundSave();
+						} catch (Throwable ex) {
+							LOG.log(Level.WARNING, "Uncaught exception while autosaving character " + p.getDataId(), ex);
+							success = false;
+						}
+						recordLatency(System.nanoTime() - start);
+						if (success)
+							saves.incrementAndGet();
+						else
+							failures.incrementAndGet();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				queued.remove(p);
+				skipped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Stops autosaving anyone, and waits for any autosaves that already
+	 * started to finish.
+	 */
+	public void shutdown() {
+		if (slots == null)
+			return;
+
+		tick.cancel(false);
+		savers.shutdown();
+		try {
+			savers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getRegisteredCount() {
+		return assignedSlots.size();
+	}
+
+	/**
+	 * Returns the amount of autosaves that are waiting for a thread.
+	 * @return
+	 */
+	public int getBacklog() {
+		return savers != null ? savers.getQueue().size() : 0;
+	}
+
+	public long getSaveCount() {
+		return saves.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the amount of times a character's autosave was skipped because
+	 * the autosave threads were falling behind.
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return the total time spent autosaving characters, in nanoseconds.
+	 */
+	public long getTotalLatency() {
+		return totalLatency.get();
+	}
+
+	/**
+	 * @return the time that the slowest autosave took, in nanoseconds.
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+}
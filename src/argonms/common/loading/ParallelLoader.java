@@ -0,0 +1,87 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.loading;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of a loadAll() implementation, e.g. one per data file, on a
+ * temporary thread pool. There are twice as many threads as processors, since
+ * most of the time of a task is spent waiting for its file to be read.
+ *
+ * The tasks themselves are responsible for synchronizing their writes to the
+ * loader's maps. Everything that the tasks did is visible to the caller once
+ * this returns.
+ */
+public final class ParallelLoader {
+	private static final int THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+	/**
+	 * Runs all of the given tasks, and waits for them to finish.
+	 * @param name used to name the threads
+	 * @param tasks
+	 * @throws IOException if any task threw an IOException. The remaining
+	 * tasks still run.
+	 */
+	public static void invokeAll(final String name, List<Callable<Void>> tasks) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-loader-thread-" + threadNumber.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			for (Future<Void> result : pool.invokeAll(tasks)) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new IOException("Could not load " + name + " data", cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + name + " data");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private ParallelLoader() {
+		//uninstantiable...
+	}
+}
@@ -20,13 +20,15 @@ package argonms.common.loading.item;
 
 import argonms.common.character.inventory.InventoryTools;
 import argonms.common.loading.KvjEffects;
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.loading.ParallelLoader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,32 +83,46 @@ public class KvjItemDataLoader extends ItemDataLoader {
 		File f = getFile(itemid);
 		try {
 			if (f.exists())
-				doWork(itemid, new LittleEndianByteArrayReader(f));
+				doWork(itemid, LittleEndianByteBufferReader.open(f));
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for item " + itemid, e);
 		}
 		loaded.add(Integer.valueOf(itemid));
 	}
 
+	private Callable<Void> loadTask(final int itemid, final File f) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				//read the file in parallel, but our maps are not thread-safe
+				LittleEndianReader reader = LittleEndianByteBufferReader.open(f);
+				synchronized (KvjItemDataLoader.this) {
+					doWork(itemid, reader);
+					loaded.add(Integer.valueOf(itemid));
+				}
+				return null;
+			}
+		};
+	}
+
 	@Override
 	public boolean loadAll() {
 		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
 			File root = new File(dataPath + "Item.wz");
 			for (String cat : root.list()) {
 				File catFolder = new File(root.getAbsolutePath() + File.separatorChar + cat);
 				if (cat.equals("Pet")) {
 					for (String kvj : catFolder.list()) {
 						int itemid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
-						doWork(itemid, new LittleEndianByteArrayReader(new File(catFolder.getAbsolutePath() + File.separatorChar + kvj)));
-						loaded.add(Integer.valueOf(itemid));
+						tasks.add(loadTask(itemid, new File(catFolder.getAbsolutePath() + File.separatorChar + kvj)));
 					}
 				} else {
 					for (String pref : catFolder.list()) {
 						File prefFolder = new File(catFolder.getAbsolutePath() + File.separatorChar + pref);
 						for (String kvj : prefFolder.list()) {
 							int itemid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".kvj")));
-							doWork(itemid, new LittleEndianByteArrayReader(new File(prefFolder.getAbsolutePath() + File.separatorChar + kvj)));
-							loaded.add(Integer.valueOf(itemid));
+							tasks.add(loadTask(itemid, new File(prefFolder.getAbsolutePath() + File.separatorChar + kvj)));
 						}
 					}
 				}
@@ -117,11 +133,11 @@ public class KvjItemDataLoader extends ItemDataLoader {
 				if (!cat.equals("Afterimage") && !cat.equals("Face.kvj") && !cat.equals("Hair.kvj")) {
 					for (String kvj : catFolder.list()) {
 						int itemid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
-						doWork(itemid, new LittleEndianByteArrayReader(new File(catFolder.getAbsolutePath() + File.separatorChar + kvj)));
-						loaded.add(Integer.valueOf(itemid));
+						tasks.add(loadTask(itemid, new File(catFolder.getAbsolutePath() + File.separatorChar + kvj)));
 					}
 				}
 			}
+			ParallelLoader.invokeAll("item", tasks);
 			return true;
 		} catch (IOException ex) {
 			LOG.log(Level.WARNING, "Could not load all item data from KVJ files.", ex);
@@ -18,7 +18,7 @@
 
 package argonms.common.loading.string;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -41,7 +41,7 @@ public class KvjStringDataLoader extends StringDataLoader {
 		Integer key;
 		String str;
 		try {
-			reader = new LittleEndianByteArrayReader(new File(dir + "Cash.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Cash.img.kvj"));
 			for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 				key = Integer.valueOf(id);
 				str = reader.readNullTerminatedString();
@@ -52,7 +52,7 @@ public class KvjStringDataLoader extends StringDataLoader {
 					itemMsgs.put(key, str);
 			}
 			for (String s : new String[] { "Eqp", "Consume", "Ins", "Etc", "Pet" }) {
-				reader = new LittleEndianByteArrayReader(new File(dir + s + ".img.kvj"));
+				reader = LittleEndianByteBufferReader.open(new File(dir + s + ".img.kvj"));
 				for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 					key = Integer.valueOf(id);
 					str = reader.readNullTerminatedString();
@@ -60,7 +60,7 @@ public class KvjStringDataLoader extends StringDataLoader {
 						itemNames.put(key, str);
 				}
 			}
-			reader = new LittleEndianByteArrayReader(new File(dir + "Map.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Map.img.kvj"));
 			for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 				key = Integer.valueOf(id);
 				str = reader.readNullTerminatedString();
@@ -70,21 +70,21 @@ public class KvjStringDataLoader extends StringDataLoader {
 				if (!str.isEmpty())
 					streetNames.put(key, str);
 			}
-			reader = new LittleEndianByteArrayReader(new File(dir + "Mob.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Mob.img.kvj"));
 			for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 				key = Integer.valueOf(id);
 				str = reader.readNullTerminatedString();
 				if (!str.isEmpty())
 					mobNames.put(key, str);
 			}
-			reader = new LittleEndianByteArrayReader(new File(dir + "Npc.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Npc.img.kvj"));
 			for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 				key = Integer.valueOf(id);
 				str = reader.readNullTerminatedString();
 				if (!str.isEmpty())
 					npcNames.put(key, str);
 			}
-			reader = new LittleEndianByteArrayReader(new File(dir + "Skill.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Skill.img.kvj"));
 			for (int id = reader.readInt(); id != -1; id = reader.readInt()) {
 				key = Integer.valueOf(id);
 				str = reader.readNullTerminatedString();
@@ -0,0 +1,130 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A process wide cache of direct ByteBuffers for outgoing messages, so that
+ * sending a message does not create any garbage once the pool is warmed up and
+ * so that SocketChannel.write() does not have to copy a heap buffer into a
+ * temporary direct buffer of its own.
+ *
+ * Buffers are grouped in power of two size classes. A buffer that is larger
+ * than the largest size class is allocated on the heap and is never pooled.
+ * Each size class retains at most a fixed amount of memory - buffers released
+ * to a full size class are simply left for the garbage collector.
+ *
+ * All methods of this class are thread safe.
+ */
+public final class BufferPool {
+	private static final int MIN_SIZE_SHIFT = 6; //64 bytes
+	//65535 byte message body (16-bit length) + 4 byte header
+	private static final int MAX_SIZE_SHIFT = 17; //128 kilobytes
+	private static final int MAX_RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+	private static final int MIN_RETAINED_BUFFERS_PER_CLASS = 16;
+
+	private static final SizeClass[] classes;
+
+	static {
+		classes = new SizeClass[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+		for (int i = 0; i < classes.length; i++) {
+			int size = 1 << (i + MIN_SIZE_SHIFT);
+			classes[i] = new SizeClass(size, Math.max(MAX_RETAINED_BYTES_PER_CLASS / size, MIN_RETAINED_BUFFERS_PER_CLASS));
+		}
+	}
+
+	private static int sizeClassIndex(int capacity) {
+		if (capacity <= (1 << MIN_SIZE_SHIFT))
+			return 0;
+		//round up to the next power of two
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_SHIFT;
+	}
+
+	/**
+	 * Retrieves a cleared buffer with at least <code>capacity</code> bytes of
+	 * space and its limit set to <code>capacity</code>.
+	 * @param capacity the minimum amount of bytes that must fit in the buffer
+	 * @return a buffer that should be passed to {@link #release(ByteBuffer)}
+	 * once it is no longer used.
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		int index = sizeClassIndex(capacity);
+		ByteBuffer buf;
+		if (index < classes.length)
+			buf = classes[index].take();
+		else
+			buf = ByteBuffer.allocate(capacity);
+		buf.limit(capacity);
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer retrieved from {@link #acquire(int)} to the pool. The
+	 * buffer must not be used by the caller after this method is called.
+	 * Buffers that were not created by this pool are ignored.
+	 * @param buf the buffer that is no longer in use
+	 */
+	public static void release(ByteBuffer buf) {
+		if (!buf.isDirect())
+			return;
+		int index = sizeClassIndex(buf.capacity());
+		if (index < classes.length && classes[index].size == buf.capacity())
+			classes[index].give(buf);
+	}
+
+	private static class SizeClass {
+		private final int size;
+		private final ByteBuffer[] free;
+		private int count;
+
+		public SizeClass(int size, int maxRetained) {
+			this.size = size;
+			this.free = new ByteBuffer[maxRetained];
+			this.count = 0;
+		}
+
+		public ByteBuffer take() {
+			ByteBuffer buf = null;
+			synchronized (this) {
+				if (count != 0) {
+					buf = free[--count];
+					free[count] = null;
+				}
+			}
+			if (buf == null)
+				return ByteBuffer.allocateDirect(size);
+			buf.clear();
+			buf.order(ByteOrder.BIG_ENDIAN);
+			return buf;
+		}
+
+		public void give(ByteBuffer buf) {
+			synchronized (this) {
+				if (count != free.length)
+					free[count++] = buf;
+			}
+		}
+	}
+
+	private BufferPool() {
+		//uninstantiable...
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.net;
+
+import argonms.common.util.Scheduler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a task once a Session has not received anything for a certain amount
+ * of time.
+ *
+ * Rather than cancelling and rescheduling a timer on every read, each read
+ * only records the time it happened. The single scheduled check compares
+ * that time to the deadline when it runs, and if the session was active in
+ * the meantime, schedules itself again for the remainder of the idle time.
+ * So there is at most one timer insertion per idle period, no matter how many
+ * messages are received.
+ *
+ * After the idle task has run, no more checks are made until the session
+ * receives something again, so the idle task does not run again until the
+ * session has been active and then gone idle again.
+ */
+public class IdleMonitor implements Runnable {
+	private final Runnable onIdle;
+	private final long idleTime;
+	private final AtomicBoolean armed;
+	private volatile long lastActivity;
+	private volatile ScheduledFuture<?> future;
+	private volatile boolean stopped;
+
+	/**
+	 *
+	 * @param onIdle the task to run when the session has been idle for
+	 * idleTime milliseconds
+	 * @param idleTime in milliseconds
+	 */
+	public IdleMonitor(Runnable onIdle, long idleTime) {
+		this.onIdle = onIdle;
+		this.idleTime = idleTime;
+		this.armed = new AtomicBoolean(false);
+	}
+
+	private void schedule(long delay) {
+		future = Scheduler.getWheelTimer().runAfterDelay(this, delay);
+		//stop() may have missed the future we just assigned
+		if (stopped)
+			future.cancel(false);
+	}
+
+	/**
+	 * Records that the session has received something just now, and starts
+	 * waiting for the session to go idle if we weren't already.
+	 */
+	public void activity() {
+		lastActivity = System.currentTimeMillis();
+		if (!armed.get() && armed.compareAndSet(false, true))
+			schedule(idleTime);
+	}
+
+	public void stop() {
+		stopped = true;
+		ScheduledFuture<?> f = future;
+		if (f != null)
+			f.cancel(false);
+	}
+
+	@Override
+	public void run() {
+		if (stopped)
+			return;
+		long now = System.currentTimeMillis();
+		long idle = now - lastActivity;
+		if (idle < idleTime) {
+			schedule(idleTime - idle);
+			return;
+		}
+		armed.set(false);
+		//activity() may have seen armed as still true before we reset it, in
+		//which case it is up to us to wait for the session to go idle again
+		if (lastActivity != now - idle && armed.compareAndSet(false, true)) {
+			schedule(idleTime);
+			return;
+		}
+		onIdle.run();
+	}
+}
@@ -20,30 +20,60 @@ package argonms.common.net;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * A queue with many producers and a single consumer (whoever wins
+ * shouldWrite()) that hands out elements strictly in the order of the numbers
+ * the producers received from getNextPush(), no matter in which order they
+ * actually inserted their elements.
+ *
+ * Elements are kept in a ring of slots that is indexed by order number, so
+ * wraparound of the int order numbers needs no special treatment as long as
+ * order numbers are only ever compared by subtracting them. A producer whose
+ * order number is more than a whole ring ahead of the consumer, which only
+ * happens when the remote end is not reading what we send it, puts its
+ * element in an overflow map instead.
+ *
  * All methods of this class are thread safe.
  * @author GoldenKevin
  */
 public class OrderedQueue {
-	private final SortedMap<Integer, ByteBuffer> queued;
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final AtomicReferenceArray<ByteBuffer> ring;
+	private final int mask;
+	private final Map<Integer, ByteBuffer> overflow;
+	private final AtomicInteger overflowed;
 	private final AtomicInteger nextPopCursor, nextPushCursor;
 	private final AtomicBoolean writeInProgress;
 
-	public OrderedQueue() {
-		queued = new ConcurrentSkipListMap<Integer, ByteBuffer>();
+	/**
+	 *
+	 * @param capacity the amount of elements that can be queued before
+	 * producers fall back to the slower overflow map. Rounded up to a power of
+	 * two.
+	 */
+	public OrderedQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		ring = new AtomicReferenceArray<ByteBuffer>(size);
+		mask = size - 1;
+		overflow = new ConcurrentHashMap<Integer, ByteBuffer>();
+		overflowed = new AtomicInteger(0);
 		nextPopCursor = new AtomicInteger(0);
 		nextPushCursor = new AtomicInteger(0);
 		writeInProgress = new AtomicBoolean(false);
 	}
 
+	public OrderedQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
 	/**
 	 *
 	 * @return a unique value that relates to the order of this call to this
@@ -59,7 +89,17 @@ public class OrderedQueue {
 	 * @param element the ByteBuffer to queue
 	 */
 	public void insert(int orderNo, ByteBuffer element) {
-		queued.put(Integer.valueOf(orderNo), element);
+		//the slot for orderNo is free once the element that is a whole ring
+		//ahead of it has been consumed. nextPopCursor only ever grows, so an
+		//outdated read can only make us overflow unnecessarily.
+		if (orderNo - nextPopCursor.get() <= mask) {
+			ring.set(orderNo & mask, element);
+		} else {
+			//count first so that the consumer never skips over the map while
+			//it holds an element
+			overflowed.incrementAndGet();
+			overflow.put(Integer.valueOf(orderNo), element);
+		}
 	}
 
 	public int currentPopBlock() {
@@ -79,7 +119,48 @@ public class OrderedQueue {
 	}
 
 	public boolean willBlock() {
-		return !queued.containsKey(Integer.valueOf(nextPopCursor.get()));
+		int orderNo = nextPopCursor.get();
+		return ring.get(orderNo & mask) == null
+				&& (overflowed.get() == 0 || !overflow.containsKey(Integer.valueOf(orderNo)));
+	}
+
+	/**
+	 * Removes the element with the given order number if it has been
+	 * inserted. May only be called by the consumer.
+	 * @param orderNo the order number of the element to take
+	 * @return the element, or null if it has not been inserted yet.
+	 */
+	private ByteBuffer take(int orderNo) {
+		int slot = orderNo & mask;
+		ByteBuffer element = ring.get(slot);
+		if (element != null) {
+			ring.set(slot, null);
+			return element;
+		}
+		if (overflowed.get() != 0) {
+			element = overflow.remove(Integer.valueOf(orderNo));
+			if (element != null)
+				overflowed.decrementAndGet();
+		}
+		return element;
+	}
+
+	/**
+	 * Moves the longest run of consecutive elements, starting at the current
+	 * pop cursor, into the given array. The pop cursor is not advanced - call
+	 * incrementPopCursor() once the elements have been consumed.
+	 * @param dest the array to fill
+	 * @return the amount of elements that were put at the start of dest.
+	 */
+	public int pop(ByteBuffer[] dest) {
+		//caching nextPopCursor is safe since we mutexed the mutating of it
+		//with the AtomicBoolean writeInProgress.
+		int firstToPop = nextPopCursor.get();
+		int count = 0;
+		ByteBuffer buf;
+		while (count < dest.length && (buf = take(firstToPop + count)) != null)
+			dest[count++] = buf;
+		return count;
 	}
 
 	/**
@@ -89,34 +170,10 @@ public class OrderedQueue {
 	 */
 	public List<ByteBuffer> pop() {
 		List<ByteBuffer> consecutive = new ArrayList<ByteBuffer>();
-		Iterator<Entry<Integer, ByteBuffer>> elements = queued.entrySet().iterator();
-		if (elements.hasNext()) {
-			Entry<Integer, ByteBuffer> lastPopped = elements.next();
-			int smallestKey = lastPopped.getKey().intValue();
-			//caching nextPopCursor is safe since we mutexed the mutating of it
-			//with the AtomicBoolean writeInProgress.
-			int firstToPop = nextPopCursor.get();
-			if (smallestKey == firstToPop) {
-				for (int i = firstToPop; i == lastPopped.getKey().intValue(); i++) {
-					consecutive.add(lastPopped.getValue());
-					elements.remove();
-					if (elements.hasNext())
-						lastPopped = elements.next();
-				}
-			} else if (smallestKey < firstToPop) {
-				//nextPushCursor overflowed while we still have keys from before
-				//overflow (nextPopCursor still hasn't overflowed), so the
-				//newer, negative, overflowed keys now come before older ones.
-				//do a less efficient iteration that preserves ordering of all
-				//non-overflowed and overflowed keys until all non-overflowed
-				//keys have been processed and removed.
-				ByteBuffer buf;
-				for (int i = firstToPop; (buf = queued.get(Integer.valueOf(i))) != null; i++) {
-					consecutive.add(buf);
-					queued.remove(Integer.valueOf(i));
-				}
-			}
-		}
+		int firstToPop = nextPopCursor.get();
+		ByteBuffer buf;
+		for (int i = firstToPop; (buf = take(i)) != null; i++)
+			consecutive.add(buf);
 		return consecutive;
 	}
 }
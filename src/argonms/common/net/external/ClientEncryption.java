@@ -20,6 +20,12 @@ package argonms.common.net.external;
 
 import argonms.common.GlobalConstants;
 import argonms.common.util.ByteTool;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.params.KeyParameter;
@@ -34,7 +40,8 @@ import org.bouncycastle.crypto.params.KeyParameter;
  * AES encryption, unlike the latter (the AES-256 restriction can be uplifted by
  * copying the JCE Unlimited Strength Jurisdiction Policy Files to the JRE's
  * lib/security directory, but it's an inconvenient process and a user may not
- * have access to the JRE's home directory).
+ * have access to the JRE's home directory). JREs that do allow 256-bit keys
+ * can use the JCE instead for AES-OFB though - see setUseJce(boolean).
  *
  * This class merges the MapleAESOFB and MapleCustomEncryption classes from
  * OdinMS derived sources, with some extensive modifications.
@@ -50,12 +57,21 @@ public final class ClientEncryption {
 		(byte) 0x33, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x52, (byte) 0x00, (byte) 0x00, (byte) 0x00
 	};
 
-	private static final ThreadLocal<BlockCipher> aes256 = new ThreadLocal<BlockCipher>() {
+	private static final Logger LOG = Logger.getLogger(ClientEncryption.class.getName());
+
+	private static volatile boolean useJce;
+
+	private static final ThreadLocal<AesKeystream> aes256 = new ThreadLocal<AesKeystream>() {
 		@Override
-		public BlockCipher get() {
-			AESEngine cipher = new AESEngine();
-			cipher.init(true, new KeyParameter(aesKey));
-			return cipher;
+		protected AesKeystream initialValue() {
+			if (useJce) {
+				try {
+					return new JceAesKeystream();
+				} catch (GeneralSecurityException e) {
+					LOG.log(Level.WARNING, "Could not initialize JCE AES, falling back to Bouncy Castle", e);
+				}
+			}
+			return new BouncyCastleAesKeystream();
 		}
 	};
 
@@ -94,33 +110,97 @@ public final class ClientEncryption {
 		(byte) 0x3D, (byte) 0xCA, (byte) 0xF4, (byte) 0x05, (byte) 0xC6, (byte) 0xE5, (byte) 0x08, (byte) 0x49
 	};
 
+	//lookup tables for Maple's custom encryption. The forward passes rotate by
+	//the low 3 bits of the remaining length, so their tables hold one row of
+	//256 entries for each of the 8 possible rotations.
+	private static final int[] ENCRYPT_FORWARD_IN = new int[256];
+	private static final byte[] ENCRYPT_FORWARD_OUT = new byte[8 * 256];
+	private static final int[] ENCRYPT_BACKWARD_IN = new int[256];
+	private static final byte[] ENCRYPT_BACKWARD_OUT = new byte[256];
+	private static final int[] DECRYPT_FORWARD_IN = new int[8 * 256];
+	private static final byte[] DECRYPT_FORWARD_OUT = new byte[256];
+	private static final int[] DECRYPT_BACKWARD_IN = new int[256];
+	private static final byte[] DECRYPT_BACKWARD_OUT = new byte[256];
+
+	static {
+		for (int x = 0; x < 256; x++) {
+			byte b = (byte) x;
+			ENCRYPT_FORWARD_IN[x] = ByteTool.rollLeft(b, 3) & 0xFF;
+			ENCRYPT_BACKWARD_IN[x] = ByteTool.rollLeft(b, 4) & 0xFF;
+			ENCRYPT_BACKWARD_OUT[x] = ByteTool.rollRight((byte) (b ^ 0x13), 3);
+			DECRYPT_FORWARD_OUT[x] = ByteTool.rollRight(b, 3);
+			DECRYPT_BACKWARD_IN[x] = (ByteTool.rollLeft(b, 3) ^ 0x13) & 0xFF;
+			DECRYPT_BACKWARD_OUT[x] = ByteTool.rollRight(b, 4);
+			for (int k = 0; k < 8; k++) {
+				ENCRYPT_FORWARD_OUT[k << 8 | x] = (byte) (~ByteTool.rollRight(b, k) + 0x48);
+				DECRYPT_FORWARD_IN[k << 8 | x] = ByteTool.rollLeft((byte) ~(b - 0x48), k) & 0xFF;
+			}
+		}
+	}
+
 	public static void aesOfbCrypt(byte[] data, byte[] iv) {
+		aesOfbCrypt(data, 0, data.length, iv);
+	}
+
+	/**
+	 * Applies Maple's segmented AES-OFB to <code>length</code> bytes of
+	 * <code>data</code> starting at <code>offset</code>, in place. Allows the
+	 * body of a packet to be encrypted after its header in the same array.
+	 *
+	 * @param data the array that holds the bytes to encrypt or decrypt.
+	 * @param offset the index of the first byte of the message body.
+	 * @param length the length of the message body.
+	 * @param iv the 4-byte IV of the message.
+	 */
+	public static void aesOfbCrypt(byte[] data, int offset, int length, byte[] iv) {
 		//Maple's OFB is done in piecemeal every 1460 bytes (I'm guessing it has
 		//to deal with maximum segment size). First piece is only 1456 bytes
 		//because the header, although not encrypted, adds 4 blocks to the first
 		//segment.
-		BlockCipher ciph = aes256.get();
+		AesKeystream ciph = aes256.get();
+		byte[] myIv = ciph.block;
 		//loops through each 1460 byte piece (with first piece only 1456 bytes)
 		for (
-				int remaining = data.length, offset = 0, pieceSize = Math.min(1456, remaining);
+				int remaining = length, pieceSize = Math.min(1456, remaining);
 				remaining > 0;
 				remaining -= pieceSize, offset += pieceSize, pieceSize = Math.min(1460, remaining)) {
-			byte[] myIv = ByteTool.multiplyBytes(iv, 4, 4);
+			//each piece starts over with the IV repeated 4 times
+			for (int i = 0; i < myIv.length; i += iv.length)
+				System.arraycopy(iv, 0, myIv, i, iv.length);
 
 			//OFB (which is just input block XOR'd with encrypted IV and key) each full block (block size is equal to IV size)
 			int fullBlocks = pieceSize / myIv.length;
 			for (int i = 0; i < fullBlocks; i++) {
-				ciph.processBlock(myIv, 0, myIv, 0); //encrypt IV with key and copy output back to IV
+				ciph.encryptBlock(); //encrypt IV with key and copy output back to IV
 				for (int j = 0; j < myIv.length; j++)
 					data[offset + i * myIv.length + j] ^= myIv[j]; //XOR input block with encrypted IV and key
 			}
 			//OFB the final, incomplete block - OFB doesn't need block size aligned input
-			ciph.processBlock(myIv, 0, myIv, 0);
-			for (int i = pieceSize % myIv.length - 1; i >= 0; i--)
-				data[offset + fullBlocks * myIv.length + i] ^= myIv[i];
+			int partial = pieceSize % myIv.length;
+			if (partial != 0) {
+				ciph.encryptBlock();
+				for (int i = partial - 1; i >= 0; i--)
+					data[offset + fullBlocks * myIv.length + i] ^= myIv[i];
+			}
 		}
 	}
 
+	/**
+	 * Chooses which AES implementation is used by threads that have not
+	 * called aesOfbCrypt yet. Should be set once at startup, before any client
+	 * connects.
+	 *
+	 * The JCE implementation is usually much faster because the JVM can use
+	 * the AES instructions of the processor for it. If the JCE refuses to use
+	 * a 256-bit key (see the class description), Bouncy Castle is used anyway.
+	 *
+	 * @param jce true to use the Java Cryptography Extension, false to use
+	 * the Bouncy Castle lightweight API.
+	 */
+	public static void setUseJce(boolean jce) {
+		useJce = jce;
+	}
+
 	/**
 	 * Generates a packet header for a packet that is <code>length</code>
 	 * long.
@@ -129,15 +209,29 @@ public final class ClientEncryption {
 	 * @return The header.
 	 */
 	public static byte[] makePacketHeader(int length, byte[] iv) {
+		byte[] header = new byte[4];
+		writePacketHeader(header, 0, length, iv);
+		return header;
+	}
+
+	/**
+	 * Writes the 4-byte header for a packet that is <code>length</code> long
+	 * into <code>dest</code>, starting at <code>offset</code>.
+	 *
+	 * @param dest the array to write the header to.
+	 * @param offset the index of the first byte of the header in dest.
+	 * @param length How long the packet that this header is for is.
+	 */
+	public static void writePacketHeader(byte[] dest, int offset, int length, byte[] iv) {
 		//note, this is only valid for server to client packet headers. for
 		//client to server, the MAPLE_VERSION must not be bitwise negated (~)
 		int v = (((iv[3] & 0xFF) << 8) | (iv[2] & 0xFF)) ^ ~GlobalConstants.MAPLE_VERSION; //version
 		int l = v ^ length; //length
 		//write v and l as two 16-bit little-endian integers
-		return new byte[] {
-			(byte) (v & 0xFF), (byte) ((v >>> 8) & 0xFF),
-			(byte) (l & 0xFF), (byte) ((l >>> 8) & 0xFF)
-		};
+		dest[offset] = (byte) (v & 0xFF);
+		dest[offset + 1] = (byte) ((v >>> 8) & 0xFF);
+		dest[offset + 2] = (byte) (l & 0xFF);
+		dest[offset + 3] = (byte) ((l >>> 8) & 0xFF);
 	}
 
 	/**
@@ -207,37 +301,43 @@ public final class ClientEncryption {
 	 * @return The encrypted data.
 	 */
 	public static byte[] mapleEncrypt(byte[] data) {
-		for (int j = 0; j < 6; j++) {
-			byte remember = 0;
-			byte dataLength = (byte) (data.length & 0xFF);
-			if (j % 2 == 0) {
-				for (int i = 0; i < data.length; i++) {
-					byte cur = data[i];
-					cur = ByteTool.rollLeft(cur, 3);
-					cur += dataLength;
-					cur ^= remember;
-					remember = cur;
-					cur = ByteTool.rollRight(cur, dataLength & 0xFF);
-					cur = ((byte) (~cur & 0xFF));
-					cur += 0x48;
-					dataLength--;
-					data[i] = cur;
-				}
-			} else {
-				for (int i = data.length - 1; i >= 0; i--) {
-					byte cur = data[i];
-					cur = ByteTool.rollLeft(cur, 4);
-					cur += dataLength;
-					cur ^= remember;
-					remember = cur;
-					cur ^= 0x13;
-					cur = ByteTool.rollRight(cur, 3);
-					dataLength--;
-					data[i] = cur;
-				}
+		mapleEncrypt(data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Encrypts <code>length</code> bytes of <code>data</code> starting at
+	 * <code>offset</code> with Maple's encryption routines, in place.
+	 *
+	 * @param data the array that holds the bytes to encrypt.
+	 * @param offset the index of the first byte of the message body.
+	 * @param length the length of the message body.
+	 */
+	public static void mapleEncrypt(byte[] data, int offset, int length) {
+		//each of the three forward passes and three backward passes has to see
+		//the output of the pass before it in full because of the chaining of
+		//remember, so the passes can't be fused, but all the bit rotations and
+		//constant operations are looked up from tables instead.
+		int end = offset + length;
+		for (int j = 0; j < 3; j++) {
+			int remember = 0;
+			int dataLength = length;
+			for (int i = offset; i < end; i++) {
+				int cur = ((ENCRYPT_FORWARD_IN[data[i] & 0xFF] + dataLength) & 0xFF) ^ remember;
+				remember = cur;
+				data[i] = ENCRYPT_FORWARD_OUT[(dataLength & 7) << 8 | cur];
+				dataLength--;
+			}
+
+			remember = 0;
+			dataLength = length;
+			for (int i = end - 1; i >= offset; i--) {
+				int cur = ((ENCRYPT_BACKWARD_IN[data[i] & 0xFF] + dataLength) & 0xFF) ^ remember;
+				remember = cur;
+				data[i] = ENCRYPT_BACKWARD_OUT[cur];
+				dataLength--;
 			}
 		}
-		return data;
 	}
 
 	/**
@@ -247,43 +347,75 @@ public final class ClientEncryption {
 	 * @return The decrypted data.
 	 */
 	public static byte[] mapleDecrypt(byte[] data) {
-		for (int j = 1; j <= 6; j++) {
-			byte remember = 0;
-			byte dataLength = (byte) (data.length & 0xFF);
-			byte nextRemember;
-
-			if (j % 2 == 0) {
-				for (int i = 0; i < data.length; i++) {
-					byte cur = data[i];
-					cur -= 0x48;
-					cur = ((byte) (~cur & 0xFF));
-					cur = ByteTool.rollLeft(cur, dataLength & 0xFF);
-					nextRemember = cur;
-					cur ^= remember;
-					remember = nextRemember;
-					cur -= dataLength;
-					cur = ByteTool.rollRight(cur, 3);
-					data[i] = cur;
-					dataLength--;
-				}
-			} else {
-				for (int i = data.length - 1; i >= 0; i--) {
-					byte cur = data[i];
-					cur = ByteTool.rollLeft(cur, 3);
-					cur ^= 0x13;
-					nextRemember = cur;
-					cur ^= remember;
-					remember = nextRemember;
-					cur -= dataLength;
-					cur = ByteTool.rollRight(cur, 4);
-					data[i] = cur;
-					dataLength--;
-				}
+		int length = data.length;
+		for (int j = 0; j < 3; j++) {
+			int remember = 0;
+			int dataLength = length;
+			for (int i = length - 1; i >= 0; i--) {
+				int next = DECRYPT_BACKWARD_IN[data[i] & 0xFF];
+				int cur = next ^ remember;
+				remember = next;
+				data[i] = DECRYPT_BACKWARD_OUT[(cur - dataLength) & 0xFF];
+				dataLength--;
+			}
+
+			remember = 0;
+			dataLength = length;
+			for (int i = 0; i < length; i++) {
+				int next = DECRYPT_FORWARD_IN[(dataLength & 7) << 8 | (data[i] & 0xFF)];
+				int cur = next ^ remember;
+				remember = next;
+				data[i] = DECRYPT_FORWARD_OUT[(cur - dataLength) & 0xFF];
+				dataLength--;
 			}
 		}
 		return data;
 	}
 
+	/**
+	 * Encrypts one 16-byte block with AES-256 under Maple's key, in place.
+	 * Each thread keeps its own instance so that the key schedule is only
+	 * computed once per thread and no arrays are allocated per message.
+	 */
+	private static abstract class AesKeystream {
+		protected final byte[] block = new byte[16];
+
+		public abstract void encryptBlock();
+	}
+
+	private static class BouncyCastleAesKeystream extends AesKeystream {
+		private final BlockCipher cipher;
+
+		public BouncyCastleAesKeystream() {
+			cipher = new AESEngine();
+			cipher.init(true, new KeyParameter(aesKey));
+		}
+
+		@Override
+		public void encryptBlock() {
+			cipher.processBlock(block, 0, block, 0);
+		}
+	}
+
+	private static class JceAesKeystream extends AesKeystream {
+		private final Cipher cipher;
+
+		public JceAesKeystream() throws GeneralSecurityException {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+		}
+
+		@Override
+		public void encryptBlock() {
+			try {
+				cipher.update(block, 0, block.length, block, 0);
+			} catch (ShortBufferException e) {
+				//block is always large enough
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
 	private ClientEncryption() {
 		//uninstantiable...
 	}
@@ -24,24 +24,34 @@ import argonms.common.util.input.LittleEndianByteArrayReader;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- *
+ * Accepts connections from clients on a single thread and spreads them over a
+ * configurable amount of I/O threads that each have their own Selector. An
+ * I/O thread performs all reads of the sessions assigned to it and flushes
+ * their send queues whenever their channels become writable again.
  * @author GoldenKevin
  */
 public class ClientListener<T extends RemoteClient> implements SessionCreator {
@@ -50,72 +60,74 @@ public class ClientListener<T extends RemoteClient> implements SessionCreator {
 	}
 
 	private static final Logger LOG = Logger.getLogger(ClientListener.class.getName());
-	private final ExecutorService bossThreadPool, workerThreadPool;
+	//a client that gets this far ahead of us is either flooding or lagging
+	//so badly that it won't recover
+	private static final int MAX_QUEUED_READS = 256;
+	private final ExecutorService bossThreadPool, ioThreadPool, workerThreadPool;
 	private final ClientPacketProcessor<T> pp;
 	private final ClientFactory<T> clientCtor;
+	private final List<IoReactor> reactors;
+	private int nextReactor;
 	private ServerSocketChannel listener;
 	private final AtomicBoolean closeEventsTriggered;
 
-	public ClientListener(ClientPacketProcessor<T> packetProcessor, ClientFactory<T> clientFactory) {
+	/**
+	 *
+	 * @param packetProcessor
+	 * @param clientFactory
+	 * @param ioThreads the amount of threads, each with their own Selector,
+	 * that accepted connections are distributed over.
+	 */
+	public ClientListener(ClientPacketProcessor<T> packetProcessor, ClientFactory<T> clientFactory, int ioThreads) {
 		closeEventsTriggered = new AtomicBoolean(false);
-		bossThreadPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
-			private final ThreadGroup group;
-
-			{
-				SecurityManager s = System.getSecurityManager();
-				group = (s != null)? s.getThreadGroup() :
-									 Thread.currentThread().getThreadGroup();
-			}
-
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread t = new Thread(group, r, "external-boss-thread", 0);
-				if (t.isDaemon())
-					t.setDaemon(false);
-				if (t.getPriority() != Thread.NORM_PRIORITY)
-					t.setPriority(Thread.NORM_PRIORITY);
-				return t;
-			}
-		});
-		workerThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
-			private final ThreadGroup group;
-			private final AtomicInteger threadNumber = new AtomicInteger(1);
-
-			{
-				SecurityManager s = System.getSecurityManager();
-				group = (s != null)? s.getThreadGroup() :
-									 Thread.currentThread().getThreadGroup();
-			}
-
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread t = new Thread(group, r, "external-worker-pool-thread-" + threadNumber.getAndIncrement(), 0);
-				if (t.isDaemon())
-					t.setDaemon(false);
-				if (t.getPriority() != Thread.NORM_PRIORITY)
-					t.setPriority(Thread.NORM_PRIORITY);
-				return t;
-			}
-		});
+		bossThreadPool = Executors.newSingleThreadExecutor(new ListenerThreadFactory("external-boss-thread", false));
+		ioThreadPool = Executors.newFixedThreadPool(ioThreads, new ListenerThreadFactory("external-io-thread-", true));
+		workerThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, new ListenerThreadFactory("external-worker-pool-thread-", true));
+		reactors = new ArrayList<IoReactor>(Collections.<IoReactor>nCopies(ioThreads, null));
 
 		pp = packetProcessor;
 		clientCtor = clientFactory;
 	}
 
+	public ClientListener(ClientPacketProcessor<T> packetProcessor, ClientFactory<T> clientFactory) {
+		this(packetProcessor, clientFactory, 1);
+	}
+
+	/**
+	 * Picks the I/O thread with the least sessions, starting the search from
+	 * the one after the last picked I/O thread so that ties are broken in a
+	 * round-robin manner.
+	 * This may only be called from the boss thread.
+	 */
+	private IoReactor nextReactor() {
+		IoReactor best = null;
+		for (int i = 0; i < reactors.size(); i++) {
+			IoReactor candidate = reactors.get((nextReactor + i) % reactors.size());
+			if (best == null || candidate.getSessionCount() < best.getSessionCount())
+				best = candidate;
+		}
+		nextReactor = (best.index + 1) % reactors.size();
+		return best;
+	}
+
 	public boolean bind(int port) {
 		try {
 			listener = ServerSocketChannel.open();
 			listener.socket().bind(new InetSocketAddress(port));
-			LOG.log(Level.INFO, "Listening on port {0}", port);
+			for (int i = 0; i < reactors.size(); i++) {
+				IoReactor reactor = new IoReactor(i, Selector.open());
+				reactors.set(i, reactor);
+				ioThreadPool.submit(reactor);
+			}
+			LOG.log(Level.INFO, "Listening on port {0} with {1} I/O thread(s)", new Object[] { port, reactors.size() });
 			listener.configureBlocking(false);
 			bossThreadPool.submit(new Runnable() {
 				@Override
 				public void run() {
 					try {
 						Selector selector = Selector.open();
-						SelectionKey acceptorKey = listener.register(selector, SelectionKey.OP_ACCEPT);
-						final Map<SelectionKey, ClientSession<T>> connected = new ConcurrentHashMap<SelectionKey, ClientSession<T>>();
-						while (selector.isOpen()) {
+						listener.register(selector, SelectionKey.OP_ACCEPT);
+						while (selector.isOpen() && listener.isOpen()) {
 							selector.select();
 							Set<SelectionKey> keys = selector.selectedKeys();
 
@@ -123,80 +135,26 @@ public class ClientListener<T extends RemoteClient> implements SessionCreator {
 								SelectionKey key = keyIter.next();
 								keyIter.remove();
 
-								if (key == acceptorKey) {
-									if (key.isValid() && key.isAcceptable()) {
-										try {
-											SocketChannel client = listener.accept();
-											client.socket().setTcpNoDelay(true);
-											client.configureBlocking(false);
-											LOG.log(Level.FINE, "Client connected from {0}", client.socket().getRemoteSocketAddress());
-											final SelectionKey acceptedKey = client.register(selector, SelectionKey.OP_READ);
-											T clientState = clientCtor.newInstance();
-											ClientSession<T> session = new ClientSession<T>(client, acceptedKey, clientState, new CloseListener<T>() {
-												@Override
-												public void closed(ClientSession<T> session) {
-													connected.remove(acceptedKey);
-												}
-											});
-											clientState.setSession(session);
-											connected.put(acceptedKey, session);
-											session.sendInitPacket();
-										} catch (IOException ex) {
-											close(ex.getMessage(), ex);
-										}
-									}
-								} else {
-									SocketChannel client = (SocketChannel) key.channel();
-									final ClientSession<T> session = connected.get(key);
+								if (key.isValid() && key.isAcceptable()) {
 									try {
-										if (key.isValid() && key.isReadable()) {
-											try {
-												int read = client.read(session.readBuffer());
-												byte[][] ivAndMessage = session.readMessage(read);
-												if (ivAndMessage != null) {
-													//the header or the body was received successfully
-													if (ivAndMessage.length == 0) {
-														//header received, try a non-blocking read to see if we also got the message body
-														read = client.read(session.readBuffer());
-														ivAndMessage = session.readMessage(read);
-													}
-													if (ivAndMessage != null && ivAndMessage.length == 2) {
-														session.readEnqueued();
-														//decrypt the body and handle it on a worker thread
-														final byte[] iv = ivAndMessage[0];
-														final byte[] body = ivAndMessage[1];
-														workerThreadPool.submit(new Runnable() {
-															@Override
-															public void run() {
-																try {
-																	ClientEncryption.aesOfbCrypt(body, iv);
-																	ClientEncryption.mapleDecrypt(body);
-																	pp.process(new LittleEndianByteArrayReader(body), session.getClient());
-																} catch (Throwable ex) {
-																	LOG.log(Level.WARNING, "Uncaught exception while processing packet from client " + session.getAccountName() + " (" + session.getAddress() + ")", ex);
-																} finally {
-																	session.readDequeued();
-																}
-															}
-														});
-													}
-												}
-											} catch (IOException ex) {
-												//does an IOException in read always mean an invalid channel?
-												session.close(ex.getMessage());
-											}
-										}
-										if (key.isValid() && key.isWritable())
-											if (session.tryFlushSendQueue() == 1)
-												key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-									} catch (CancelledKeyException e) {
-										//don't worry about it - session is already closed
+										SocketChannel client = listener.accept();
+										if (client == null)
+											continue;
+										client.socket().setTcpNoDelay(true);
+										client.configureBlocking(false);
+										LOG.log(Level.FINE, "Client connected from {0}", client.socket().getRemoteSocketAddress());
+										nextReactor().assign(client);
+									} catch (IOException ex) {
+										close(ex.getMessage(), ex);
 									}
 								}
 							}
 						}
+						selector.close();
 					} catch (IOException ex) {
 						close(ex.getMessage(), ex);
+					} catch (ClosedSelectorException ex) {
+						//listener was closed
 					}
 				}
 			});
@@ -207,6 +165,51 @@ public class ClientListener<T extends RemoteClient> implements SessionCreator {
 		}
 	}
 
+	public int getIoThreadCount() {
+		return reactors.size();
+	}
+
+	/**
+	 * @param ioThread the index of the I/O thread, between 0 (inclusive) and
+	 * getIoThreadCount() (exclusive)
+	 * @return the amount of client sessions currently owned by the I/O thread.
+	 */
+	public int getSessionCount(int ioThread) {
+		IoReactor reactor = reactors.get(ioThread);
+		return reactor != null ? reactor.getSessionCount() : 0;
+	}
+
+	/**
+	 * @param ioThread the index of the I/O thread, between 0 (inclusive) and
+	 * getIoThreadCount() (exclusive)
+	 * @return the amount of complete packets the I/O thread has received.
+	 */
+	public long getPacketsRead(int ioThread) {
+		IoReactor reactor = reactors.get(ioThread);
+		return reactor != null ? reactor.packetsRead.get() : 0;
+	}
+
+	/**
+	 * @param ioThread the index of the I/O thread, between 0 (inclusive) and
+	 * getIoThreadCount() (exclusive)
+	 * @return the amount of bytes the I/O thread has read from its channels.
+	 */
+	public long getBytesRead(int ioThread) {
+		IoReactor reactor = reactors.get(ioThread);
+		return reactor != null ? reactor.bytesRead.get() : 0;
+	}
+
+	/**
+	 * @param ioThread the index of the I/O thread, between 0 (inclusive) and
+	 * getIoThreadCount() (exclusive)
+	 * @return the amount of times the Selector of the I/O thread returned with
+	 * ready channels or because it was woken up.
+	 */
+	public long getSelects(int ioThread) {
+		IoReactor reactor = reactors.get(ioThread);
+		return reactor != null ? reactor.selects.get() : 0;
+	}
+
 	public void close(String reason, Throwable reasonExc) {
 		if (closeEventsTriggered.compareAndSet(false, true)) {
 			try {
@@ -219,7 +222,189 @@ public class ClientListener<T extends RemoteClient> implements SessionCreator {
 			else
 				LOG.log(Level.FINE, "External facing selector (" + listener.socket().getLocalSocketAddress() + ") closed: " + reason, reasonExc);
 			bossThreadPool.shutdown();
+			for (IoReactor reactor : reactors)
+				if (reactor != null)
+					reactor.stop();
+			ioThreadPool.shutdown();
 			workerThreadPool.shutdown();
 		}
 	}
+
+	private class IoReactor implements Runnable {
+		private final int index;
+		private final Selector selector;
+		private final Queue<SocketChannel> pendingRegistrations;
+		private final Map<SelectionKey, ClientSession<T>> connected;
+		private final AtomicLong packetsRead, bytesRead, selects;
+		private volatile boolean stopped;
+
+		public IoReactor(int index, Selector selector) {
+			this.index = index;
+			this.selector = selector;
+			this.pendingRegistrations = new ConcurrentLinkedQueue<SocketChannel>();
+			this.connected = new ConcurrentHashMap<SelectionKey, ClientSession<T>>();
+			this.packetsRead = new AtomicLong(0);
+			this.bytesRead = new AtomicLong(0);
+			this.selects = new AtomicLong(0);
+		}
+
+		public int getSessionCount() {
+			return connected.size() + pendingRegistrations.size();
+		}
+
+		/**
+		 * Hands a newly accepted channel to this I/O thread. The channel is
+		 * registered with our Selector on our own thread, since registering
+		 * blocks while another thread is selecting.
+		 */
+		public void assign(SocketChannel client) {
+			pendingRegistrations.offer(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Makes this I/O thread close its Selector and return. Sessions that
+		 * are still connected are not closed.
+		 */
+		public void stop() {
+			stopped = true;
+			selector.wakeup();
+		}
+
+		private void registerPending() {
+			SocketChannel client;
+			while ((client = pendingRegistrations.poll()) != null) {
+				try {
+					final SelectionKey acceptedKey = client.register(selector, SelectionKey.OP_READ);
+					T clientState = clientCtor.newInstance();
+					ClientSession<T> session = new ClientSession<T>(client, acceptedKey, clientState, new CloseListener<T>() {
+						@Override
+						public void closed(ClientSession<T> session) {
+							connected.remove(acceptedKey);
+						}
+					}, workerThreadPool);
+					clientState.setSession(session);
+					connected.put(acceptedKey, session);
+					session.sendInitPacket();
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Could not register client " + client.socket().getRemoteSocketAddress(), ex);
+					try {
+						client.close();
+					} catch (IOException e) {
+						//we tried...
+					}
+				}
+			}
+		}
+
+		private void read(SocketChannel client, final ClientSession<T> session) throws IOException {
+			int read = client.read(session.readBuffer());
+			if (read > 0)
+				bytesRead.addAndGet(read);
+			byte[][] ivAndMessage = session.readMessage(read);
+			if (ivAndMessage != null) {
+				//the header or the body was received successfully
+				if (ivAndMessage.length == 0) {
+					//header received, try a non-blocking read to see if we also got the message body
+					read = client.read(session.readBuffer());
+					if (read > 0)
+						bytesRead.addAndGet(read);
+					ivAndMessage = session.readMessage(read);
+				}
+				if (ivAndMessage != null && ivAndMessage.length == 2) {
+					packetsRead.incrementAndGet();
+					if (session.getQueuedReads() >= MAX_QUEUED_READS) {
+						session.close("Flooded server with more than " + MAX_QUEUED_READS + " unprocessed packets");
+						return;
+					}
+					//decrypt the body and handle it on a worker thread, after
+					//all earlier messages from this client have been handled
+					final byte[] iv = ivAndMessage[0];
+					final byte[] body = ivAndMessage[1];
+					session.enqueueRead(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								ClientEncryption.aesOfbCrypt(body, iv);
+								ClientEncryption.mapleDecrypt(body);
+								pp.process(new LittleEndianByteArrayReader(body), session.getClient());
+							} catch (Throwable ex) {
+								LOG.log(Level.WARNING, "Uncaught exception while processing packet from client " + session.getAccountName() + " (" + session.getAddress() + ")", ex);
+							}
+						}
+					});
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					selector.select();
+					selects.incrementAndGet();
+					registerPending();
+					Set<SelectionKey> keys = selector.selectedKeys();
+
+					for (Iterator<SelectionKey> keyIter = keys.iterator(); keyIter.hasNext(); ) {
+						SelectionKey key = keyIter.next();
+						keyIter.remove();
+
+						SocketChannel client = (SocketChannel) key.channel();
+						ClientSession<T> session = connected.get(key);
+						if (session == null)
+							continue;
+						try {
+							if (key.isValid() && key.isReadable()) {
+								try {
+									read(client, session);
+								} catch (IOException ex) {
+									//does an IOException in read always mean an invalid channel?
+									session.close(ex.getMessage());
+								}
+							}
+							if (key.isValid() && key.isWritable())
+								if (session.tryFlushSendQueue() == 1)
+									key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						} catch (CancelledKeyException e) {
+							//don't worry about it - session is already closed
+						}
+					}
+				}
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "External I/O thread " + index + " failed", ex);
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException ex) {
+					LOG.log(Level.FINE, "Could not close selector of external I/O thread " + index, ex);
+				}
+			}
+		}
+	}
+
+	private static class ListenerThreadFactory implements ThreadFactory {
+		private final ThreadGroup group;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		private final String name;
+		private final boolean numbered;
+
+		public ListenerThreadFactory(String name, boolean numbered) {
+			SecurityManager s = System.getSecurityManager();
+			group = (s != null)? s.getThreadGroup() :
+								 Thread.currentThread().getThreadGroup();
+			this.name = name;
+			this.numbered = numbered;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(group, r, numbered ? name + threadNumber.getAndIncrement() : name, 0);
+			if (t.isDaemon())
+				t.setDaemon(false);
+			if (t.getPriority() != Thread.NORM_PRIORITY)
+				t.setPriority(Thread.NORM_PRIORITY);
+			return t;
+		}
+	}
 }
@@ -19,7 +19,9 @@
 package argonms.common.net.external;
 
 import argonms.common.GlobalConstants;
+import argonms.common.net.BufferPool;
 import argonms.common.net.OrderedQueue;
+import argonms.common.net.IdleMonitor;
 import argonms.common.net.Session;
 import argonms.common.util.Rng;
 import argonms.common.util.Scheduler;
@@ -31,11 +33,15 @@ import java.nio.ByteOrder;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -63,6 +69,23 @@ public class ClientSession<T extends RemoteClient> implements Session {
 	private static final byte[][] EMPTY_ARRAY = new byte[0][];
 	private static final int IDLE_TIME = 15000; //in milliseconds
 	private static final int TIMEOUT = 15000; //in milliseconds
+	//most messages to flush at once - anything else waits for the next write
+	private static final int MAX_GATHERED_BUFFERS = 64;
+	//most messages of one session to process before yielding the worker thread
+	private static final int MAX_READS_PER_DRAIN = 16;
+
+	private static final AtomicLong flushes = new AtomicLong(0);
+	private static final AtomicLong writeCalls = new AtomicLong(0);
+	private static final AtomicLong bytesWritten = new AtomicLong(0);
+
+	//each thread that sends messages encrypts them in its own reusable array
+	//before copying them to a pooled buffer, so sends don't create garbage
+	private static final ThreadLocal<byte[]> encryptBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[DEFAULT_BUFFER_SIZE];
+		}
+	};
 
 	private final SocketChannel commChn;
 	private final AtomicBoolean closeEventsTriggered;
@@ -70,19 +93,28 @@ public class ClientSession<T extends RemoteClient> implements Session {
 	private final CloseListener<T> onClose;
 	private T client;
 	private final AtomicInteger queuedReads;
+	private final Queue<Runnable> readQueue;
+	private final Executor readExecutor;
+	private final Runnable readQueueDrainer = new Runnable() {
+		@Override
+		public void run() {
+			drainReadQueue();
+		}
+	};
 	private volatile Runnable emptyReadQueueHandler;
 
 	private final SelectionKey selectionKey;
 	private final OrderedQueue sendQueue;
+	//only touched while we hold the flush mutex of sendQueue
+	private final ByteBuffer[] gatherBuffers;
 
 	private KeepAliveTask heartbeatTask;
-	private final Runnable idleTask = new Runnable() {
+	private final IdleMonitor idleMonitor = new IdleMonitor(new Runnable() {
 		@Override
 		public void run() {
 			startPingTask();
 		}
-	};
-	private ScheduledFuture<?> idleTaskFuture;
+	}, IDLE_TIME);
 
 	private MessageType nextMessageType;
 
@@ -93,11 +125,14 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		public void closed(ClientSession<T> session);
 	}
 
-	/* package-private */ ClientSession(SocketChannel channel, SelectionKey key, T client, CloseListener<T> onClose) {
+	/* package-private */ ClientSession(SocketChannel channel, SelectionKey key, T client, CloseListener<T> onClose, Executor readExecutor) {
 		closeEventsTriggered = new AtomicBoolean(false);
 		sendQueue = new OrderedQueue();
+		gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 		heartbeatTask = new KeepAliveTask();
 		queuedReads = new AtomicInteger(0);
+		readQueue = new ConcurrentLinkedQueue<Runnable>();
+		this.readExecutor = readExecutor;
 
 		//we don't need to lock for receiving - see readMessage()
 		sendIvLock = new ReentrantLock();
@@ -144,6 +179,50 @@ public class ClientSession<T extends RemoteClient> implements Session {
 
 	@Override
 	public void send(byte[] message) {
+		byte[] scratch = encryptBuffer(message.length);
+		System.arraycopy(message, 0, scratch, HEADER_LENGTH, message.length);
+		ClientEncryption.mapleEncrypt(scratch, HEADER_LENGTH, message.length);
+		encryptAndQueue(scratch, message.length);
+	}
+
+	/**
+	 * Sends a message whose body has already been passed through
+	 * {@link ClientEncryption#mapleEncrypt(byte[])}, such as one returned by
+	 * {@link #prepareBroadcast(byte[])}. Only the AES-OFB pass and the header,
+	 * which both depend on this session's send IV, are applied here, so the
+	 * same array may be shared by any number of sessions.
+	 * @param encrypted the message body after Maple's custom encryption. The
+	 * array will not be modified.
+	 */
+	public void sendMapleEncrypted(byte[] encrypted) {
+		byte[] scratch = encryptBuffer(encrypted.length);
+		System.arraycopy(encrypted, 0, scratch, HEADER_LENGTH, encrypted.length);
+		encryptAndQueue(scratch, encrypted.length);
+	}
+
+	/**
+	 * @param bodyLength the length of the message body
+	 * @return this thread's scratch array for encrypting messages, with at
+	 * least enough space for a header and a message body of the given length.
+	 */
+	private static byte[] encryptBuffer(int bodyLength) {
+		byte[] scratch = encryptBuffer.get();
+		if (scratch.length < HEADER_LENGTH + bodyLength) {
+			scratch = new byte[Math.max(HEADER_LENGTH + bodyLength, scratch.length * 2)];
+			encryptBuffer.set(scratch);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Finishes the encryption of a message that has gone through Maple's
+	 * custom encryption, and copies the header and body into a pooled buffer
+	 * that is queued for sending.
+	 * @param scratch the array returned by {@link #encryptBuffer(int)}, with
+	 * the body placed after space reserved for the header
+	 * @param length the length of the message body
+	 */
+	private void encryptAndQueue(byte[] scratch, int length) {
 		//we will have to synchronize here because send can be called from any
 		//thread. we have to ensure that this message is sent before any shorter
 		//messages that use a newer IV are sent, so use an OrderedQueue.
@@ -157,26 +236,88 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		} finally {
 			sendIvLock.unlock();
 		}
+		ClientEncryption.writePacketHeader(scratch, 0, length, iv);
+		ClientEncryption.aesOfbCrypt(scratch, HEADER_LENGTH, length, iv);
+		ByteBuffer buf = BufferPool.acquire(HEADER_LENGTH + length);
+		buf.put(scratch, 0, HEADER_LENGTH + length);
+		buf.flip();
+		//scratch is free to be reused from here on, even by a nested send()
+		send(queueInsertNo, buf);
+	}
+
+	/**
+	 * Performs the part of the encryption of a message that does not depend
+	 * on any session's IV, so that a message that is sent to many clients
+	 * only has to go through Maple's custom encryption once. Pass the
+	 * returned array to {@link #sendMapleEncrypted(byte[])} of each recipient.
+	 * @param message the plaintext message. The array will not be modified.
+	 * @return a new array holding the partially encrypted message.
+	 */
+	public static byte[] prepareBroadcast(byte[] message) {
 		byte[] input = new byte[message.length];
 		System.arraycopy(message, 0, input, 0, message.length);
-		byte[] header = ClientEncryption.makePacketHeader(input.length, iv);
-		byte[] output = new byte[header.length + input.length];
-		ClientEncryption.mapleEncrypt(input);
-		ClientEncryption.aesOfbCrypt(input, iv);
-		System.arraycopy(header, 0, output, 0, header.length);
-		System.arraycopy(input, 0, output, header.length, input.length);
-		send(queueInsertNo, ByteBuffer.wrap(output));
+		return ClientEncryption.mapleEncrypt(input);
 	}
 
-	public void readEnqueued() {
-		queuedReads.incrementAndGet();
+	/**
+	 * Queues the processing of a received message. Messages from the same
+	 * session are processed one at a time, in the order they were received,
+	 * on the shared worker pool, so handlers never see two messages from one
+	 * client at once.
+	 * @param processor the task that decrypts and handles the message
+	 */
+	/* package-private */ void enqueueRead(Runnable processor) {
+		readQueue.offer(processor);
+		//only the one who finds the queue empty schedules a drainer, so there
+		//is never more than one worker draining this session
+		if (queuedReads.getAndIncrement() == 0)
+			submitReadQueueDrainer();
 	}
 
-	public void readDequeued() {
-		if (queuedReads.decrementAndGet() == 0 && emptyReadQueueHandler != null)
+	private void submitReadQueueDrainer() {
+		try {
+			readExecutor.execute(readQueueDrainer);
+		} catch (RejectedExecutionException e) {
+			//worker pool was shutdown - we're not processing messages anymore
+			discardReadQueue();
+		}
+	}
+
+	/**
+	 * Throws away the messages that will never be processed because the
+	 * worker pool was shutdown, so that queuedReads still drops to zero and
+	 * whoever waits for the queue to be empty, e.g. to save the character of
+	 * a session that was closed, is still called.
+	 * Like drainReadQueue(), only the one who scheduled the drainer may call
+	 * this.
+	 */
+	private void discardReadQueue() {
+		do {
+			readQueue.poll();
+		} while (queuedReads.decrementAndGet() != 0);
+		if (emptyReadQueueHandler != null)
 			emptyReadQueueHandler.run();
 	}
 
+	private void drainReadQueue() {
+		for (int i = 0; i < MAX_READS_PER_DRAIN; i++) {
+			//queuedReads is only incremented after an offer, so if it is
+			//non-zero there is always something for us to poll
+			readQueue.poll().run();
+			if (queuedReads.decrementAndGet() == 0) {
+				if (emptyReadQueueHandler != null)
+					emptyReadQueueHandler.run();
+				return;
+			}
+		}
+		//give other sessions a chance to use this worker
+		submitReadQueueDrainer();
+	}
+
+	/**
+	 * @return the amount of received messages from this session that have not
+	 * been fully processed yet, including the one that is being processed.
+	 */
 	public int getQueuedReads() {
 		return queuedReads.get();
 	}
@@ -207,10 +348,7 @@ public class ClientSession<T extends RemoteClient> implements Session {
 				LOG.log(Level.WARNING, "Error while closing client " + getAccountName() + " (" + getAddress() + ")", ex);
 			}
 			stopPingTask();
-			//this check is thread safe - idleTaskFuture can never be null again after it has been assigned a non-null value
-			if (idleTaskFuture != null)
-				//client closed before we could send init packet
-				idleTaskFuture.cancel(false);
+			idleMonitor.stop();
 
 			LOG.log(Level.FINE, "Client {0} ({1}) disconnected: {2}", new Object[] { getAccountName(), getAddress(), reason });
 			client.disconnected();
@@ -230,24 +368,32 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		if (!sendQueue.shouldWrite())
 			return -1;
 		try {
+			flushes.incrementAndGet();
 			do {
+				//hand every consecutive queued message to the channel at once
+				//so that a burst of small messages only costs one system call
+				ByteBuffer[] bufs = gatherBuffers;
+				int count = sendQueue.pop(bufs);
+				if (count == 0)
+					break;
 				int success = 0;
 				try {
-					Iterator<ByteBuffer> iter = sendQueue.pop().iterator();
-					while (iter.hasNext()) {
-						ByteBuffer buf = iter.next();
-						if (buf.remaining() == commChn.write(buf)) {
-							success++;
-						} else {
-							int i = sendQueue.currentPopBlock() + success;
-							sendQueue.insert(i++, buf);
-							while (iter.hasNext())
-								sendQueue.insert(i++, iter.next());
-							return 0;
-						}
+					long written = commChn.write(bufs, 0, count);
+					writeCalls.incrementAndGet();
+					bytesWritten.addAndGet(written);
+					for (; success < count && !bufs[success].hasRemaining(); success++)
+						BufferPool.release(bufs[success]);
+					if (success != count) {
+						int i = sendQueue.currentPopBlock() + success;
+						for (int j = success; j < count; j++)
+							sendQueue.insert(i++, bufs[j]);
+						return 0;
 					}
 				} finally {
 					sendQueue.incrementPopCursor(success);
+					//don't hold on to any buffers that went back to the pool
+					for (int j = 0; j < count; j++)
+						bufs[j] = null;
 				}
 			} while (!sendQueue.willBlock());
 			return 1;
@@ -261,8 +407,32 @@ public class ClientSession<T extends RemoteClient> implements Session {
 	}
 
 	/**
-	 * This may only be called from the ClientListener boss thread, in the
-	 * Selector loop.
+	 * @return the amount of times any client session tried to flush its
+	 * send queue to its channel.
+	 */
+	public static long getTotalFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return the amount of write calls, i.e. system calls, that all client
+	 * sessions made while flushing their send queues.
+	 */
+	public static long getTotalWriteCalls() {
+		return writeCalls.get();
+	}
+
+	/**
+	 * @return the amount of bytes that all client sessions wrote to their
+	 * channels.
+	 */
+	public static long getTotalBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * This may only be called from the ClientListener I/O thread that owns
+	 * this session, in its Selector loop.
 	 */
 	/* package-private */ void sendInitPacket() {
 		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(13);
@@ -273,7 +443,7 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		lew.writeByte(CLIENT_DISTRIBUTION_GLOBAL);
 		byte[] body = lew.getBytes();
 
-		ByteBuffer buf = ByteBuffer.allocate(INIT_HEADER_LENGTH + body.length);
+		ByteBuffer buf = BufferPool.acquire(INIT_HEADER_LENGTH + body.length);
 		buf.order(ByteOrder.LITTLE_ENDIAN);
 		buf.putShort((short) body.length);
 		buf.put(body);
@@ -283,20 +453,20 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		readBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
 		readBuffer.limit(HEADER_LENGTH);
 		nextMessageType = MessageType.HEADER;
-		idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
+		idleMonitor.activity();
 	}
 
 	/**
-	 * This may only be called from the ClientListener boss thread, in the
-	 * Selector loop.
+	 * This may only be called from the ClientListener I/O thread that owns
+	 * this session, in its Selector loop.
 	 */
 	/* package-private */ ByteBuffer readBuffer() {
 		return readBuffer;
 	}
 
 	/**
-	 * This may only be called from the ClientListener boss thread, in the
-	 * Selector loop.
+	 * This may only be called from the ClientListener I/O thread that owns
+	 * this session, in its Selector loop.
 	 * @param readBytes
 	 * @return null if nothing was processed, an array of length 0 if the header
 	 * was fully read, or an array of length 2 consisting of this session's
@@ -304,7 +474,7 @@ public class ClientSession<T extends RemoteClient> implements Session {
 	 * message body at index 1 if the message body was fully read.
 	 */
 	/* package-private */ byte[][] readMessage(int readBytes) {
-		idleTaskFuture.cancel(false);
+		idleMonitor.activity();
 		if (readBytes == -1) {
 			//connection closed
 			close("EOF received");
@@ -312,7 +482,6 @@ public class ClientSession<T extends RemoteClient> implements Session {
 		}
 		if (readBuffer.remaining() != 0) { //buffer is still not full
 			//we limited buffer to the expected length of the next packet - continue reading
-			idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 			return null;
 		}
 		switch (nextMessageType) {
@@ -331,7 +500,6 @@ public class ClientSession<T extends RemoteClient> implements Session {
 					readBuffer = ByteBuffer.allocate(length);
 				readBuffer.limit(length);
 				nextMessageType = MessageType.BODY;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return EMPTY_ARRAY;
 			}
 			case BODY: {
@@ -340,14 +508,13 @@ public class ClientSession<T extends RemoteClient> implements Session {
 				readBuffer.get(message);
 				//since recvIv can only be touched here (excluding the one-time
 				//initialization and sending to client), and this method can
-				//only be called from the boss thread of ClientListener in the
-				//Selector loop, we don't need recvIv access to be thread-safe.
+				//only be called from the I/O thread of ClientListener that owns
+				//this session, we don't need recvIv access to be thread-safe.
 				byte[] iv = recvIv;
 				recvIv = ClientEncryption.nextIv(iv);
 				readBuffer.clear();
 				readBuffer.limit(HEADER_LENGTH);
 				nextMessageType = MessageType.HEADER;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return new byte[][] { iv, message };
 			}
 			default:
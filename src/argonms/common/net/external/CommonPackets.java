@@ -430,6 +430,27 @@ public final class CommonPackets {
 		return lew.getBytes();
 	}
 
+	/**
+	 * Guesses how many bytes writeCharData will write for the given player, so
+	 * that packets that include it can be written without growing their
+	 * buffer over and over again.
+	 * @param p
+	 * @return
+	 */
+	public static int estimateCharDataLength(LoggedInPlayer p) {
+		int items = p.getItemCount();
+		int quests;
+		p.readLockQuests();
+		try {
+			quests = p.getAllQuests().size();
+		} finally {
+			p.readUnlockQuests();
+		}
+		//fixed fields and ring lists, ~40 bytes per item (equips are longer,
+		//stackables shorter), ~10 per skill and cooldown, ~12 per quest
+		return 256 + items * 40 + (p.getSkillEntries().size() + p.getCooldowns().size()) * 10 + quests * 12;
+	}
+
 	public static void writeCharData(LittleEndianWriter lew, LoggedInPlayer p) {
 		lew.writeLong(-1);
 		writeCharStats(lew, p);
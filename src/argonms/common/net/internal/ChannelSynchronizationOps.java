@@ -51,7 +51,8 @@ public class ChannelSynchronizationOps {
 		SYNCHRONIZED_SHUTDOWN = 25,
 		SYNCHRONIZED_RATE_CHANGE = 26,
 		WHO_COMMAND = 27,
-		WHO_COMMAND_RESPONSE = 28
+		WHO_COMMAND_RESPONSE = 28,
+		PLAYER_HANDOFF = 29
 	;
 
 	public static final byte
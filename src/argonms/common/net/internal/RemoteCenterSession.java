@@ -18,6 +18,7 @@
 
 package argonms.common.net.internal;
 
+import argonms.common.net.IdleMonitor;
 import argonms.common.net.Session;
 import argonms.common.net.SessionCreator;
 import argonms.common.util.Scheduler;
@@ -57,13 +58,12 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 	private final T server;
 
 	private KeepAliveTask heartbeatTask;
-	private final Runnable idleTask = new Runnable() {
+	private final IdleMonitor idleMonitor = new IdleMonitor(new Runnable() {
 		@Override
 		public void run() {
 			startPingTask();
 		}
-	};
-	private ScheduledFuture<?> idleTaskFuture;
+	}, IDLE_TIME);
 
 	private MessageType nextMessageType;
 
@@ -145,10 +145,7 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 				LOG.log(Level.WARNING, "Error while closing center server ( " + getAddress() + ")", ex);
 			}
 			stopPingTask();
-			//this check is thread safe - idleTaskFuture can never be null again after it has been assigned a non-null value
-			if (idleTaskFuture != null)
-				//client closed before we could send init packet
-				idleTaskFuture.cancel(false);
+			idleMonitor.stop();
 
 			LOG.log(Level.FINE, "Disconnected from center server ({0}): {1}", new Object[] { getAddress(), reason });
 			server.disconnected();
@@ -170,7 +167,7 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 		readBuffer.limit(HEADER_LENGTH);
 		nextMessageType = MessageType.HEADER;
 
-		idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
+		idleMonitor.activity();
 	}
 
 	/**
@@ -186,7 +183,7 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 	 * the read loop.
 	 */
 	private byte[] readMessage(int readBytes) {
-		idleTaskFuture.cancel(false);
+		idleMonitor.activity();
 		if (readBytes == -1) {
 			//connection closed
 			close("EOF received");
@@ -194,7 +191,6 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 		}
 		if (readBuffer.remaining() != 0) { //buffer is still not full
 			//we limited buffer to the expected length of the next packet - continue reading
-			idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 			return null;
 		}
 		switch (nextMessageType) {
@@ -209,7 +205,6 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 				}
 				readBuffer.limit(length);
 				nextMessageType = MessageType.BODY;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return EMPTY_ARRAY;
 			}
 			case BODY: {
@@ -219,7 +214,6 @@ public class RemoteCenterSession<T extends RemoteCenterInterface> implements Ses
 				readBuffer.clear();
 				readBuffer.limit(HEADER_LENGTH);
 				nextMessageType = MessageType.HEADER;
-				idleTaskFuture = Scheduler.getWheelTimer().runAfterDelay(idleTask, IDLE_TIME);
 				return message;
 			}
 			default:
@@ -19,21 +19,33 @@
 package argonms.common.util;
 
 import argonms.common.util.collections.LockableList;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,9 +53,20 @@ import java.util.logging.Logger;
 /**
  * Provides a central location to store database connections used for pooling,
  * and common operations when accessing the database (such as the finalizing of
- * PreparedStatements, ResultSets). Depending on the value of the "nio" argument
- * passed to setProps, this class may either use a ThreadLocal model or a
- * CachedConnectionPool model.
+ * PreparedStatements, ResultSets).
+ *
+ * Each database has a bounded pool of connections. When all connections are
+ * in use, getConnection() waits for one to be returned for a configurable
+ * amount of time before giving up. Connections that have not been used in a
+ * while are checked for staleness before they are handed out, and a
+ * background thread closes connections that have been idle for too long and
+ * validates the rest. Checkouts are re-entrant: a thread that calls
+ * getConnection() while it still holds a connection to the same database gets
+ * that connection back instead of taking a second one from the pool, and the
+ * connection is only returned once it has been closed as many times as it was
+ * taken. Each connection also caches the PreparedStatements that
+ * were created from it, so that closing a PreparedStatement just returns it to
+ * its connection's cache to be reused by the next caller with the same SQL.
  *
  * Improved from OdinMS' DatabaseConnection class by adding a check for stale
  * connections before returning it to the caller of getConnection().
@@ -52,35 +75,36 @@ import java.util.logging.Logger;
  * data have also been integrated into this class.
  *
  * @author GoldenKevin
- * @version 2.0
+ * @version 3.0
  */
 public final class DatabaseManager {
 	public enum DatabaseType { STATE, WZ }
 
 	private final static Logger LOG = Logger.getLogger(DatabaseManager.class.getName());
 
+	//seconds to wait for a connection to respond when checking if it is stale
+	private static final int VALIDATION_TIMEOUT = 2;
+
 	private static final Map<DatabaseType, ConnectionPool> connections;
+	private static ScheduledExecutorService maintenance;
 	private static String driver;
 
 	static {
 		connections = new EnumMap<DatabaseType, ConnectionPool>(DatabaseType.class);
 	}
 
-	private static String getNonFullyQualifiedClassName(String fullyQualified) {
-		return fullyQualified.substring(Math.max(fullyQualified.indexOf('.'), fullyQualified.indexOf('$')) + 1);
-	}
-
 	public static Connection getConnection(DatabaseType type) throws SQLException {
 		ConnectionPool pool = connections.get(type);
 		try {
 			return pool.getConnection();
 		} finally {
-			LOG.log(Level.FINEST, "Database pool: {0}, Taken connections: {1}, All connections: {2}, Impl: {3}, Caller: {4}",
-					new Object[] { type, pool.connectionsInUse(), pool.totalConnections(), getNonFullyQualifiedClassName(pool.getClass().getName()), Thread.currentThread().getStackTrace()[2] });
+			if (LOG.isLoggable(Level.FINEST))
+				LOG.log(Level.FINEST, "Database pool: {0}, Taken connections: {1}, All connections: {2}, Caller: {3}",
+						new Object[] { type, pool.connectionsInUse(), pool.totalConnections(), Thread.currentThread().getStackTrace()[2] });
 		}
 	}
 
-	public static void cleanup(DatabaseType type, ResultSet rs, PreparedStatement ps, Connection con) {
+	public static void cleanup(DatabaseType type, ResultSet rs, Statement ps, Connection con) {
 		if (rs != null) {
 			try {
 				rs.close();
@@ -98,7 +122,16 @@ public final class DatabaseManager {
 		}
 	}
 
-	public static void setProps(Properties props, boolean useMcdb, boolean nio) throws SQLException {
+	private static ConnectionPool makePool(Properties props, String url, String user, String password) {
+		return new ConnectionPool(url, user, password,
+				Integer.parseInt(props.getProperty("pool.maxsize", "16")),
+				Long.parseLong(props.getProperty("pool.timeout", "10000")),
+				Long.parseLong(props.getProperty("pool.idletimeout", "600000")),
+				Long.parseLong(props.getProperty("pool.validationinterval", "30000")),
+				Integer.parseInt(props.getProperty("pool.statementcache", "64")));
+	}
+
+	public static void setProps(Properties props, boolean useMcdb) throws SQLException {
 		driver = props.getProperty("driver");
 		try {
 			Class.forName(driver); //load the jdbc driver
@@ -108,179 +141,516 @@ public final class DatabaseManager {
 		String url = props.getProperty("url");
 		String user = props.getProperty("user");
 		String password = props.getProperty("password");
-		connections.put(DatabaseType.STATE, nio ? new ThreadLocalConnections(url, user, password) : new CachedConnectionPool(url, user, password));
+		connections.put(DatabaseType.STATE, makePool(props, url, user, password));
 		if (useMcdb) {
 			String wz = props.getProperty("mcdb");
-			connections.put(DatabaseType.WZ, nio ? new ThreadLocalConnections(wz, user, password) : new CachedConnectionPool(wz, user, password));
+			connections.put(DatabaseType.WZ, makePool(props, wz, user, password));
+		}
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "database-pool-maintenance-thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final ConnectionPool pool : connections.values()) {
+			long period = Math.min(pool.validationInterval, pool.idleTimeout);
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						pool.maintain();
+					} catch (Throwable ex) {
+						LOG.log(Level.WARNING, "Uncaught exception while maintaining database pool", ex);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
 		}
 	}
 
 	public static Map<DatabaseType, Map<Connection, SQLException>> closeAll() {
+		if (maintenance != null)
+			maintenance.shutdown();
 		Map<DatabaseType, Map<Connection, SQLException>> exceptions = new EnumMap<DatabaseType, Map<Connection, SQLException>>(DatabaseType.class);
 		for (Entry<DatabaseType, ConnectionPool> pool : connections.entrySet()) {
 			DatabaseType poolType = pool.getKey();
-			LockableList<Connection> allConnections = pool.getValue().allConnections();
-			allConnections.lockWrite();
-			try {
-				for (Iterator<Connection> iter = allConnections.iterator(); iter.hasNext();) {
-					Connection con = iter.next();
-					try {
-						con.close();
-						iter.remove();
-					} catch (SQLException e) {
-						Map<Connection, SQLException> subExceptions = exceptions.get(poolType);
-						if (subExceptions == null) {
-							subExceptions = new HashMap<Connection, SQLException>();
-							exceptions.put(poolType, subExceptions);
-						}
-						subExceptions.put(con, e);
-					}
-				}
-			} finally {
-				allConnections.unlockWrite();
-			}
+			Map<Connection, SQLException> subExceptions = pool.getValue().closeAll();
+			if (!subExceptions.isEmpty())
+				exceptions.put(poolType, subExceptions);
 		}
 		return exceptions;
 	}
 
-	private static interface ConnectionPool {
-		public Connection getConnection() throws SQLException;
-		public void returnConnection(Connection con);
-		public LockableList<Connection> allConnections();
-		public int connectionsInUse();
-		public int totalConnections();
+	/**
+	 * Returns whether connections to the given database were configured in
+	 * {@link #setProps(Properties, boolean)}. The statistic getters below
+	 * should only be called for databases that this returns true for.
+	 * @param type the database
+	 * @return true if the database has a connection pool
+	 */
+	public static boolean hasPool(DatabaseType type) {
+		return connections.containsKey(type);
 	}
 
-	private static class ThreadLocalConnections extends ThreadLocal<Connection> implements ConnectionPool {
-		private final LockableList<Connection> allConnections;
-		private final AtomicInteger taken;
-		private final ThreadLocal<SQLException> exceptions;
+	public static int getMaxConnections(DatabaseType type) {
+		return connections.get(type).maxSize;
+	}
+
+	public static int getConnectionsInUse(DatabaseType type) {
+		return connections.get(type).connectionsInUse();
+	}
+
+	public static int getTotalConnections(DatabaseType type) {
+		return connections.get(type).totalConnections();
+	}
+
+	public static long getConnectionsCreated(DatabaseType type) {
+		return connections.get(type).created.get();
+	}
+
+	public static long getConnectionsEvicted(DatabaseType type) {
+		return connections.get(type).evicted.get();
+	}
+
+	public static long getCheckouts(DatabaseType type) {
+		return connections.get(type).checkouts.get();
+	}
+
+	public static long getCheckoutTimeouts(DatabaseType type) {
+		return connections.get(type).timeouts.get();
+	}
+
+	/**
+	 * Returns the total amount of time that callers of
+	 * {@link #getConnection(DatabaseType)} spent waiting for a connection to
+	 * be returned to a full pool.
+	 * @param type the database
+	 * @return the total waiting time, in nanoseconds.
+	 */
+	public static long getCheckoutWaitTime(DatabaseType type) {
+		return connections.get(type).waitTime.get();
+	}
+
+	public static long getMaxCheckoutWaitTime(DatabaseType type) {
+		return connections.get(type).maxWaitTime.get();
+	}
+
+	public static long getStatementCacheHits(DatabaseType type) {
+		return connections.get(type).statementHits.get();
+	}
+
+	public static long getStatementCacheMisses(DatabaseType type) {
+		return connections.get(type).statementMisses.get();
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static class ConnectionPool {
 		private final String url, user, password;
+		private final int maxSize;
+		private final long checkoutTimeout, idleTimeout, validationInterval;
+		private final int statementCacheSize;
+		//every connection that is in use holds a permit
+		private final Semaphore permits;
+		//most recently returned connections are at the head
+		private final LinkedBlockingDeque<PooledConnection> available;
+		private final LockableList<PooledConnection> allConnections;
+		//the connection that each thread has checked out, if any
+		private final ThreadLocal<PooledConnection> held;
+		private final AtomicInteger taken;
+		private final AtomicLong checkouts, timeouts, waitTime, maxWaitTime;
+		private final AtomicLong created, evicted;
+		private final AtomicLong statementHits, statementMisses;
+		private volatile boolean closed;
 
-		protected ThreadLocalConnections(String url, String user, String password) {
-			allConnections = new LockableList<Connection>(new LinkedList<Connection>());
-			taken = new AtomicInteger(0);
-			exceptions = new ThreadLocal<SQLException>();
+		public ConnectionPool(String url, String user, String password, int maxSize, long checkoutTimeout, long idleTimeout, long validationInterval, int statementCacheSize) {
 			this.url = url;
 			this.user = user;
 			this.password = password;
+			this.maxSize = maxSize;
+			this.checkoutTimeout = checkoutTimeout;
+			this.idleTimeout = idleTimeout;
+			this.validationInterval = validationInterval;
+			this.statementCacheSize = statementCacheSize;
+			permits = new Semaphore(maxSize, true);
+			available = new LinkedBlockingDeque<PooledConnection>();
+			allConnections = new LockableList<PooledConnection>(new LinkedList<PooledConnection>());
+			held = new ThreadLocal<PooledConnection>();
+			taken = new AtomicInteger(0);
+			checkouts = new AtomicLong(0);
+			timeouts = new AtomicLong(0);
+			waitTime = new AtomicLong(0);
+			maxWaitTime = new AtomicLong(0);
+			created = new AtomicLong(0);
+			evicted = new AtomicLong(0);
+			statementHits = new AtomicLong(0);
+			statementMisses = new AtomicLong(0);
 		}
 
-		@Override
-		protected Connection initialValue() {
+		private void recordWait(long nanos) {
+			waitTime.addAndGet(nanos);
+			long max;
+			do {
+				max = maxWaitTime.get();
+			} while (nanos > max && !maxWaitTime.compareAndSet(max, nanos));
+		}
+
+		private void evict(PooledConnection con) {
+			evicted.incrementAndGet();
 			try {
-				Connection con = DriverManager.getConnection(url, user, password);
-				allConnections.addWhenSafe(con);
-				return con;
+				con.destroy();
 			} catch (SQLException e) {
-				exceptions.set(/*new SQLException("Could not connect to database.", */e/*)*/);
-				return null;
+				LOG.log(Level.FINE, "Could not close evicted connection to database", e);
 			}
 		}
 
-		private Connection tryGetConnection() throws SQLException {
-			Connection con = get();
-			if (con == null) {
-				remove();
-				SQLException ex = exceptions.get();
-				exceptions.remove();
-				throw ex;
+		private PooledConnection takeAvailable() {
+			PooledConnection con;
+			while ((con = available.pollFirst()) != null) {
+				//don't bother asking the database server whether a connection
+				//that was used just a moment ago is still alive
+				if (System.currentTimeMillis() - con.lastAlive < validationInterval || con.validate())
+					return con;
+				evict(con);
 			}
-			return con;
+			return null;
 		}
 
-		@Override
 		public Connection getConnection() throws SQLException {
-			Connection con = tryGetConnection();
-			if (!con.isValid(0)) {
+			if (closed)
+				throw new SQLException("Database pool has been closed.");
+			PooledConnection con = held.get();
+			if (con != null) {
+				//a nested checkout, e.g. a helper that gets its own connection
+				//while its caller's connection is still open. taking a second
+				//connection here could deadlock once every connection in the
+				//pool is held by a thread that is waiting for another one
+				if (con.owner == Thread.currentThread()) {
+					con.holds.incrementAndGet();
+					return con.proxy;
+				}
+				//the connection was returned by another thread
+				held.remove();
+			}
+			if (!permits.tryAcquire()) {
+				long start = System.nanoTime();
+				boolean acquired;
 				try {
-					con.close();
-					allConnections.removeWhenSafe(con);
-				} catch (SQLException e) {
-					throw new SQLException("Could not remove invalid connection to database.", e);
+					acquired = permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection to database.", e);
+				} finally {
+					recordWait(System.nanoTime() - start);
+				}
+				if (!acquired) {
+					timeouts.incrementAndGet();
+					throw new SQLException("Timed out after " + checkoutTimeout + "ms waiting for one of " + maxSize + " connections to database to be returned.");
 				}
-				remove();
-				con = tryGetConnection();
 			}
+			try {
+				con = takeAvailable();
+				if (con == null) {
+					con = new PooledConnection(this, DriverManager.getConnection(url, user, password));
+					allConnections.addWhenSafe(con);
+					created.incrementAndGet();
+				}
+			} catch (SQLException e) {
+				permits.release();
+				throw e;
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+			con.checkedOut.set(true);
+			con.holds.set(1);
+			con.owner = Thread.currentThread();
+			held.set(con);
 			taken.incrementAndGet();
-			return con;
+			checkouts.incrementAndGet();
+			return con.proxy;
 		}
 
-		@Override
 		public void returnConnection(Connection con) {
+			returnConnection((PooledConnection) Proxy.getInvocationHandler(con));
+		}
+
+		public void returnConnection(PooledConnection con) {
+			if (con.holds.decrementAndGet() > 0)
+				return; //still held by an outer checkout on the same thread
+			if (!con.checkedOut.compareAndSet(true, false))
+				return; //returned twice
+			if (con.owner == Thread.currentThread())
+				held.remove();
+			con.owner = null;
 			taken.decrementAndGet();
+			con.lastUsed = con.lastAlive = System.currentTimeMillis();
+			//the maintenance thread may have let an extra connection be created
+			//while it was validating an idle one
+			if (closed || allConnections.getSizeWhenSafe() > maxSize)
+				evict(con);
+			else
+				available.offerFirst(con);
+			permits.release();
 		}
 
-		@Override
-		public LockableList<Connection> allConnections() {
-			return allConnections;
+		/**
+		 * Closes connections that have not been used in a while and makes sure
+		 * that the remaining idle connections are still alive.
+		 */
+		public void maintain() {
+			long now = System.currentTimeMillis();
+			for (Iterator<PooledConnection> iter = available.descendingIterator(); iter.hasNext();) {
+				PooledConnection con = iter.next();
+				boolean expired = (now - con.lastUsed >= idleTimeout);
+				if (!expired && now - con.lastAlive < validationInterval)
+					continue;
+				//we have to own the connection before we can touch it
+				if (!available.removeLastOccurrence(con))
+					continue;
+				if (expired || !con.validate())
+					evict(con);
+				else if (closed || allConnections.getSizeWhenSafe() > maxSize)
+					evict(con);
+				else
+					available.offerLast(con);
+			}
+		}
+
+		public Map<Connection, SQLException> closeAll() {
+			closed = true;
+			available.clear();
+			Map<Connection, SQLException> exceptions = new HashMap<Connection, SQLException>();
+			allConnections.lockWrite();
+			try {
+				for (Iterator<PooledConnection> iter = allConnections.iterator(); iter.hasNext();) {
+					PooledConnection con = iter.next();
+					try {
+						con.closeStatements();
+						con.real.close();
+						iter.remove();
+					} catch (SQLException e) {
+						exceptions.put(con.real, e);
+					}
+				}
+			} finally {
+				allConnections.unlockWrite();
+			}
+			return exceptions;
 		}
 
-		@Override
 		public int connectionsInUse() {
 			return taken.get();
 		}
 
-		@Override
 		public int totalConnections() {
-			return allConnections.size();
+			return allConnections.getSizeWhenSafe();
 		}
 	}
 
-	private static class CachedConnectionPool implements ConnectionPool {
-		private final LockableList<Connection> allConnections;
-		private final Queue<Connection> available;
-		private final AtomicInteger taken;
-		private final String url, user, password;
+	private static class StatementKey {
+		private final String sql;
+		private final int autoGeneratedKeys;
 
-		protected CachedConnectionPool(String url, String user, String password) {
-			allConnections = new LockableList<Connection>(new LinkedList<Connection>());
-			available = new ConcurrentLinkedQueue<Connection>();
-			taken = new AtomicInteger(0);
-			this.url = url;
-			this.user = user;
-			this.password = password;
+		public StatementKey(String sql, int autoGeneratedKeys) {
+			this.sql = sql;
+			this.autoGeneratedKeys = autoGeneratedKeys;
 		}
 
 		@Override
-		public Connection getConnection() throws SQLException {
-			Connection next = available.poll();
-			while (next != null && !next.isValid(0)) {
-				try {
-					next.close();
-					allConnections.removeWhenSafe(next);
-				} catch (SQLException e) {
-					throw new SQLException("Could not remove invalid connection to database.", e);
+		public boolean equals(Object o) {
+			if (!(o instanceof StatementKey))
+				return false;
+			StatementKey other = (StatementKey) o;
+			return other.autoGeneratedKeys == autoGeneratedKeys && other.sql.equals(sql);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * sql.hashCode() + autoGeneratedKeys;
+		}
+	}
+
+	/**
+	 * Handles calls to the Connection that is given to callers of
+	 * getConnection(). Closing the Connection returns it to the pool, and
+	 * PreparedStatements are taken from this connection's statement cache if
+	 * possible.
+	 */
+	private static class PooledConnection implements InvocationHandler {
+		private final ConnectionPool pool;
+		private final Connection real;
+		private final Connection proxy;
+		//statements that are not in use, least recently used first
+		private final Map<StatementKey, PreparedStatement> statements;
+		private final AtomicBoolean checkedOut;
+		//how many times the owner has checked this out without returning it
+		private final AtomicInteger holds;
+		private volatile Thread owner;
+		private volatile long lastUsed, lastAlive;
+		private boolean destroyed;
+
+		public PooledConnection(ConnectionPool pool, Connection real) {
+			this.pool = pool;
+			this.real = real;
+			this.proxy = (Connection) Proxy.newProxyInstance(DatabaseManager.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+			final int cacheSize = pool.statementCacheSize;
+			this.statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = -2893512633428451373L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+					if (size() <= cacheSize)
+						return false;
+					closeQuietly(eldest.getValue());
+					return true;
 				}
-				next = available.poll();
+			};
+			this.checkedOut = new AtomicBoolean(false);
+			this.holds = new AtomicInteger(0);
+			this.lastUsed = this.lastAlive = System.currentTimeMillis();
+		}
+
+		private static void closeQuietly(Statement ps) {
+			try {
+				ps.close();
+			} catch (SQLException e) {
 			}
-			if (next == null) {
-				next = DriverManager.getConnection(url, user, password);
-				allConnections.addWhenSafe(next);
+		}
+
+		public boolean validate() {
+			try {
+				if (!real.isValid(VALIDATION_TIMEOUT))
+					return false;
+			} catch (SQLException e) {
+				return false;
 			}
-			taken.incrementAndGet();
-			return next;
+			lastAlive = System.currentTimeMillis();
+			return true;
 		}
 
-		@Override
-		public void returnConnection(Connection con) {
-			available.offer(con);
-			taken.decrementAndGet();
+		public void destroy() throws SQLException {
+			pool.allConnections.removeWhenSafe(this);
+			closeStatements();
+			real.close();
 		}
 
-		@Override
-		public LockableList<Connection> allConnections() {
-			return allConnections;
+		public synchronized void closeStatements() {
+			destroyed = true;
+			for (PreparedStatement ps : statements.values())
+				closeQuietly(ps);
+			statements.clear();
+		}
+
+		private PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+			StatementKey key = new StatementKey(sql, autoGeneratedKeys);
+			PreparedStatement ps;
+			synchronized (this) {
+				ps = statements.remove(key);
+			}
+			if (ps != null) {
+				pool.statementHits.incrementAndGet();
+			} else {
+				pool.statementMisses.incrementAndGet();
+				if (autoGeneratedKeys == Statement.NO_GENERATED_KEYS)
+					ps = real.prepareStatement(sql);
+				else
+					ps = real.prepareStatement(sql, autoGeneratedKeys);
+			}
+			return (PreparedStatement) Proxy.newProxyInstance(DatabaseManager.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new CachedStatement(this, key, ps));
+		}
+
+		public void returnStatement(StatementKey key, PreparedStatement ps) {
+			try {
+				ps.clearParameters();
+				ps.clearBatch();
+			} catch (SQLException e) {
+				closeQuietly(ps);
+				return;
+			}
+			synchronized (this) {
+				if (destroyed || statements.containsKey(key))
+					closeQuietly(ps);
+				else
+					statements.put(key, ps);
+			}
 		}
 
 		@Override
-		public int connectionsInUse() {
-			return taken.get(); //should = available.size()
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				pool.returnConnection(this);
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return Boolean.valueOf(!checkedOut.get() || real.isClosed());
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("toString"))
+				return "Pooled " + real;
+			if (!checkedOut.get())
+				throw new SQLException("Connection has already been returned to the pool.");
+			if (name.equals("prepareStatement") && pool.statementCacheSize > 0) {
+				Class<?>[] params = method.getParameterTypes();
+				if (params.length == 1)
+					return prepareStatement((String) args[0], Statement.NO_GENERATED_KEYS);
+				if (params.length == 2 && params[1] == int.class)
+					return prepareStatement((String) args[0], ((Integer) args[1]).intValue());
+			}
+			return DatabaseManager.invoke(real, method, args);
+		}
+	}
+
+	/**
+	 * Handles calls to a PreparedStatement that was taken from a connection's
+	 * statement cache. Closing the statement returns it to the cache.
+	 */
+	private static class CachedStatement implements InvocationHandler {
+		private final PooledConnection owner;
+		private final StatementKey key;
+		private final PreparedStatement real;
+		private boolean closed;
+
+		public CachedStatement(PooledConnection owner, StatementKey key, PreparedStatement real) {
+			this.owner = owner;
+			this.key = key;
+			this.real = real;
 		}
 
 		@Override
-		public int totalConnections() {
-			return allConnections.getSizeWhenSafe();
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					owner.returnStatement(key, real);
+				}
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return Boolean.valueOf(closed);
+			if (name.equals("getConnection"))
+				return owner.proxy;
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("toString"))
+				return real.toString();
+			if (closed)
+				throw new SQLException("Statement has already been closed.");
+			return DatabaseManager.invoke(real, method, args);
 		}
 	}
 
@@ -0,0 +1,240 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves database writes off of the threads that request them, e.g. packet
+ * workers, onto a few dedicated writer threads.
+ *
+ * Each write is submitted with a key that identifies the entity that it saves.
+ * While a write for a key is waiting for a writer thread, any more writes
+ * submitted with the same key are dropped, so an entity that is changed many
+ * times in a row is only written once. For that to be correct, a Write must
+ * save the current state of its entity when it is committed, rather than the
+ * state that the entity was in when the Write was submitted. Writes are not
+ * ordered with respect to each other, and the entity must make sure that two
+ * commits of it do not overlap (e.g. LoggedInPlayer's save lock).
+ *
+ * Code that needs a write to have reached the database before it continues
+ * (e.g. saving a character before it changes channels, so that the next
+ * channel loads the latest state) must still write synchronously, and make
+ * sure that any queued write of the same entity does not overwrite it.
+ */
+public class WriteBehindQueue {
+	private static final Logger LOG = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	/**
+	 * The most keys that a writer thread takes off of the queue at once.
+	 */
+	private static final int GROUP_SIZE = 32;
+
+	public interface Write {
+		/**
+		 * Writes the current state of the entity to the database.
+		 * @return false if the write failed.
+		 */
+		public boolean commit();
+	}
+
+	private static class Pending {
+		private final Write write;
+		private final long submitted;
+
+		public Pending(Write write) {
+			this.write = write;
+			this.submitted = System.nanoTime();
+		}
+	}
+
+	private static final Object STOP = new Object();
+
+	private final ConcurrentMap<Object, Pending> pending;
+	private final BlockingQueue<Object> ready;
+	private final Thread[] writers;
+	private volatile boolean stopped;
+
+	private final AtomicLong submitted, coalesced, committed, failed, totalLatency, maxLatency;
+
+	public WriteBehindQueue(String name, int threads) {
+		pending = new ConcurrentHashMap<Object, Pending>();
+		ready = new LinkedBlockingQueue<Object>();
+		submitted = new AtomicLong(0);
+		coalesced = new AtomicLong(0);
+		committed = new AtomicLong(0);
+		failed = new AtomicLong(0);
+		totalLatency = new AtomicLong(0);
+		maxLatency = new AtomicLong(0);
+		writers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			writers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, name + "-writer-thread-" + (i + 1));
+			writers[i].start();
+		}
+	}
+
+	private void commit(Pending p) {
+		boolean success;
+		try {
+			success = p.write.commit();
+		} catch (Throwable ex) {
+			LOG.log(Level.WARNING, "Uncaught exception in queued write", ex);
+			success = false;
+		}
+		long latency = System.nanoTime() - p.submitted;
+		totalLatency.addAndGet(latency);
+		long max;
+		do {
+			max = maxLatency.get();
+		} while (latency > max && !maxLatency.compareAndSet(max, latency));
+		if (success)
+			committed.incrementAndGet();
+		else
+			failed.incrementAndGet();
+	}
+
+	private void drain() {
+		List<Object> group = new ArrayList<Object>(GROUP_SIZE);
+		while (true) {
+			try {
+				group.add(ready.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			ready.drainTo(group, GROUP_SIZE - 1);
+			for (Object key : group) {
+				if (key == STOP) {
+					//let the other writers see it too
+					ready.add(STOP);
+					//but finish our current group first
+					continue;
+				}
+				//remove before committing so that changes made during the
+				//commit are queued again rather than coalesced into it
+				Pending p = pending.remove(key);
+				if (p != null)
+					commit(p);
+			}
+			if (group.contains(STOP))
+				return;
+			group.clear();
+		}
+	}
+
+	/**
+	 * Queues a write of the entity identified by key, unless a write of the
+	 * entity is already waiting. Once the queue is shut down, the write is
+	 * committed on the calling thread instead.
+	 * @param key
+	 * @param write
+	 */
+	public void submit(Object key, Write write) {
+		submitted.incrementAndGet();
+		if (stopped) {
+			commit(new Pending(write));
+			return;
+		}
+		if (pending.putIfAbsent(key, new Pending(write)) != null) {
+			coalesced.incrementAndGet();
+			return;
+		}
+		ready.add(key);
+	}
+
+	/**
+	 * Commits every write that is still waiting and stops the writer threads.
+	 * Writes that are submitted after this is called are committed on the
+	 * submitting thread.
+	 */
+	public void shutdown() {
+		stopped = true;
+		ready.add(STOP);
+		for (Thread writer : writers) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		//writes that were added to pending before stopped was visible to them
+		//but that missed the writer threads
+		for (Object key : pending.keySet()) {
+			Pending p = pending.remove(key);
+			if (p != null)
+				commit(p);
+		}
+	}
+
+	/**
+	 * @return the amount of entities that are waiting to be written.
+	 */
+	public int getDepth() {
+		return pending.size();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the amount of writes that were dropped because a write of the
+	 * same entity was already waiting.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getCommittedCount() {
+		return committed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the total time between submitting and finishing each write, in
+	 * nanoseconds.
+	 */
+	public long getTotalLatency() {
+		return totalLatency.get();
+	}
+
+	/**
+	 * @return the longest time between submitting and finishing a write, in
+	 * nanoseconds.
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.util.input;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads straight out of a ByteBuffer, e.g. a memory mapped file, so that
+ * multiple-byte integers and strings are decoded without first being copied
+ * into a temporary array.
+ */
+public class LittleEndianByteBufferReader extends LittleEndianReader {
+	/**
+	 * Files at least this large are memory mapped by open(File). Smaller ones
+	 * are read onto the heap in one go, since each mapping costs a system
+	 * call and a page of address space that is only given back once the
+	 * buffer is garbage collected, and there are tens of thousands of small
+	 * KVJ files.
+	 */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	private ByteBuffer buf;
+
+	/**
+	 *
+	 * @param buf will be read from its position to its limit. Its byte order
+	 * will be changed to little endian.
+	 */
+	public LittleEndianByteBufferReader(ByteBuffer buf) {
+		this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Opens the given file for reading, memory mapping it if it is large.
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static LittleEndianByteBufferReader open(File f) throws IOException {
+		FileInputStream is = new FileInputStream(f);
+		try {
+			FileChannel channel = is.getChannel();
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("File is too large to be stored in a byte buffer");
+			ByteBuffer buf;
+			if (length >= MAP_THRESHOLD) {
+				//stays valid after the channel is closed
+				buf = channel.map(MapMode.READ_ONLY, 0, length);
+			} else {
+				buf = ByteBuffer.allocate((int) length);
+				while (buf.hasRemaining())
+					if (channel.read(buf) < 0)
+						throw new IOException("Unable to completely read file " + f.getName() + ". Read " + buf.position() + " out of " + length + " bytes.");
+				buf.flip();
+			}
+			return new LittleEndianByteBufferReader(buf);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	protected int read() {
+		if (!buf.hasRemaining())
+			return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	protected byte[] read(int amount) {
+		byte[] ret = new byte[amount];
+		buf.get(ret, 0, Math.min(available(), amount));
+		return ret;
+	}
+
+	@Override
+	public void skip(int amount) {
+		buf.position(Math.min(buf.position() + amount, buf.limit()));
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+	@Override
+	public void dispose() {
+		buf = null;
+	}
+
+	@Override
+	public long readLong() {
+		return buf.getLong();
+	}
+
+	@Override
+	public int readInt() {
+		return buf.getInt();
+	}
+
+	@Override
+	public short readShort() {
+		return buf.getShort();
+	}
+
+	@Override
+	public float readFloat() {
+		return buf.getFloat();
+	}
+
+	@Override
+	public double readDouble() {
+		return buf.getDouble();
+	}
+
+	private String readKnownLengthAsciiString(int n) {
+		char[] ret = new char[n];
+		for (int x = 0; x < n; x++)
+			ret[x] = (char) buf.get();
+		return String.valueOf(ret);
+	}
+
+	@Override
+	public String readPaddedAsciiString(int n) {
+		return readKnownLengthAsciiString(n);
+	}
+
+	@Override
+	public String readLengthPrefixedString() {
+		return readKnownLengthAsciiString(readShort() & 0xFFFF);
+	}
+}
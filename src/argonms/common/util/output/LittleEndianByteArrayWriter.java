@@ -21,14 +21,24 @@ package argonms.common.util.output;
 import argonms.common.util.HexTool;
 
 /**
+ * Writes little endian data into a byte array that grows as needed.
  *
+ * Primitives are stored straight into the array after a single bounds check,
+ * rather than going through a temporary array. Packet builders that know, or can estimate, how long
+ * their packet will be should pass that to the constructor: if the estimate is
+ * exact, getBytes() hands out the array without copying it, and if it is
+ * close, the array grows at most once.
  * @author GoldenKevin
- * @version 1.1
+ * @version 1.2
  */
 public class LittleEndianByteArrayWriter extends LittleEndianWriter {
 	private byte[] data;
 	private int index;
 
+	/**
+	 *
+	 * @param size the amount of bytes that will probably be written.
+	 */
 	public LittleEndianByteArrayWriter(int size) {
 		this.data = new byte[size];
 		this.index = 0;
@@ -38,26 +48,29 @@ public class LittleEndianByteArrayWriter extends LittleEndianWriter {
 		this(32);
 	}
 
-	private void grow(int min) {
-		int increase = Math.max(data.length / 2, min);
-		byte[] copy = new byte[data.length + increase];
+	/**
+	 * Makes sure that there is room for the given amount of bytes after the
+	 * ones that were already written.
+	 * @param length
+	 */
+	private void ensureCapacity(int length) {
+		if (index + length <= data.length)
+			return;
+
+		byte[] copy = new byte[Math.max(data.length * 2, index + length)];
 		System.arraycopy(data, 0, copy, 0, index);
 		data = copy;
 	}
 
 	@Override
 	public void write(byte b) {
-		if (index == data.length)
-			grow(1);
-
+		ensureCapacity(1);
 		data[index++] = b;
 	}
 
 	@Override
 	public void write(byte... bytes) {
-		if (index + bytes.length >= data.length + 1)
-			grow(bytes.length);
-
+		ensureCapacity(bytes.length);
 		System.arraycopy(bytes, 0, data, index, bytes.length);
 		index += bytes.length;
 	}
@@ -67,22 +80,51 @@ public class LittleEndianByteArrayWriter extends LittleEndianWriter {
 		data = null;
 	}
 
+	@Override
+	public LittleEndianWriter writeLong(long l) {
+		ensureCapacity(8);
+		data[index++] = (byte) (l & 0xFF);
+		data[index++] = (byte) ((l >>> 8) & 0xFF);
+		data[index++] = (byte) ((l >>> 16) & 0xFF);
+		data[index++] = (byte) ((l >>> 24) & 0xFF);
+		data[index++] = (byte) ((l >>> 32) & 0xFF);
+		data[index++] = (byte) ((l >>> 40) & 0xFF);
+		data[index++] = (byte) ((l >>> 48) & 0xFF);
+		data[index++] = (byte) ((l >>> 56) & 0xFF);
+		return this;
+	}
+
 	@Override
 	public LittleEndianWriter writeInt(int i) {
-		write((byte) (i & 0xFF));
-		write((byte) ((i >>> 8) & 0xFF));
-		write((byte) ((i >>> 16) & 0xFF));
-		write((byte) ((i >>> 24) & 0xFF));
+		ensureCapacity(4);
+		data[index++] = (byte) (i & 0xFF);
+		data[index++] = (byte) ((i >>> 8) & 0xFF);
+		data[index++] = (byte) ((i >>> 16) & 0xFF);
+		data[index++] = (byte) ((i >>> 24) & 0xFF);
 		return this;
 	}
 
 	@Override
 	public LittleEndianWriter writeShort(short s) {
-		write((byte) (s & 0xFF));
-		write((byte) ((s >>> 8) & 0xFF));
+		ensureCapacity(2);
+		data[index++] = (byte) (s & 0xFF);
+		data[index++] = (byte) ((s >>> 8) & 0xFF);
 		return this;
 	}
 
+	/**
+	 * @return the amount of bytes that have been written so far.
+	 */
+	public int length() {
+		return index;
+	}
+
+	/**
+	 * Returns the bytes that have been written so far. If exactly as many
+	 * bytes were written as the array has room for, the array itself is
+	 * returned rather than a copy, so nothing may be written afterwards.
+	 * @return
+	 */
 	public byte[] getBytes() {
 		if (index == data.length)
 			return data;
@@ -21,17 +21,22 @@ package argonms.game;
 import argonms.common.GlobalConstants;
 import argonms.common.LocalServer;
 import argonms.common.ServerType;
+import argonms.common.character.PlayerAutosaver;
 import argonms.common.loading.DataFileType;
 import argonms.common.loading.item.ItemDataLoader;
 import argonms.common.loading.string.StringDataLoader;
 import argonms.common.net.external.CheatTracker;
+import argonms.common.net.external.ClientEncryption;
+import argonms.common.net.external.ClientSession;
 import argonms.common.net.external.CommonPackets;
 import argonms.common.net.external.RemoteClient;
 import argonms.common.net.internal.RemoteCenterSession;
 import argonms.common.util.DatabaseManager;
 import argonms.common.util.DatabaseManager.DatabaseType;
 import argonms.common.util.Scheduler;
+import argonms.common.util.WriteBehindQueue;
 import argonms.game.character.GameCharacter;
+import argonms.game.character.ShutdownSpill;
 import argonms.game.loading.beauty.BeautyDataLoader;
 import argonms.game.loading.map.MapDataLoader;
 import argonms.game.loading.mob.MobDataLoader;
@@ -46,6 +51,7 @@ import argonms.game.net.internal.GameCenterInterface;
 import argonms.game.script.NpcScriptManager;
 import argonms.game.script.PortalScriptManager;
 import argonms.game.script.ReactorScriptManager;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -61,9 +67,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -85,7 +101,14 @@ public class GameServer implements LocalServer {
 	private DataFileType wzType;
 	private String wzPath, scriptsPath;
 	private String[] initialEvents;
-	private boolean useNio;
+	private int ioThreads;
+	private long autosaveInterval;
+	private int autosaveThreads;
+	private PlayerAutosaver autosaver;
+	private int writeBehindThreads;
+	private long mapIdleTime;
+	private WriteBehindQueue writeBehind;
+	private File spillDir;
 	private boolean centerConnected;
 	private final GameRegistry registry;
 	private final Map<Byte, Set<Byte>> remoteGameChannelMapping;
@@ -125,7 +148,14 @@ public class GameServer implements LocalServer {
 			centerIp = prop.getProperty("argonms.game." + serverId + ".center.ip");
 			centerPort = Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".center.port"));
 			authKey = prop.getProperty("argonms.game." + serverId + ".auth.key");
-			useNio = Boolean.parseBoolean(prop.getProperty("argonms.game." + serverId + ".usenio"));
+			ioThreads = Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".iothreads", "1"));
+			ClientEncryption.setUseJce(Boolean.parseBoolean(prop.getProperty("argonms.game." + serverId + ".crypto.jce")));
+			autosaveInterval = Long.parseLong(prop.getProperty("argonms.game." + serverId + ".autosave", "300")) * 1000;
+			autosaveThreads = Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".autosave.threads", "2"));
+			writeBehindThreads = Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".writebehind.threads", "2"));
+			mapIdleTime = Long.parseLong(prop.getProperty("argonms.game." + serverId + ".map.idletime", "10")) * 60 * 1000;
+			String spillPath = prop.getProperty("argonms.game." + serverId + ".shutdown.spill", "").trim();
+			spillDir = spillPath.isEmpty() ? null : new File(spillPath);
 
 			registry.setExpRate(Short.parseShort(prop.getProperty("argonms.game." + serverId + ".exprate")));
 			registry.setMesoRate(Short.parseShort(prop.getProperty("argonms.game." + serverId + ".mesorate")));
@@ -157,7 +187,7 @@ public class GameServer implements LocalServer {
 		channels = new HashMap<Byte, WorldChannel>(chList.length);
 		for (int i = 0; i < chList.length; i++) {
 			byte chNum = Byte.parseByte(chList[i]);
-			WorldChannel ch = new WorldChannel(world, chNum, Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".channel." + chNum + ".port")));
+			WorldChannel ch = new WorldChannel(world, chNum, Integer.parseInt(prop.getProperty("argonms.game." + serverId + ".channel." + chNum + ".port")), ioThreads);
 			ch.createWorldComm();
 			channels.put(Byte.valueOf(chNum), ch);
 		}
@@ -173,7 +203,7 @@ public class GameServer implements LocalServer {
 			FileReader fr = new FileReader(System.getProperty("argonms.db.config.file", "db.properties"));
 			prop.load(fr);
 			fr.close();
-			DatabaseManager.setProps(prop, mcdb, useNio);
+			DatabaseManager.setProps(prop, mcdb);
 		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "Could not load database properties!", ex);
 			System.exit(3);
@@ -229,6 +259,10 @@ public class GameServer implements LocalServer {
 		}
 
 		Scheduler.enable(true, true);
+		autosaver = new PlayerAutosaver(autosaveInterval, autosaveThreads);
+		writeBehind = new WriteBehindQueue("game", writeBehindThreads);
+		if (spillDir != null)
+			ShutdownSpill.replay(spillDir, world);
 
 		gci = new GameCenterInterface(serverId, world, this);
 		RemoteCenterSession<GameCenterInterface> session = RemoteCenterSession.connect(centerIp, centerPort, authKey, gci);
@@ -236,9 +270,38 @@ public class GameServer implements LocalServer {
 			session.awaitClose();
 			LOG.log(Level.SEVERE, "Lost connection with center server!");
 		}
+		writeBehind.shutdown();
 		System.exit(4); //connection with center server lost before we were able to shutdown
 	}
 
+	/**
+	 * Loads one kind of data on the given pool, after the data that it
+	 * depends on is loaded, and prints how long it took.
+	 * @param pool
+	 * @param name
+	 * @param dependency the result of the data that must be loaded first, or
+	 * null if this data does not depend on any other data.
+	 * @param loader calls loadAll() on the data loader.
+	 * @return
+	 */
+	private static Future<Boolean> preload(ExecutorService pool, final String name, final Future<Boolean> dependency, final Callable<Boolean> loader) {
+		return pool.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				if (dependency != null)
+					dependency.get();
+				long start = System.nanoTime();
+				Boolean success = loader.call();
+				double time = (System.nanoTime() - start) / 1000000.0;
+				if (success.booleanValue())
+					System.out.println("Loaded " + name + " data in " + time + "ms.");
+				else
+					System.out.println("Could not load all " + name + " data (" + time + "ms).");
+				return success;
+			}
+		});
+	}
+
 	private void initializeData(boolean preloadAll, DataFileType wzType, String wzPath) {
 		StringDataLoader.setInstance(wzType, wzPath);
 		QuestDataLoader.setInstance(wzType, wzPath);
@@ -253,42 +316,95 @@ public class GameServer implements LocalServer {
 		NpcScriptManager.setInstance(scriptsPath);
 		PortalScriptManager.setInstance(scriptsPath);
 		ReactorScriptManager.setInstance(scriptsPath);
-		long start, end;
-		start = System.nanoTime();
-		System.out.print("Loading String data...");
-		StringDataLoader.getInstance().loadAll();
-		System.out.println("\tDone!");
-		System.out.print("Loading Quest data...");
-		QuestDataLoader.getInstance().loadAll();
-		System.out.println("\tDone!");
-		System.out.print("Loading Beauty data...");
-		BeautyDataLoader.getInstance().loadAll();
-		System.out.println("\tDone!");
+		long start = System.nanoTime();
+		//data that other data does not depend on loads concurrently
+		ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "data-preloader-thread-" + threadNumber.getAndIncrement());
+			}
+		});
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		results.add(preload(pool, "String", null, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return Boolean.valueOf(StringDataLoader.getInstance().loadAll());
+			}
+		}));
+		results.add(preload(pool, "Quest", null, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return Boolean.valueOf(QuestDataLoader.getInstance().loadAll());
+			}
+		}));
+		results.add(preload(pool, "Beauty", null, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return Boolean.valueOf(BeautyDataLoader.getInstance().loadAll());
+			}
+		}));
 		if (preloadAll) {
-			System.out.print("Loading Skill data...");
-			SkillDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Reactor data...");
-			ReactorDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Mob data...");
-			MobDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Item data...");
-			ItemDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Map data...");
-			MapDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Shop data...");
-			NpcShopDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
-			System.out.print("Loading Storage data...");
-			NpcDataLoader.getInstance().loadAll();
-			System.out.println("\tDone!");
+			results.add(preload(pool, "Skill", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(SkillDataLoader.getInstance().loadAll());
+				}
+			}));
+			results.add(preload(pool, "Reactor", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(ReactorDataLoader.getInstance().loadAll());
+				}
+			}));
+			results.add(preload(pool, "Mob", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(MobDataLoader.getInstance().loadAll());
+				}
+			}));
+			Future<Boolean> items = preload(pool, "Item", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(ItemDataLoader.getInstance().loadAll());
+				}
+			});
+			results.add(items);
+			results.add(preload(pool, "Map", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(MapDataLoader.getInstance().loadAll());
+				}
+			}));
+			//shops look up the unit prices of rechargeable items
+			results.add(preload(pool, "Shop", items, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(NpcShopDataLoader.getInstance().loadAll());
+				}
+			}));
+			results.add(preload(pool, "Storage", null, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return Boolean.valueOf(NpcDataLoader.getInstance().loadAll());
+				}
+			}));
 		}
-		end = System.nanoTime();
-		System.out.println("Preloaded data in " + ((end - start) / 1000000.0) + "ms.");
+		try {
+			for (Future<Boolean> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					LOG.log(Level.SEVERE, "Could not preload data", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println("Preloaded data in " + ((System.nanoTime() - start) / 1000000.0) + "ms.");
 		for (WorldChannel ch : channels.values())
 			ch.initializeEventManager(scriptsPath, initialEvents);
 	}
@@ -303,7 +419,7 @@ public class GameServer implements LocalServer {
 				initializeData(preloadAll, wzType, wzPath);
 				boolean doingWork = false;
 				for (WorldChannel ch : channels.values()) {
-					ch.listen(useNio);
+					ch.listen();
 					if (ch.getPort() != -1)
 						doingWork = true;
 				}
@@ -397,16 +513,100 @@ public class GameServer implements LocalServer {
 	}
 
 	public void serverWideMessage(byte style, String message) {
-		byte[] packet = CommonPackets.writeServerMessage(style, message, (byte) -1, true);
+		byte[] packet = ClientSession.prepareBroadcast(CommonPackets.writeServerMessage(style, message, (byte) -1, true));
 		for (WorldChannel chn : GameServer.getInstance().getChannels().values())
 			for (GameCharacter p : chn.getConnectedPlayers())
-				p.getClient().getSession().send(packet);
+				p.getClient().getSession().sendMapleEncrypted(packet);
 	}
 
 	public GameRegistry getRegistry() {
 		return registry;
 	}
 
+	public PlayerAutosaver getAutosaver() {
+		return autosaver;
+	}
+
+	public WriteBehindQueue getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * @return the amount of milliseconds that a map has to be empty before
+	 * it is unloaded, or 0 if maps are never unloaded.
+	 */
+	public long getMapIdleTime() {
+		return mapIdleTime;
+	}
+
+	/**
+	 * Saves the given characters on as many threads as there are connections
+	 * in the database pool, and spills any characters that could not be saved
+	 * even after a second attempt to local files if that is configured.
+	 * @param toSave
+	 */
+	private void saveAll(List<GameCharacter> toSave) {
+		if (toSave.isEmpty())
+			return;
+
+		final Queue<GameCharacter> failed = new ConcurrentLinkedQueue<GameCharacter>();
+		final AtomicInteger saved = new AtomicInteger(0);
+		int threads = Math.max(Math.min(DatabaseManager.getMaxConnections(DatabaseType.STATE), toSave.size()), 1);
+		ExecutorService savers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "shutdown-save-thread-" + threadNumber.getAndIncrement());
+			}
+		});
+		long start = System.nanoTime();
+		for (final GameCharacter p : toSave) {
+			savers.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean success;
+					try {
+						//one more try before we give up on the database
+						success = p.saveCharacter() || p.saveCharacter();
+					} catch (Throwable ex) {
+						LOG.log(Level.WARNING, "Uncaught exception while saving character " + p.getDataId(), ex);
+						success = false;
+					}
+					if (success)
+						saved.incrementAndGet();
+					else
+						failed.add(p);
+				}
+			});
+		}
+		savers.shutdown();
+		LOG.log(Level.INFO, "Saving {0} characters on {1} threads...", new Object[] { toSave.size(), threads });
+		try {
+			while (!savers.awaitTermination(1, TimeUnit.SECONDS))
+				LOG.log(Level.INFO, "Saved {0} of {1} characters ({2} failed)",
+						new Object[] { saved.get(), toSave.size(), failed.size() });
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			savers.shutdownNow();
+		}
+		LOG.log(failed.isEmpty() ? Level.INFO : Level.SEVERE, "Saved {0} of {1} characters in {2}ms. {3} could not be saved.",
+				new Object[] { saved.get(), toSave.size(), (System.nanoTime() - start) / 1000000, failed.size() });
+		if (failed.isEmpty())
+			return;
+
+		StringBuilder names = new StringBuilder();
+		for (GameCharacter p : failed)
+			names.append(p.getName()).append(" (").append(p.getDataId()).append("), ");
+		names.setLength(names.length() - 2);
+		LOG.log(Level.SEVERE, "Could not save {0}", names);
+		if (spillDir != null) {
+			int spilled = ShutdownSpill.write(spillDir, failed);
+			LOG.log(spilled == failed.size() ? Level.INFO : Level.SEVERE, "Spilled {0} of {1} unsaved characters to {2}",
+					new Object[] { spilled, failed.size(), spillDir });
+		}
+	}
+
 	private void terminate(boolean halt) {
 		terminated = true;
 		List<GameCharacter> toSave = new ArrayList<GameCharacter>();
@@ -417,12 +617,14 @@ public class GameServer implements LocalServer {
 				toSave.add(p);
 			}
 		}
+		saveAll(toSave);
 		for (GameCharacter p : toSave) {
-			p.saveCharacter();
 			p.getClient().updateState(RemoteClient.STATUS_NOTLOGGEDIN);
 			p.disconnect();
 		}
 		if (halt) {
+			autosaver.shutdown();
+			writeBehind.shutdown();
 			Scheduler.getInstance().shutdown();
 			Scheduler.getWheelTimer().shutdown();
 			gci.getSession().close("Halt");
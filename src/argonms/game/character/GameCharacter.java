@@ -38,7 +38,9 @@ import argonms.common.character.inventory.Inventory;
 import argonms.common.character.inventory.Inventory.InventoryType;
 import argonms.common.character.inventory.InventorySlot;
 import argonms.common.character.inventory.InventoryTools;
+import argonms.common.character.inventory.Item;
 import argonms.common.character.inventory.Pet;
+import argonms.common.character.inventory.Ring;
 import argonms.common.character.inventory.TamingMob;
 import argonms.common.loading.StatusEffectsData;
 import argonms.common.loading.item.ItemDataLoader;
@@ -50,6 +52,10 @@ import argonms.common.util.Rng;
 import argonms.common.util.Scheduler;
 import argonms.common.util.collections.LockableList;
 import argonms.common.util.collections.Pair;
+import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianReader;
+import argonms.common.util.output.LittleEndianByteArrayWriter;
+import argonms.common.util.output.LittleEndianWriter;
 import argonms.game.GameServer;
 import argonms.game.character.inventory.PetTools;
 import argonms.game.character.inventory.StorageInventory;
@@ -69,6 +75,7 @@ import argonms.game.loading.quest.QuestItemStats;
 import argonms.game.loading.skill.SkillDataLoader;
 import argonms.game.net.external.GameClient;
 import argonms.game.net.external.GamePackets;
+import argonms.game.net.internal.CrossServerSynchronization;
 import argonms.game.script.EventManipulator;
 import java.awt.Point;
 import java.lang.ref.WeakReference;
@@ -78,6 +85,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.EnumMap;
@@ -90,13 +98,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -107,6 +122,71 @@ import java.util.logging.Logger;
 public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	private static final Logger LOG = Logger.getLogger(GameCharacter.class.getName());
 
+	/**
+	 * Sections of the character that are only ever changed by methods of this
+	 * class, which mark the section as dirty so that saveCharacter() knows to
+	 * write it.
+	 */
+	private static final int
+		DIRTY_MAP_MEMORY = 1 << 0,
+		DIRTY_SKILLS = 1 << 1,
+		DIRTY_COOLDOWNS = 1 << 2,
+		DIRTY_BINDINGS = 1 << 3,
+		DIRTY_QUESTS = 1 << 4,
+		DIRTY_MINIGAME_STATS = 1 << 5,
+		DIRTY_FAME_LOG = 1 << 6
+	;
+
+	private static final AtomicLong sectionsWritten = new AtomicLong(0), sectionsSkipped = new AtomicLong(0);
+
+	/**
+	 * Parts of loadPlayer() whose time is measured separately.
+	 */
+	public enum LoadSection {
+		CHARACTER, INVENTORY, SKILLS, BUDDIES, QUESTS, OTHER,
+		/**
+		 * Only the time that loadPlayer() still had to wait for the party and
+		 * guild to be fetched from the center server after it finished with
+		 * the database. The rest of the fetch overlaps the other sections.
+		 */
+		GROUPS
+	}
+
+	private static final AtomicLong loads = new AtomicLong(0);
+	private static final AtomicLongArray loadTimes = new AtomicLongArray(LoadSection.values().length);
+
+	private static final AtomicLong lookHits = new AtomicLong(0), lookMisses = new AtomicLong(0);
+
+	/**
+	 * The parts of our SHOW_PLAYER message that only change with our look,
+	 * along with the look version that they were written at.
+	 */
+	private static class CachedLook {
+		private final int version;
+		private final byte[][] bytes;
+
+		public CachedLook(int version, byte[][] bytes) {
+			this.version = version;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Fetching a party or guild that no one on this channel is in yet blocks
+	 * on the center server, so do it while the rest of the character is being
+	 * loaded from the database.
+	 */
+	private static final ExecutorService groupFetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "group-fetch-thread-" + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	private Point pos;
 	/**
 	 * 1-byte bit field, with the flags (from most significant to least significant bits):
@@ -165,7 +245,23 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	private EventManipulator event;
 
+	private final AtomicInteger dirtySections;
+	//inventories, buddies, and party/guild memberships are changed by other
+	//classes, so instead of dirty flags, keep the rows that we last loaded
+	//or saved and compare them to what we would write now
+	private volatile byte[] savedInventory, savedBuddies, savedGroups;
+	//the characters row that we last loaded or saved, and the account's save
+	//count at that time, so that a snapshot of this character can tell if
+	//anyone else changed the row or saved anything else in the meantime
+	private volatile long[] savedStats;
+	private volatile int savedSaveCount;
+
+	private final AtomicInteger lookVersion;
+	private volatile CachedLook cachedLook;
+
 	private GameCharacter () {
+		dirtySections = new AtomicInteger(0);
+		lookVersion = new AtomicInteger(0);
 		nextTransientItemUniqueId = new AtomicLong(0); //first value is -1 because of decrementAndGet
 		petFullnessSchedules = new ScheduledFuture<?>[3];
 		petIgnoreItems = new ConcurrentHashMap<Long, int[]>();
@@ -210,7 +306,355 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		};
 	}
 
-	public void saveCharacter() {
+	private void markDirty(int sections) {
+		int old;
+		do {
+			old = dirtySections.get();
+		} while ((old & sections) != sections && !dirtySections.compareAndSet(old, old | sections));
+	}
+
+	private static boolean sectionChanged(boolean changed) {
+		if (changed)
+			sectionsWritten.incrementAndGet();
+		else
+			sectionsSkipped.incrementAndGet();
+		return changed;
+	}
+
+	private static boolean sectionChanged(int dirty, int section) {
+		return sectionChanged((dirty & section) != 0);
+	}
+
+	/**
+	 * Returns the amount of sections (inventory, skills, quests, etc.) that
+	 * were written to the database by saveCharacter() because they changed.
+	 * @return
+	 */
+	public static long getSectionsWritten() {
+		return sectionsWritten.get();
+	}
+
+	/**
+	 * Returns the amount of sections that saveCharacter() did not write to the
+	 * database because they were not changed since the previous save.
+	 * @return
+	 */
+	public static long getSectionsSkipped() {
+		return sectionsSkipped.get();
+	}
+
+	/**
+	 * Returns the amount of characters that were successfully loaded by
+	 * loadPlayer().
+	 * @return
+	 */
+	public static long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * Returns the amount of times that a SHOW_PLAYER message of anyone could
+	 * reuse the part of the message that describes their look.
+	 * @return
+	 */
+	public static long getLookCacheHits() {
+		return lookHits.get();
+	}
+
+	/**
+	 * Returns the amount of times that a SHOW_PLAYER message of anyone had to
+	 * write their look from scratch.
+	 * @return
+	 */
+	public static long getLookCacheMisses() {
+		return lookMisses.get();
+	}
+
+	/**
+	 * Returns the total time that loadPlayer() spent on the given section of
+	 * every successful load, in nanoseconds.
+	 * @param section
+	 * @return
+	 */
+	public static long getLoadTime(LoadSection section) {
+		return loadTimes.get(section.ordinal());
+	}
+
+	private static long recordLoadTime(LoadSection section, long start) {
+		long now = System.nanoTime();
+		loadTimes.addAndGet(section.ordinal(), now - start);
+		return now;
+	}
+
+	private static void fingerprintString(LittleEndianWriter lew, String str) {
+		if (str == null) {
+			lew.writeInt(-1);
+			return;
+		}
+		lew.writeInt(str.length());
+		for (int i = 0; i < str.length(); i++)
+			lew.writeShort((short) str.charAt(i));
+	}
+
+	private static void fingerprintEquip(LittleEndianWriter lew, Equip equip) {
+		lew.writeByte(equip.getUpgradeSlots());
+		lew.writeByte(equip.getLevel());
+		lew.writeShort(equip.getStr());
+		lew.writeShort(equip.getDex());
+		lew.writeShort(equip.getInt());
+		lew.writeShort(equip.getLuk());
+		lew.writeShort(equip.getHp());
+		lew.writeShort(equip.getMp());
+		lew.writeShort(equip.getWatk());
+		lew.writeShort(equip.getMatk());
+		lew.writeShort(equip.getWdef());
+		lew.writeShort(equip.getMdef());
+		lew.writeShort(equip.getAcc());
+		lew.writeShort(equip.getAvoid());
+		lew.writeShort(equip.getHands());
+		lew.writeShort(equip.getSpeed());
+		lew.writeShort(equip.getJump());
+	}
+
+	/**
+	 * Serializes everything that updateDbInventory() would write, in a form
+	 * that readInventoryFingerprint() can also turn back into items.
+	 */
+	private byte[] inventoryFingerprint() {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(4096);
+		EnumMap<InventoryType, IInventory> union = new EnumMap<InventoryType, IInventory>(getInventories());
+		union.put(InventoryType.STORAGE, storage);
+		Pet[] pets = getPets();
+		lew.writeByte((byte) union.size());
+		for (Entry<InventoryType, IInventory> ent : union.entrySet()) {
+			lew.writeByte(ent.getKey().byteValue());
+			Map<Short, InventorySlot> iv = ent.getValue().getAll();
+			synchronized(iv) {
+				lew.writeInt(iv.size());
+				for (Entry<Short, InventorySlot> e : iv.entrySet()) {
+					InventorySlot item = e.getValue();
+					lew.writeShort(e.getKey().shortValue());
+					lew.writeByte((byte) item.getType().ordinal());
+					lew.writeInt(item.getDataId());
+					lew.writeLong(item.getExpiration());
+					fingerprintString(lew, item.getOwner());
+					lew.writeShort(item.getQuantity());
+					lew.writeLong(item.getUniqueId());
+					switch (item.getType()) {
+						case RING: {
+							Ring ring = (Ring) item;
+							fingerprintEquip(lew, ring);
+							lew.writeInt(ring.getPartnerCharId());
+							lew.writeLong(ring.getPartnerRingId());
+							break;
+						}
+						case EQUIP:
+							fingerprintEquip(lew, (Equip) item);
+							break;
+						case PET: {
+							Pet pet = (Pet) item;
+							byte index = -1;
+							for (byte i = 0; i < pets.length && index == -1; i++)
+								if (pets[i] == pet)
+									index = i;
+							lew.writeByte(index);
+							fingerprintString(lew, pet.getName());
+							lew.writeByte(pet.getLevel());
+							lew.writeShort(pet.getCloseness());
+							lew.writeByte(pet.getFullness());
+							break;
+						}
+						case MOUNT: {
+							TamingMob mount = (TamingMob) item;
+							fingerprintEquip(lew, mount);
+							lew.writeByte(mount.getMountLevel());
+							lew.writeShort(mount.getExp());
+							lew.writeByte(mount.getTiredness());
+							break;
+						}
+					}
+				}
+			}
+		}
+		Map<Long, int[]> ignoreItems = new HashMap<Long, int[]>(petIgnoreItems);
+		lew.writeInt(ignoreItems.size());
+		for (Map.Entry<Long, int[]> entry : ignoreItems.entrySet()) {
+			lew.writeLong(entry.getKey().longValue());
+			lew.writeInt(entry.getValue().length);
+			for (int itemId : entry.getValue())
+				lew.writeInt(itemId);
+		}
+		return lew.getBytes();
+	}
+
+	private static String readFingerprintString(LittleEndianReader lea) {
+		int length = lea.readInt();
+		if (length == -1)
+			return null;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) lea.readShort();
+		return new String(chars);
+	}
+
+	private static void readFingerprintEquip(LittleEndianReader lea, Equip equip) {
+		equip.setUpgradeSlots(lea.readByte());
+		equip.setLevel(lea.readByte());
+		equip.setStr(lea.readShort());
+		equip.setDex(lea.readShort());
+		equip.setInt(lea.readShort());
+		equip.setLuk(lea.readShort());
+		equip.setHp(lea.readShort());
+		equip.setMp(lea.readShort());
+		equip.setWatk(lea.readShort());
+		equip.setMatk(lea.readShort());
+		equip.setWdef(lea.readShort());
+		equip.setMdef(lea.readShort());
+		equip.setAcc(lea.readShort());
+		equip.setAvoid(lea.readShort());
+		equip.setHands(lea.readShort());
+		equip.setSpeed(lea.readShort());
+		equip.setJump(lea.readShort());
+	}
+
+	/**
+	 * Puts the items that were serialized by inventoryFingerprint() in this
+	 * character's (empty) inventories.
+	 */
+	private void readInventoryFingerprint(LittleEndianReader lea) {
+		Pet[] pets = getPets();
+		for (int i = lea.readByte(); i > 0; i--) {
+			InventoryType type = InventoryType.valueOf(lea.readByte());
+			IInventory inv = (type == InventoryType.STORAGE) ? storage : getInventory(type);
+			for (int j = lea.readInt(); j > 0; j--) {
+				short slot = lea.readShort();
+				InventorySlot.ItemType itemType = InventorySlot.ItemType.values()[lea.readByte()];
+				int itemId = lea.readInt();
+				long expiration = lea.readLong();
+				String owner = readFingerprintString(lea);
+				short quantity = lea.readShort();
+				long uniqueId = lea.readLong();
+				InventorySlot item;
+				switch (itemType) {
+					case RING: {
+						Ring ring = new Ring(itemId);
+						readFingerprintEquip(lea, ring);
+						ring.setPartnerCharId(lea.readInt());
+						ring.setPartnerRingId(lea.readLong());
+						item = ring;
+						break;
+					}
+					case EQUIP: {
+						Equip equip = new Equip(itemId);
+						readFingerprintEquip(lea, equip);
+						item = equip;
+						break;
+					}
+					case PET: {
+						Pet pet = new Pet(itemId);
+						byte index = lea.readByte();
+						if (index != -1)
+							pets[index] = pet;
+						pet.setName(readFingerprintString(lea));
+						pet.setLevel(lea.readByte());
+						pet.setCloseness(lea.readShort());
+						pet.setFullness(lea.readByte());
+						item = pet;
+						break;
+					}
+					case MOUNT: {
+						TamingMob mount = new TamingMob(itemId);
+						readFingerprintEquip(lea, mount);
+						mount.setMountLevel(lea.readByte());
+						mount.setExp(lea.readShort());
+						mount.setTiredness(lea.readByte());
+						item = mount;
+						break;
+					}
+					default: {
+						item = new Item(itemId);
+						item.setQuantity(quantity);
+						break;
+					}
+				}
+				item.setExpiration(expiration);
+				item.setOwner(owner);
+				item.setUniqueId(uniqueId);
+				inv.put(slot, item);
+			}
+		}
+		for (int i = lea.readInt(); i > 0; i--) {
+			Long uniqueId = Long.valueOf(lea.readLong());
+			int[] itemIds = new int[lea.readInt()];
+			for (int j = 0; j < itemIds.length; j++)
+				itemIds[j] = lea.readInt();
+			petIgnoreItems.put(uniqueId, itemIds);
+		}
+	}
+
+	/**
+	 * Serializes everything that updateDbBuddies() would write.
+	 */
+	private byte[] buddiesFingerprint() {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(256);
+		for (BuddyListEntry buddy : buddies.getBuddies()) {
+			lew.writeInt(buddy.getId());
+			fingerprintString(lew, buddy.getName());
+			lew.writeByte(buddy.getStatus());
+		}
+		lew.writeInt(-1);
+		for (Entry<Integer, String> invite : buddies.getInvites()) {
+			lew.writeInt(invite.getKey().intValue());
+			fingerprintString(lew, invite.getValue());
+		}
+		return lew.getBytes();
+	}
+
+	/**
+	 * Serializes everything that updateDbParty() and updateDbGuilds() would
+	 * write.
+	 */
+	private byte[] groupsFingerprint() {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(16);
+		PartyList p = party;
+		if (p != null) {
+			lew.writeInt(p.getId());
+			lew.writeBool(p.getLeader() == getDataId());
+		} else {
+			lew.writeInt(0);
+		}
+		GuildList g = guild;
+		if (g != null) {
+			lew.writeInt(g.getId());
+			GuildList.Member member = g.getMember(getId());
+			if (member != null) {
+				lew.writeByte(member.getRank());
+				lew.writeByte(member.getSignature());
+				lew.writeByte(member.getAllianceRank());
+			}
+		} else {
+			lew.writeInt(0);
+		}
+		return lew.getBytes();
+	}
+
+	/**
+	 * Writes this character to the database. Only the sections of the
+	 * character that changed since the last time it was saved or loaded are
+	 * written, except for the account and character stats rows, which are
+	 * cheap and change all the time anyway.
+	 */
+	@Override
+	protected boolean commitCharacter() {
+		int dirty = dirtySections.getAndSet(0);
+		//remaining cooldown times change without anyone touching them
+		if (!cooldowns.isEmpty())
+			dirty |= DIRTY_COOLDOWNS;
+		byte[] inventory = inventoryFingerprint();
+		byte[] buddyRows = buddiesFingerprint();
+		byte[] groupRows = groupsFingerprint();
+		long[] stats = statsRow();
+		boolean saved = false;
 		int prevTransactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
 		boolean prevAutoCommit = true;
 		Connection con = null;
@@ -222,19 +666,36 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			con.setAutoCommit(false);
 			updateDbAccount(con);
 			updateDbStats(con);
-			updateDbMapMemory(con);
-			updateDbInventory(con);
-			updateDbSkills(con);
-			updateDbCooldowns(con);
-			updateDbBindings(con);
-			updateDbBuddies(con);
-			updateDbParty(con);
-			updateDbGuilds(con);
-			updateDbQuests(con);
-			updateDbMinigameStats(con);
-			updateDbFameLog(con);
+			if (sectionChanged(dirty, DIRTY_MAP_MEMORY))
+				updateDbMapMemory(con);
+			if (sectionChanged(!Arrays.equals(inventory, savedInventory)))
+				updateDbInventory(con);
+			if (sectionChanged(dirty, DIRTY_SKILLS))
+				updateDbSkills(con);
+			if (sectionChanged(dirty, DIRTY_COOLDOWNS))
+				updateDbCooldowns(con);
+			if (sectionChanged(dirty, DIRTY_BINDINGS))
+				updateDbBindings(con);
+			if (sectionChanged(!Arrays.equals(buddyRows, savedBuddies)))
+				updateDbBuddies(con);
+			if (sectionChanged(!Arrays.equals(groupRows, savedGroups))) {
+				updateDbParty(con);
+				updateDbGuilds(con);
+			}
+			if (sectionChanged(dirty, DIRTY_QUESTS))
+				updateDbQuests(con);
+			if (sectionChanged(dirty, DIRTY_MINIGAME_STATS))
+				updateDbMinigameStats(con);
+			if (sectionChanged(dirty, DIRTY_FAME_LOG))
+				updateDbFameLog(con);
 			//wishlists can't change in game server, so don't bother with them
 			con.commit();
+			savedInventory = inventory;
+			savedBuddies = buddyRows;
+			savedGroups = groupRows;
+			savedStats = stats;
+			savedSaveCount++;
+			saved = true;
 		} catch (Throwable ex) {
 			LOG.log(Level.WARNING, "Could not save character " + getDataId() + ". Rolling back all changes...", ex);
 			if (con != null) {
@@ -254,13 +715,24 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				}
 			}
 			DatabaseManager.cleanup(DatabaseType.STATE, null, null, con);
+			if (!saved)
+				//try again on the next save
+				markDirty(dirty);
 		}
+		return saved;
+	}
+
+	/**
+	 * Saves this character on one of the game server's write-behind threads.
+	 */
+	public void requestSave() {
+		requestSave(GameServer.getInstance().getWriteBehind());
 	}
 
 	private void updateDbAccount(Connection con) throws SQLException {
 		PreparedStatement ps = null;
 		try {
-			ps = con.prepareStatement("UPDATE `accounts` SET `storageslots` = ?, `storagemesos` = ? WHERE `id` = ?");
+			ps = con.prepareStatement("UPDATE `accounts` SET `storageslots` = ?, `storagemesos` = ?, `savecount` = `savecount` + 1 WHERE `id` = ?");
 			ps.setShort(1, storage.getMaxSlots());
 			ps.setInt(2, storage.getMesos());
 			ps.setInt(3, client.getAccountId());
@@ -272,6 +744,36 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		}
 	}
 
+	/**
+	 * Returns the numeric columns that updateDbStats() would write, in the
+	 * same order.
+	 */
+	private long[] statsRow() {
+		return new long[] {
+			client.getAccountId(), client.getWorld(), gender, skin, eyes, hair,
+			level, job, baseStr, baseDex, baseInt, baseLuk,
+			remHp, baseMaxHp, remMp, baseMaxMp, remAp, remSp, exp, fame,
+			partner, getMapId(), map != null ? map.nearestSpawnPoint(getPosition()) : savedSpawnPoint, mesos,
+			getInventory(InventoryType.EQUIP).getMaxSlots(), getInventory(InventoryType.USE).getMaxSlots(),
+			getInventory(InventoryType.SETUP).getMaxSlots(), getInventory(InventoryType.ETC).getMaxSlots(),
+			getInventory(InventoryType.CASH).getMaxSlots(), buddies.getCapacity(), getPrivilegeLevel()
+		};
+	}
+
+	/**
+	 * Reads the same columns as statsRow() from a SELECT * of the characters
+	 * table.
+	 */
+	private static long[] statsRow(ResultSet rs) throws SQLException {
+		long[] row = new long[31];
+		row[0] = rs.getLong(1);
+		row[1] = rs.getLong(2);
+		//skip id and name
+		for (int i = 2; i < row.length; i++)
+			row[i] = rs.getLong(i + 3);
+		return row;
+	}
+
 	private void updateDbStats(Connection con) throws SQLException {
 		PreparedStatement ps = null;
 		try {
@@ -673,13 +1175,68 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		}
 	}
 
-	public static GameCharacter loadPlayer(GameClient c, int id) {
+	/**
+	 * Puts this newly loaded character in the map that it was saved in, or
+	 * the forced return map of that map.
+	 */
+	private void enterSavedMap() {
+		map = GameServer.getChannel(client.getChannel()).getMapFactory().getMap(savedMapId);
+		int forcedReturn = map.getForcedReturnMap();
+		if (forcedReturn != GlobalConstants.NULL_MAP) {
+			map = GameServer.getChannel(client.getChannel()).getMapFactory().getMap(forcedReturn);
+			savedSpawnPoint = 0;
+		}
+		setPosition(map.getPortalPosition(savedSpawnPoint));
+	}
+
+	/**
+	 * Applies the equipment and pets of this newly loaded character.
+	 */
+	private void applyLoadedInventory() {
+		maxHp = baseMaxHp;
+		maxMp = baseMaxMp;
+		Pet[] pets = getPets();
+		for (byte i = 0; i < 3 && pets[i] != null; i++)
+			createPetFullnessSchedule(pets[i], i);
+
+		//inventories should still be safe right now, so no need for synchronization...
+		for (InventorySlot equip : getInventory(InventoryType.EQUIPPED).getAll().values())
+			equipChanged((Equip) equip, true, true);
+
+		remHp = (short) Math.min(remHp, maxHp);
+		remMp = (short) Math.min(remMp, maxMp);
+	}
+
+	private void watchLoadedQuest(short questId, QuestEntry status) {
+		if (status.getState() != QuestEntry.STATE_STARTED)
+			return;
+
+		QuestChecks qc = QuestDataLoader.getInstance().getCompleteReqs(questId);
+		if (qc == null)
+			return;
+
+		for (Entry<Integer, Short> mob : qc.getReqMobCounts().entrySet())
+			//mob progress cannot be undone, so it's safe to do this
+			if (status.getMobCount(mob.getKey().intValue()) < mob.getValue().shortValue())
+				addToWatchedList(questId, QuestRequirementType.MOB, mob.getKey());
+		for (QuestItemStats item : qc.getReqItems())
+			addToWatchedList(questId, QuestRequirementType.ITEM, item.getItemId());
+		for (Integer petId : qc.getReqPets())
+			addToWatchedList(questId, QuestRequirementType.PET, petId);
+		for (Short reqQuestId : qc.getReqQuests().keySet())
+			addToWatchedList(questId, QuestRequirementType.QUEST, reqQuestId);
+		if (qc.requiresMesos())
+			addToWatchedList(questId, QuestRequirementType.MESOS);
+	}
+
+	public static GameCharacter loadPlayer(final GameClient c, int id) {
 		Connection con = null;
-		PreparedStatement ps = null, ips = null;
-		ResultSet rs = null, irs = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		long start = System.nanoTime();
 		try {
 			con = DatabaseManager.getConnection(DatabaseType.STATE);
-			ps = con.prepareStatement("SELECT `c`.*,`a`.`name`,`a`.`storageslots`,`a`.`storagemesos` "
+			ps = con.prepareStatement("SELECT `c`.*,`a`.`name`,`a`.`storageslots`,`a`.`storagemesos`,`a`.`savecount` "
 					+ "FROM `characters` `c` LEFT JOIN `accounts` `a` ON `c`.`accountid` = `a`.`id` "
 					+ "WHERE `c`.`id` = ?");
 			ps.setInt(1, id);
@@ -700,21 +1257,43 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			GameCharacter p = new GameCharacter();
 			p.client = c;
 			p.loadPlayerStats(rs, id);
-			p.map = GameServer.getChannel(c.getChannel()).getMapFactory().getMap(p.savedMapId);
-			int forcedReturn = p.map.getForcedReturnMap();
-			if (forcedReturn != GlobalConstants.NULL_MAP) {
-				p.map = GameServer.getChannel(p.getClient().getChannel()).getMapFactory().getMap(forcedReturn);
-				p.savedSpawnPoint = 0;
-			}
-			p.setPosition(p.map.getPortalPosition(p.savedSpawnPoint));
-
-			p.maxHp = p.baseMaxHp;
-			p.maxMp = p.baseMaxMp;
+			p.enterSavedMap();
 
 			p.mesos = rs.getInt(26);
 			p.buddies = new BuddyList(rs.getShort(32));
 			c.setAccountName(rs.getString(42));
 			p.storage = new StorageInventory(rs.getShort(43), rs.getInt(44));
+			p.savedStats = statsRow(rs);
+			p.savedSaveCount = rs.getInt(45);
+			rs.close();
+			ps.close();
+
+			Future<PartyList> party = null;
+			Future<GuildList> guild = null;
+			ps = con.prepareStatement("SELECT (SELECT `partyid` FROM `parties` WHERE `characterid` = ? LIMIT 1),"
+					+ "(SELECT `g`.`id` FROM `guilds` `g` LEFT JOIN `guildmembers` `m` ON `g`.`id` = `m`.`guildid` WHERE `m`.`characterid` = ? LIMIT 1)");
+			ps.setInt(1, id);
+			ps.setInt(2, id);
+			rs = ps.executeQuery();
+			rs.next();
+			final int partyId = rs.getInt(1);
+			if (!rs.wasNull()) {
+				party = groupFetcher.submit(new Callable<PartyList>() {
+					@Override
+					public PartyList call() {
+						return GameServer.getChannel(c.getChannel()).getCrossServerInterface().sendFetchPartyList(partyId);
+					}
+				});
+			}
+			final int guildId = rs.getInt(2);
+			if (!rs.wasNull()) {
+				guild = groupFetcher.submit(new Callable<GuildList>() {
+					@Override
+					public GuildList call() {
+						return GameServer.getChannel(c.getChannel()).getCrossServerInterface().sendFetchGuildList(guildId);
+					}
+				});
+			}
 			rs.close();
 			ps.close();
 
@@ -725,6 +1304,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				p.rememberedMaps.put(MapMemoryVariable.valueOf(rs.getString(1)), new Pair<Integer, Byte>(Integer.valueOf(rs.getInt(2)), Byte.valueOf(rs.getByte(3))));
 			rs.close();
 			ps.close();
+			start = recordLoadTime(LoadSection.CHARACTER, start);
 
 			EnumMap<InventoryType, IInventory> invUnion = new EnumMap<InventoryType, IInventory>(p.getInventories());
 			invUnion.put(InventoryType.STORAGE, p.storage);
@@ -766,16 +1346,8 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			}
 			rs.close();
 			ps.close();
-			Pet[] pets = p.getPets();
-			for (byte i = 0; i < 3 && pets[i] != null; i++)
-				p.createPetFullnessSchedule(pets[i], i);
-
-			//inventories should still be safe right now, so no need for synchronization...
-			for (InventorySlot equip : p.getInventory(InventoryType.EQUIPPED).getAll().values())
-				p.equipChanged((Equip) equip, true, true);
-
-			p.remHp = (short) Math.min(p.remHp, p.maxHp);
-			p.remMp = (short) Math.min(p.remMp, p.maxMp);
+			p.applyLoadedInventory();
+			start = recordLoadTime(LoadSection.INVENTORY, start);
 
 			ps = con.prepareStatement("SELECT `skillid`,`level`,`mastery` "
 					+ "FROM `skills` WHERE `characterid` = ?");
@@ -827,6 +1399,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				p.skillMacros[macroPos] = new SkillMacro("", false, 0, 0, 0); //placeholder macro
 			rs.close();
 			ps.close();
+			start = recordLoadTime(LoadSection.SKILLS, start);
 
 			ps = con.prepareStatement("SELECT `e`.`buddy` AS `id`,"
 					+ "IF(ISNULL(`c`.`name`),`e`.`buddyname`,`c`.`name`) AS `name`,`e`.`status` "
@@ -844,73 +1417,34 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			rs.close();
 			ps.close();
 
-			ps = con.prepareStatement("SELECT `partyid` FROM `parties` WHERE `characterid` = ?");
-			ps.setInt(1, id);
-			rs = ps.executeQuery();
-			if (rs.next())
-				p.party = GameServer.getChannel(c.getChannel()).getCrossServerInterface().sendFetchPartyList(rs.getInt(1));
-			rs.close();
-			ps.close();
-
-			ps = con.prepareStatement("SELECT `g`.`id` FROM `guilds` `g` LEFT JOIN `guildmembers` `m` ON `g`.`id` = `m`.`guildid` WHERE `m`.`characterid` = ?");
-			ps.setInt(1, id);
-			rs = ps.executeQuery();
-			if (rs.next())
-				p.guild = GameServer.getChannel(c.getChannel()).getCrossServerInterface().sendFetchGuildList(rs.getInt(1));
-			rs.close();
-			ps.close();
+			start = recordLoadTime(LoadSection.BUDDIES, start);
 
-			ps = con.prepareStatement("SELECT `id`,`questid`,`state`,`completed` "
-					+ "FROM `queststatuses` WHERE `characterid` = ?");
+			//mob progress is only kept for started quests
+			ps = con.prepareStatement("SELECT `q`.`id`,`q`.`questid`,`q`.`state`,`q`.`completed`,`m`.`mobid`,`m`.`count` "
+					+ "FROM `queststatuses` `q` LEFT JOIN `questmobprogress` `m` ON `m`.`queststatusid` = `q`.`id` "
+					+ "AND `q`.`state` = " + QuestEntry.STATE_STARTED + " WHERE `q`.`characterid` = ? ORDER BY `q`.`id`,`m`.`id`");
 			ps.setInt(1, id);
 			rs = ps.executeQuery();
-			PreparedStatement mps = null;
-			ResultSet mrs;
-			try {
-				mps = con.prepareStatement("SELECT `mobid`,`count` "
-						+ "FROM `questmobprogress` WHERE `queststatusid` = ?");
-				while (rs.next()) {
-					int questEntryId = rs.getInt(1);
-					short questId = rs.getShort(2);
-					byte state = rs.getByte(3);
-					Map<Integer, AtomicInteger> mobProgress = new LinkedHashMap<Integer, AtomicInteger>();
-					if (state == QuestEntry.STATE_STARTED) {
-						mps.setInt(1, questEntryId);
-						mrs = null;
-						try {
-							mrs = mps.executeQuery();
-							while (mrs.next())
-								mobProgress.put(Integer.valueOf(mrs.getInt(1)), new AtomicInteger(mrs.getShort(2)));
-						} finally {
-							DatabaseManager.cleanup(DatabaseType.STATE, mrs, null, null);
-						}
-					}
-					QuestEntry status = new QuestEntry(state, mobProgress);
-					status.setCompletionTime(rs.getLong(4));
-					p.questStatuses.put(Short.valueOf(questId), status);
-					if (status.getState() == QuestEntry.STATE_STARTED) {
-						QuestChecks qc = QuestDataLoader.getInstance().getCompleteReqs(questId);
-						if (qc != null) {
-							for (Entry<Integer, Short> mob : qc.getReqMobCounts().entrySet())
-								//mob progress cannot be undone, so it's safe to do this
-								if (status.getMobCount(mob.getKey().intValue()) < mob.getValue().shortValue())
-									p.addToWatchedList(questId, QuestRequirementType.MOB, mob.getKey());
-							for (QuestItemStats item : qc.getReqItems())
-								p.addToWatchedList(questId, QuestRequirementType.ITEM, item.getItemId());
-							for (Integer petId : qc.getReqPets())
-								p.addToWatchedList(questId, QuestRequirementType.PET, petId);
-							for (Short reqQuestId : qc.getReqQuests().keySet())
-								p.addToWatchedList(questId, QuestRequirementType.QUEST, reqQuestId);
-							if (qc.requiresMesos())
-								p.addToWatchedList(questId, QuestRequirementType.MESOS);
-						}
-					}
-				}
-			} finally {
-				DatabaseManager.cleanup(DatabaseType.STATE, null, mps, null);
+			boolean more = rs.next();
+			while (more) {
+				int questEntryId = rs.getInt(1);
+				short questId = rs.getShort(2);
+				byte state = rs.getByte(3);
+				long completionTime = rs.getLong(4);
+				Map<Integer, AtomicInteger> mobProgress = new LinkedHashMap<Integer, AtomicInteger>();
+				do {
+					int mobId = rs.getInt(5);
+					if (!rs.wasNull())
+						mobProgress.put(Integer.valueOf(mobId), new AtomicInteger(rs.getShort(6)));
+				} while ((more = rs.next()) && rs.getInt(1) == questEntryId);
+				QuestEntry status = new QuestEntry(state, mobProgress);
+				status.setCompletionTime(completionTime);
+				p.questStatuses.put(Short.valueOf(questId), status);
+				p.watchLoadedQuest(questId, status);
 			}
 			rs.close();
 			ps.close();
+			start = recordLoadTime(LoadSection.QUESTS, start);
 
 			ps = con.prepareStatement("SELECT * FROM `minigamescores` WHERE `characterid` = ?");
 			ps.setInt(1, id);
@@ -946,16 +1480,379 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			rs = ps.executeQuery();
 			while (rs.next())
 				p.wishList.add(Integer.valueOf(rs.getInt(1)));
+			start = recordLoadTime(LoadSection.OTHER, start);
+
+			if (party != null)
+				p.party = party.get();
+			if (guild != null)
+				p.guild = guild.get();
+			recordLoadTime(LoadSection.GROUPS, start);
+			p.savedInventory = p.inventoryFingerprint();
+			p.savedBuddies = p.buddiesFingerprint();
+			p.savedGroups = p.groupsFingerprint();
+			loads.incrementAndGet();
 			return p;
 		} catch (SQLException ex) {
 			LOG.log(Level.WARNING, "Could not load character " + id + " from database", ex);
 			return null;
+		} catch (ExecutionException ex) {
+			LOG.log(Level.WARNING, "Could not fetch party or guild of character " + id, ex.getCause());
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			DatabaseManager.cleanup(DatabaseType.STATE, rs, ps, con);
+		}
+	}
+
+	/**
+	 * Serializes everything that saveCharacter() would write to the database,
+	 * except for cooldowns and party and guild memberships, so that the
+	 * character can be saved later using readSnapshot() if the database is not
+	 * available right now.
+	 * @param lew
+	 */
+	public void writeSnapshot(LittleEndianWriter lew) {
+		lew.writeInt(getDataId());
+		lew.writeInt(client.getAccountId());
+		long[] baseRow = savedStats;
+		lew.writeInt(baseRow.length);
+		for (long column : baseRow)
+			lew.writeLong(column);
+		lew.writeInt(savedSaveCount);
+
+		fingerprintString(lew, name);
+		lew.writeByte(gender);
+		lew.writeByte(skin);
+		lew.writeShort(eyes);
+		lew.writeShort(hair);
+		lew.writeShort(level);
+		lew.writeShort(job);
+		lew.writeShort(baseStr);
+		lew.writeShort(baseDex);
+		lew.writeShort(baseInt);
+		lew.writeShort(baseLuk);
+		lew.writeShort(remHp);
+		lew.writeShort(baseMaxHp);
+		lew.writeShort(remMp);
+		lew.writeShort(baseMaxMp);
+		lew.writeShort(remAp);
+		lew.writeShort(remSp);
+		lew.writeInt(exp);
+		lew.writeShort(fame);
+		lew.writeInt(partner);
+		lew.writeInt(getMapId());
+		lew.writeByte(map != null ? map.nearestSpawnPoint(getPosition()) : savedSpawnPoint);
+		lew.writeInt(mesos);
+		lew.writeByte(getPrivilegeLevel());
+		for (InventoryType type : new InventoryType[] { InventoryType.EQUIP, InventoryType.USE, InventoryType.SETUP, InventoryType.ETC, InventoryType.CASH })
+			lew.writeShort(getInventory(type).getMaxSlots());
+		lew.writeShort(storage.getMaxSlots());
+		lew.writeInt(storage.getMesos());
+		lew.writeShort(buddies.getCapacity());
+
+		byte[] blob = inventoryFingerprint();
+		lew.writeInt(blob.length);
+		lew.writeBytes(blob);
+
+		Map<MapMemoryVariable, Pair<Integer, Byte>> mapMemory = new HashMap<MapMemoryVariable, Pair<Integer, Byte>>(rememberedMaps);
+		lew.writeInt(mapMemory.size());
+		for (Entry<MapMemoryVariable, Pair<Integer, Byte>> entry : mapMemory.entrySet()) {
+			fingerprintString(lew, entry.getKey().toString());
+			lew.writeInt(entry.getValue().left.intValue());
+			lew.writeByte(entry.getValue().right.byteValue());
+		}
+
+		Map<Integer, SkillEntry> skills = new HashMap<Integer, SkillEntry>(skillEntries);
+		lew.writeInt(skills.size());
+		for (Entry<Integer, SkillEntry> skill : skills.entrySet()) {
+			lew.writeInt(skill.getKey().intValue());
+			lew.writeByte(skill.getValue().getLevel());
+			lew.writeByte(skill.getValue().getMasterLevel());
+		}
+
+		Map<Byte, KeyBinding> keys = new HashMap<Byte, KeyBinding>(bindings);
+		lew.writeInt(keys.size());
+		for (Entry<Byte, KeyBinding> entry : keys.entrySet()) {
+			lew.writeByte(entry.getKey().byteValue());
+			lew.writeByte(entry.getValue().getType());
+			lew.writeInt(entry.getValue().getAction());
+		}
+		SkillMacro[] macros = skillMacros;
+		lew.writeInt(macros.length);
+		for (SkillMacro macro : macros) {
+			fingerprintString(lew, macro.getName());
+			lew.writeBool(macro.isSilent());
+			lew.writeInt(macro.getFirstSkill());
+			lew.writeInt(macro.getSecondSkill());
+			lew.writeInt(macro.getThirdSkill());
+		}
+
+		blob = buddiesFingerprint();
+		lew.writeInt(blob.length);
+		lew.writeBytes(blob);
+
+		readLockQuests();
+		try {
+			lew.writeInt(questStatuses.size());
+			for (Entry<Short, QuestEntry> entry : questStatuses.entrySet()) {
+				QuestEntry status = entry.getValue();
+				lew.writeShort(entry.getKey().shortValue());
+				lew.writeByte(status.getState());
+				lew.writeLong(status.getCompletionTime());
+				Map<Integer, ? extends Number> mobCounts = status.getAllMobCounts();
+				lew.writeInt(mobCounts.size());
+				for (Entry<Integer, ? extends Number> mobProgress : mobCounts.entrySet()) {
+					lew.writeInt(mobProgress.getKey().intValue());
+					lew.writeShort(mobProgress.getValue().shortValue());
+				}
+			}
+		} finally {
+			readUnlockQuests();
+		}
+
+		synchronized(minigameStats) {
+			lew.writeInt(minigameStats.size());
+			for (Entry<MiniroomType, Map<MinigameResult, AtomicInteger>> stats : minigameStats.entrySet()) {
+				lew.writeByte(stats.getKey().byteValue());
+				lew.writeInt(stats.getValue().get(MinigameResult.WIN).get());
+				lew.writeInt(stats.getValue().get(MinigameResult.TIE).get());
+				lew.writeInt(stats.getValue().get(MinigameResult.LOSS).get());
+			}
+		}
+
+		synchronized(famesThisMonth) {
+			lew.writeInt(famesThisMonth.size());
+			for (Entry<Integer, Long> fameEntry : famesThisMonth.entrySet()) {
+				lew.writeInt(fameEntry.getKey().intValue());
+				lew.writeLong(fameEntry.getValue().longValue());
+			}
+		}
+	}
+
+	/**
+	 * Reconstructs a character from what writeSnapshot() wrote. The returned
+	 * character is not in any map and is only good for saveCharacter(), which
+	 * will write every section that the snapshot contains.
+	 * @param lea
+	 * @param c a client in the same world as the character.
+	 * @return
+	 */
+	public static GameCharacter readSnapshot(LittleEndianReader lea, GameClient c) {
+		GameCharacter p = new GameCharacter();
+		p.client = c;
+		p.setId(lea.readInt());
+		c.setAccountId(lea.readInt());
+		long[] baseRow = new long[lea.readInt()];
+		for (int i = 0; i < baseRow.length; i++)
+			baseRow[i] = lea.readLong();
+		p.savedStats = baseRow;
+		p.savedSaveCount = lea.readInt();
+
+		p.name = readFingerprintString(lea);
+		p.gender = lea.readByte();
+		p.skin = lea.readByte();
+		p.eyes = lea.readShort();
+		p.hair = lea.readShort();
+		p.level = lea.readShort();
+		p.job = lea.readShort();
+		p.baseStr = lea.readShort();
+		p.baseDex = lea.readShort();
+		p.baseInt = lea.readShort();
+		p.baseLuk = lea.readShort();
+		p.remHp = lea.readShort();
+		p.baseMaxHp = lea.readShort();
+		p.remMp = lea.readShort();
+		p.baseMaxMp = lea.readShort();
+		p.remAp = lea.readShort();
+		p.remSp = lea.readShort();
+		p.exp = lea.readInt();
+		p.fame = lea.readShort();
+		p.partner = lea.readInt();
+		p.savedMapId = lea.readInt();
+		p.savedSpawnPoint = lea.readByte();
+		p.mesos = lea.readInt();
+		p.setGm(lea.readByte());
+		Map<InventoryType, Inventory> inventories = p.getInventories();
+		for (InventoryType type : new InventoryType[] { InventoryType.EQUIP, InventoryType.USE, InventoryType.SETUP, InventoryType.ETC, InventoryType.CASH })
+			inventories.put(type, new Inventory(lea.readShort()));
+		inventories.put(InventoryType.EQUIPPED, new Inventory((short) 0));
+		short storageSlots = lea.readShort();
+		p.storage = new StorageInventory(storageSlots, lea.readInt());
+		p.buddies = new BuddyList(lea.readShort());
+
+		p.readInventoryFingerprint(new LittleEndianByteArrayReader(lea.readBytes(lea.readInt())));
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			MapMemoryVariable key = MapMemoryVariable.valueOf(readFingerprintString(lea));
+			Integer mapId = Integer.valueOf(lea.readInt());
+			p.rememberedMaps.put(key, new Pair<Integer, Byte>(mapId, Byte.valueOf(lea.readByte())));
+		}
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			Integer skillId = Integer.valueOf(lea.readInt());
+			byte skillLevel = lea.readByte();
+			p.skillEntries.put(skillId, new SkillEntry(skillLevel, lea.readByte()));
+		}
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			Byte key = Byte.valueOf(lea.readByte());
+			byte type = lea.readByte();
+			p.bindings.put(key, new KeyBinding(type, lea.readInt()));
+		}
+		p.skillMacros = new SkillMacro[lea.readInt()];
+		for (int i = 0; i < p.skillMacros.length; i++) {
+			String macroName = readFingerprintString(lea);
+			boolean silent = lea.readBool();
+			int skill1 = lea.readInt();
+			int skill2 = lea.readInt();
+			p.skillMacros[i] = new SkillMacro(macroName, silent, skill1, skill2, lea.readInt());
+		}
+
+		LittleEndianReader buddyRows = new LittleEndianByteArrayReader(lea.readBytes(lea.readInt()));
+		for (int buddyId = buddyRows.readInt(); buddyId != -1; buddyId = buddyRows.readInt()) {
+			String buddyName = readFingerprintString(buddyRows);
+			p.buddies.addBuddy(new BuddyListEntry(buddyId, buddyName, buddyRows.readByte()));
+		}
+		while (buddyRows.available() > 0) {
+			int inviterId = buddyRows.readInt();
+			p.buddies.addInvite(inviterId, readFingerprintString(buddyRows));
+		}
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			Short questId = Short.valueOf(lea.readShort());
+			byte state = lea.readByte();
+			long completionTime = lea.readLong();
+			Map<Integer, AtomicInteger> mobProgress = new LinkedHashMap<Integer, AtomicInteger>();
+			for (int j = lea.readInt(); j > 0; j--) {
+				Integer mobId = Integer.valueOf(lea.readInt());
+				mobProgress.put(mobId, new AtomicInteger(lea.readShort()));
+			}
+			QuestEntry status = new QuestEntry(state, mobProgress);
+			status.setCompletionTime(completionTime);
+			p.questStatuses.put(questId, status);
+		}
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			MiniroomType type = MiniroomType.valueOf(lea.readByte());
+			Map<MinigameResult, AtomicInteger> stats = new EnumMap<MinigameResult, AtomicInteger>(MinigameResult.class);
+			stats.put(MinigameResult.WIN, new AtomicInteger(lea.readInt()));
+			stats.put(MinigameResult.TIE, new AtomicInteger(lea.readInt()));
+			stats.put(MinigameResult.LOSS, new AtomicInteger(lea.readInt()));
+			p.minigameStats.put(type, Collections.unmodifiableMap(stats));
+		}
+
+		for (int i = lea.readInt(); i > 0; i--) {
+			Integer to = Integer.valueOf(lea.readInt());
+			p.famesThisMonth.put(to, Long.valueOf(lea.readLong()));
+		}
+
+		//write everything in the snapshot, but leave the cooldowns, party,
+		//and guild rows in the database alone
+		p.markDirty(DIRTY_MAP_MEMORY | DIRTY_SKILLS | DIRTY_BINDINGS | DIRTY_QUESTS | DIRTY_MINIGAME_STATS | DIRTY_FAME_LOG);
+		p.savedGroups = p.groupsFingerprint();
+		return p;
+	}
+
+	/**
+	 * Checks whether nobody else wrote to this character since it was last
+	 * loaded or saved. Every save of any character bumps the save count of its
+	 * account, so this catches saves that only changed inventory, storage, or
+	 * quest rows. Offline commands only change the characters row, so that
+	 * row is compared as well.
+	 * @return
+	 * @throws SQLException if the rows could not be read
+	 */
+	public boolean isDatabaseUnchanged() throws SQLException {
+		Connection con = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			con = DatabaseManager.getConnection(DatabaseType.STATE);
+			ps = con.prepareStatement("SELECT `c`.*,`a`.`savecount` "
+					+ "FROM `characters` `c` LEFT JOIN `accounts` `a` ON `c`.`accountid` = `a`.`id` "
+					+ "WHERE `c`.`id` = ?");
+			ps.setInt(1, getDataId());
+			rs = ps.executeQuery();
+			return rs.next() && rs.getInt(42) == savedSaveCount && Arrays.equals(statsRow(rs), savedStats);
 		} finally {
-			DatabaseManager.cleanup(DatabaseType.STATE, irs, ips, null);
 			DatabaseManager.cleanup(DatabaseType.STATE, rs, ps, con);
 		}
 	}
 
+	/**
+	 * Serializes this character for the channel that it is changing to, so
+	 * that the channel does not have to load it from the database again.
+	 * Call this after prepareChannelChange().
+	 * @param saved true if prepareChannelChange() was able to save this
+	 * character, in which case the other channel can trust that the database
+	 * is already up to date. Otherwise, the other channel saves everything in
+	 * the handoff the next time it saves the character.
+	 * @return
+	 */
+	public byte[] writeHandoff(boolean saved) {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(4096);
+		lew.writeBool(saved);
+		writeSnapshot(lew);
+		fingerprintString(lew, client.getAccountName());
+		lew.writeInt(party != null ? party.getId() : 0);
+		lew.writeInt(guild != null ? guild.getId() : 0);
+		List<Entry<Integer, Cooldown>> cooling = new ArrayList<Entry<Integer, Cooldown>>(cooldowns.entrySet());
+		lew.writeInt(cooling.size());
+		for (Entry<Integer, Cooldown> cooldown : cooling) {
+			lew.writeInt(cooldown.getKey().intValue());
+			lew.writeShort(cooldown.getValue().getSecondsRemaining());
+		}
+		lew.writeInt(wishList.size());
+		for (Integer sn : wishList)
+			lew.writeInt(sn.intValue());
+		return lew.getBytes();
+	}
+
+	/**
+	 * Creates a character from a handoff that was written by writeHandoff()
+	 * on the channel that it is changing from, in the same way that
+	 * loadPlayer() would create it from the database.
+	 * @param lea
+	 * @param c
+	 * @return
+	 */
+	public static GameCharacter readHandoff(LittleEndianReader lea, GameClient c) {
+		boolean saved = lea.readBool();
+		GameCharacter p = readSnapshot(lea, c);
+		c.setAccountName(readFingerprintString(lea));
+		int partyId = lea.readInt();
+		int guildId = lea.readInt();
+		for (int i = lea.readInt(); i > 0; i--) {
+			int skillId = lea.readInt();
+			p.addCooldown(skillId, lea.readShort());
+		}
+		for (int i = lea.readInt(); i > 0; i--)
+			p.wishList.add(Integer.valueOf(lea.readInt()));
+
+		p.enterSavedMap();
+		p.applyLoadedInventory();
+		for (Entry<Short, QuestEntry> quest : p.questStatuses.entrySet())
+			p.watchLoadedQuest(quest.getKey().shortValue(), quest.getValue());
+		for (Long time : p.famesThisMonth.values())
+			if (time.longValue() > p.lastFameGiven)
+				p.lastFameGiven = time.longValue();
+		CrossServerSynchronization css = GameServer.getChannel(c.getChannel()).getCrossServerInterface();
+		if (partyId != 0)
+			p.party = css.sendFetchPartyList(partyId);
+		if (guildId != 0)
+			p.guild = css.sendFetchGuildList(guildId);
+
+		p.savedGroups = p.groupsFingerprint();
+		if (saved) {
+			p.dirtySections.set(0);
+			p.savedInventory = p.inventoryFingerprint();
+			p.savedBuddies = p.buddiesFingerprint();
+		}
+		return p;
+	}
+
 	@Override
 	public GameClient getClient() {
 		return client;
@@ -1120,6 +2017,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	@Override
 	public void setJob(short newJob) {
 		super.setJob(newJob);
+		lookChanged();
 		getMap().sendToAll(GamePackets.writeShowJobChange(this), this);
 		getClient().getSession().send(GamePackets.writeUpdatePlayerStats(Collections.singletonMap(ClientUpdateKey.JOB, Short.valueOf(job)), false));
 		if (party != null)
@@ -1139,6 +2037,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	@Override
 	public void setHair(short newHair) {
 		super.setHair(newHair);
+		lookChanged();
 		getMap().sendToAll(GamePackets.writeUpdateAvatar(this), this);
 		getClient().getSession().send(GamePackets.writeUpdatePlayerStats(Collections.singletonMap(ClientUpdateKey.HAIR, Short.valueOf(hair)), false));
 		if (chatroom != null)
@@ -1148,6 +2047,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	@Override
 	public void setSkin(byte newSkin) {
 		super.setSkin(newSkin);
+		lookChanged();
 		getMap().sendToAll(GamePackets.writeUpdateAvatar(this), this);
 		getClient().getSession().send(GamePackets.writeUpdatePlayerStats(Collections.singletonMap(ClientUpdateKey.SKIN, Byte.valueOf(skin)), false));
 		if (chatroom != null)
@@ -1157,6 +2057,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	@Override
 	public void setEyes(short newEyes) {
 		super.setEyes(newEyes);
+		lookChanged();
 		getMap().sendToAll(GamePackets.writeUpdateAvatar(this), this);
 		getClient().getSession().send(GamePackets.writeUpdatePlayerStats(Collections.singletonMap(ClientUpdateKey.FACE, Short.valueOf(eyes)), false));
 		if (chatroom != null)
@@ -1506,6 +2407,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	public void rememberMap(MapMemoryVariable key, byte spawnPoint) {
 		rememberedMaps.put(key, new Pair<Integer, Byte>(Integer.valueOf(getMapId()), Byte.valueOf(spawnPoint)));
+		markDirty(DIRTY_MAP_MEMORY);
 	}
 
 	public void rememberMap(MapMemoryVariable key) {
@@ -1523,6 +2425,8 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		Pair<Integer, Byte> location = rememberedMaps.remove(key);
 		if (location == null)
 			location = new Pair<Integer, Byte>(Integer.valueOf(GlobalConstants.NULL_MAP), Byte.valueOf((byte) -1));
+		else
+			markDirty(DIRTY_MAP_MEMORY);
 		return location;
 	}
 
@@ -1532,6 +2436,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	}
 
 	public void equipChanged(Equip e, boolean putOn, boolean permanent) {
+		lookChanged();
 		short stat;
 		if (putOn) {
 			stat = e.getHp();
@@ -1605,6 +2510,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	public void removePet(byte slot, byte message) {
 		removePet(slot);
+		lookChanged();
 		ScheduledFuture<?> sch = petFullnessSchedules[slot];
 		if (sch != null) {
 			sch.cancel(false);
@@ -1648,6 +2554,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	private void addPet(Pet pet, final byte slot) {
 		spawnPet(pet, slot);
+		lookChanged();
 		createPetFullnessSchedule(pet, slot);
 	}
 
@@ -1715,14 +2622,17 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			//bindings.remove(Byte.valueOf(key));
 		//else
 			bindings.put(Byte.valueOf(key), new KeyBinding(type, action));
+		markDirty(DIRTY_BINDINGS);
 	}
 
 	public void setAutoHpPot(int itemId) {
 		bindings.put(Byte.valueOf((byte) -1), new KeyBinding((byte) 2, itemId));
+		markDirty(DIRTY_BINDINGS);
 	}
 
 	public void setAutoMpPot(int itemId) {
 		bindings.put(Byte.valueOf((byte) -2), new KeyBinding((byte) 2, itemId));
+		markDirty(DIRTY_BINDINGS);
 	}
 
 	public int getAutoHpPot() {
@@ -1747,6 +2657,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	public void setMacros(SkillMacro[] newMacros) {
 		skillMacros = newMacros;
+		markDirty(DIRTY_BINDINGS);
 	}
 
 	@Override
@@ -1799,6 +2710,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			if (masterLevel != -1)
 				skillLevel.changeMasterLevel(masterLevel);
 		}
+		markDirty(DIRTY_SKILLS);
 		getClient().getSession().send(GamePackets.writeUpdateSkillLevel(skill, skillLevel.getLevel(), skillLevel.getMasterLevel()));
 	}
 
@@ -1810,10 +2722,12 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				getClient().getSession().send(GamePackets.writeCooldown(skill, (short) 0));
 			}
 		}));
+		markDirty(DIRTY_COOLDOWNS);
 	}
 
 	public void removeCooldown(int skill) {
 		cooldowns.remove(Integer.valueOf(skill)).cancel();
+		markDirty(DIRTY_COOLDOWNS);
 	}
 
 	public void cancelCooldowns() {
@@ -1823,6 +2737,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			cooldown.getValue().cancel();
 			getClient().getSession().send(GamePackets.writeCooldown(cooldown.getKey().intValue(), (short) 0));
 		}
+		markDirty(DIRTY_COOLDOWNS);
 	}
 
 	@Override
@@ -1832,6 +2747,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	public void addToActiveEffects(PlayerStatusEffect buff, PlayerStatusEffectValues value) {
 		activeEffects.put(buff, value);
+		lookChanged();
 	}
 
 	public void addCancelEffectTask(StatusEffectsData e, ScheduledFuture<?> cancelTask, byte level, long endTime) {
@@ -1857,7 +2773,9 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 	}
 
 	public PlayerStatusEffectValues removeFromActiveEffects(PlayerStatusEffect e) {
-		return activeEffects.remove(e);
+		PlayerStatusEffectValues v = activeEffects.remove(e);
+		lookChanged();
+		return v;
 	}
 
 	public void removeCancelEffectTask(StatusEffectsData e) {
@@ -2084,7 +3002,11 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		}
 	}
 
-	private void prepareExitChannel(boolean quickCleanup) {
+	/**
+	 * @return false if this character had to be saved but could not be.
+	 */
+	private boolean prepareExitChannel(boolean quickCleanup) {
+		GameServer.getInstance().getAutosaver().unregister(this);
 		//TODO: need to save debuffs in database so players cannot exploit
 		//logging off and then on to get rid of debuffs...
 		for (Pair<SkillState, ScheduledFuture<?>> cancelTask : skillFutures.values())
@@ -2104,11 +3026,15 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			leaveMapRoutines();
 			if (map != null)
 				map.removePlayer(this);
-			saveCharacter();
+			return saveCharacter();
 		}
+		return true;
 	}
 
-	public void prepareChannelChange() {
+	/**
+	 * @return true if this character was saved.
+	 */
+	public boolean prepareChannelChange() {
 		if (event != null)
 			event.playerDisconnected(this);
 		if (party != null)
@@ -2117,7 +3043,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			GameServer.getChannel(client.getChannel()).getCrossServerInterface().sendGuildMemberLogOffNotifications(this, false);
 		if (chatroom != null)
 			GameServer.getChannel(getClient().getChannel()).getCrossServerInterface().chatroomPlayerChangingChannels(getId(), chatroom);
-		prepareExitChannel(false);
+		return prepareExitChannel(false);
 	}
 
 	public void prepareLogOff(boolean quickCleanup) {
@@ -2139,6 +3065,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	public void setGuild(GuildList guild) {
 		this.guild = guild;
+		lookChanged();
 	}
 
 	public PartyList getParty() {
@@ -2352,6 +3279,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			} else {
 				status.updateState(QuestEntry.STATE_STARTED);
 			}
+			markDirty(DIRTY_QUESTS);
 		} finally {
 			writeUnlockQuests();
 		}
@@ -2420,6 +3348,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				questStatuses.put(oId, status);
 			}
 			status.setCompletionTime(completionTime);
+			markDirty(DIRTY_QUESTS);
 		} finally {
 			writeUnlockQuests();
 		}
@@ -2499,6 +3428,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				status = new QuestEntry(QuestEntry.STATE_NOT_STARTED, reqMobs);
 				questStatuses.put(oId, status);
 			}
+			markDirty(DIRTY_QUESTS);
 		} finally {
 			writeUnlockQuests();
 		}
@@ -2658,6 +3588,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 				QuestEntry status = questStatuses.get(questId);
 				short mobReq = QuestDataLoader.getInstance().getCompleteReqs(questId.shortValue()).getReqMobCounts().get(oId);
 				int progress = status.mobKilled(oId, mobReq);
+				markDirty(DIRTY_QUESTS);
 				if (progress == mobReq)
 					mobReqCompleteQuests.add(questId);
 				getClient().getSession().send(GamePackets.writeQuestProgress(questId.shortValue(), status.getData()));
@@ -2779,6 +3710,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 			}
 		}
 		stats.get(stat).incrementAndGet();
+		markDirty(DIRTY_MINIGAME_STATS);
 	}
 
 	public long getLastFameGivenTime() {
@@ -2802,6 +3734,7 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 		long now = System.currentTimeMillis();
 		famesThisMonth.put(Integer.valueOf(receiver), Long.valueOf(now));
 		lastFameGiven = now;
+		markDirty(DIRTY_FAME_LOG);
 	}
 
 	public List<Integer> getWishListSerialNumbers() {
@@ -2863,7 +3796,27 @@ public class GameCharacter extends LoggedInPlayer implements MapEntity {
 
 	@Override
 	public byte[] getShowNewSpawnMessage() {
-		return GamePackets.writeShowPlayer(this);
+		int version = lookVersion.get();
+		CachedLook look = cachedLook;
+		if (look != null && look.version == version) {
+			lookHits.incrementAndGet();
+		} else {
+			lookMisses.incrementAndGet();
+			//if the look changes while we write it, the version we store is
+			//already outdated, so the next call will write it again
+			look = new CachedLook(version, GamePackets.writeShowPlayerLook(this));
+			cachedLook = look;
+		}
+		return GamePackets.writeShowPlayer(this, look.bytes);
+	}
+
+	/**
+	 * Call this whenever anything that is written by
+	 * {@link GamePackets#writeShowPlayerLook(GameCharacter)} changes, so that
+	 * the next spawn message of this player does not show an outdated look.
+	 */
+	public void lookChanged() {
+		lookVersion.incrementAndGet();
 	}
 
 	@Override
@@ -0,0 +1,192 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.game.character;
+
+import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.output.LittleEndianByteArrayWriter;
+import argonms.game.net.external.GameClient;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps characters that could not be saved when the server shut down in local
+ * files, one per character, so that they can be saved the next time the
+ * server starts instead of losing everything since their last save.
+ *
+ * A spilled character is only replayed if neither its row in the database
+ * nor the save count of its account changed since the character was last
+ * loaded or saved by the server that spilled it. Otherwise, the character must have logged in again somewhere
+ * else (e.g. on a game server that shares the database), and writing the
+ * spilled character would overwrite newer progress, so the file is renamed
+ * with a .stale extension and left for an administrator to look at.
+ */
+public final class ShutdownSpill {
+	private static final Logger LOG = Logger.getLogger(ShutdownSpill.class.getName());
+
+	private static final int MAGIC = 0x4C4C5053; //"SPLL"
+	private static final short VERSION = 2;
+	private static final String EXTENSION = ".spill";
+
+	private static void rename(File f, String extension) {
+		File dest = new File(f.getPath() + extension);
+		if (!f.renameTo(dest))
+			LOG.log(Level.WARNING, "Could not rename {0} to {1}", new Object[] { f, dest });
+	}
+
+	/**
+	 * Writes each of the given characters to its own file in the given
+	 * directory.
+	 * @param dir
+	 * @param characters
+	 * @return the amount of characters that were written.
+	 */
+	public static int write(File dir, Collection<GameCharacter> characters) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOG.log(Level.SEVERE, "Could not create spill directory {0}", dir);
+			return 0;
+		}
+		int written = 0;
+		for (GameCharacter p : characters) {
+			File tmp = new File(dir, p.getDataId() + EXTENSION + ".tmp");
+			FileOutputStream fos = null;
+			try {
+				LittleEndianByteArrayWriter payload = new LittleEndianByteArrayWriter(4096);
+				p.writeSnapshot(payload);
+				byte[] bytes = payload.getBytes();
+				CRC32 checksum = new CRC32();
+				checksum.update(bytes);
+
+				LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(bytes.length + 22);
+				lew.writeInt(MAGIC);
+				lew.writeShort(VERSION);
+				lew.writeByte(p.getClient().getWorld());
+				lew.writeByte(p.getClient().getChannel());
+				lew.writeInt(bytes.length);
+				lew.writeLong(checksum.getValue());
+				lew.writeBytes(bytes);
+
+				fos = new FileOutputStream(tmp);
+				fos.write(lew.getBytes());
+				fos.getFD().sync();
+				fos.close();
+				fos = null;
+				File dest = new File(dir, p.getDataId() + EXTENSION);
+				if (dest.exists() && !dest.delete() || !tmp.renameTo(dest))
+					throw new IOException("Could not move " + tmp + " to " + dest);
+				written++;
+			} catch (Throwable ex) {
+				LOG.log(Level.SEVERE, "Could not spill character " + p.getName() + " (" + p.getDataId() + ")", ex);
+			} finally {
+				if (fos != null) {
+					try {
+						fos.close();
+					} catch (IOException ex) {
+						//nothing we can do
+					}
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Saves every character that was spilled to the given directory by a game
+	 * server of the given world. Call this before accepting any clients.
+	 * @param dir
+	 * @param world
+	 */
+	public static void replay(File dir, byte world) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		if (files == null || files.length == 0)
+			return;
+
+		int saved = 0, stale = 0, failed = 0;
+		for (File f : files) {
+			GameCharacter p;
+			try {
+				LittleEndianByteArrayReader lea = new LittleEndianByteArrayReader(f);
+				if (lea.readInt() != MAGIC || lea.readShort() != VERSION)
+					throw new IOException("Unrecognized format");
+				byte spilledWorld = lea.readByte();
+				byte spilledChannel = lea.readByte();
+				int length = lea.readInt();
+				long expectedChecksum = lea.readLong();
+				if (length != lea.available())
+					throw new IOException("Truncated file");
+				byte[] bytes = lea.readBytes(length);
+				CRC32 checksum = new CRC32();
+				checksum.update(bytes);
+				if (checksum.getValue() != expectedChecksum)
+					throw new IOException("Checksum mismatch");
+				if (spilledWorld != world)
+					//another game server shares the spill directory
+					continue;
+
+				p = GameCharacter.readSnapshot(new LittleEndianByteArrayReader(bytes), new GameClient(spilledWorld, spilledChannel));
+			} catch (Throwable ex) {
+				LOG.log(Level.SEVERE, "Could not read spilled character from " + f, ex);
+				rename(f, ".corrupt");
+				failed++;
+				continue;
+			}
+
+			try {
+				if (!p.isDatabaseUnchanged()) {
+					LOG.log(Level.WARNING, "Character {0} ({1}) was saved elsewhere after it was spilled to {2}. Not replaying it.",
+							new Object[] { p.getName(), p.getDataId(), f });
+					rename(f, ".stale");
+					stale++;
+					continue;
+				}
+			} catch (SQLException ex) {
+				LOG.log(Level.SEVERE, "Could not check if spilled character " + p.getDataId() + " is stale", ex);
+				failed++;
+				continue;
+			}
+			if (p.saveCharacter()) {
+				if (!f.delete())
+					LOG.log(Level.WARNING, "Could not delete replayed spill file {0}", f);
+				saved++;
+			} else {
+				//leave it for next time
+				failed++;
+			}
+		}
+		if (saved + stale + failed == 0)
+			return;
+		LOG.log(stale + failed == 0 ? Level.INFO : Level.WARNING, "Replayed {0} spilled characters. {1} were stale, {2} could not be replayed.",
+				new Object[] { saved, stale, failed });
+	}
+
+	private ShutdownSpill() {
+		//uninstantiable...
+	}
+}
@@ -598,6 +598,7 @@ public class CommandProcessor {
 						+ "Can add a max of " + (heapMax - (heapNow - heapFree)) + "MB to heap without OutOfMemoryError.");
 			}
 		}, "Print general info about the server's resource usage. Pass -gc flag to attempt to run the garbage collector before collecting heap info", UserPrivileges.ADMIN));
+		universalCommands.put("!perf", new PerformanceCommandHandler());
 		universalCommands.put("!shutdown", new ShutdownCommandHandler());
 		universalCommands.put("!help", new CommandDefinition<CommandCaller>(new HelpCommandHandler(),
 				"List available commands and their descriptions. Specify a command to read only its description", UserPrivileges.USER));
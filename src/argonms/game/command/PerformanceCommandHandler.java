@@ -0,0 +1,169 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.game.command;
+
+import argonms.common.UserPrivileges;
+import argonms.common.character.PlayerAutosaver;
+import argonms.common.net.external.ClientListener;
+import argonms.common.net.external.ClientSession;
+import argonms.common.util.DatabaseManager;
+import argonms.common.util.DatabaseManager.DatabaseType;
+import argonms.common.util.WriteBehindQueue;
+import argonms.game.GameServer;
+import argonms.game.character.GameCharacter;
+import argonms.game.field.MapFactory;
+import argonms.game.net.WorldChannel;
+import argonms.game.net.external.GameClient;
+
+/**
+ * Prints the counters that the server collects about its network, database,
+ * saving, loading, and map work, so that administrators can see where time and
+ * resources go without attaching a profiler.
+ */
+public class PerformanceCommandHandler extends AbstractCommandDefinition<CommandCaller> {
+	@Override
+	public String getHelpMessage() {
+		return "Print counters that were collected by this game server to help tune its performance. Specify a section to only print its counters";
+	}
+
+	@Override
+	public String getUsage() {
+		return "Usage: !perf [net|db|save|load|map]";
+	}
+
+	@Override
+	public byte minPrivilegeLevel() {
+		return UserPrivileges.ADMIN;
+	}
+
+	private static String average(long total, long count) {
+		if (count == 0)
+			return "0";
+		return String.format("%.2f", Double.valueOf((double) total / count));
+	}
+
+	private void printNetwork(CommandCaller caller, CommandOutput resp) {
+		long flushes = ClientSession.getTotalFlushes();
+		long writeCalls = ClientSession.getTotalWriteCalls();
+		long bytes = ClientSession.getTotalBytesWritten();
+		resp.printOut("Send queue flushes: " + flushes + ". Write calls: " + writeCalls
+				+ " (" + average(writeCalls, flushes) + " per flush). Bytes written: " + bytes
+				+ " (" + average(bytes, writeCalls) + " per write call).");
+		ClientListener<GameClient> listener = GameServer.getChannel(caller.getChannel()).getClientListener();
+		for (int i = 0; i < listener.getIoThreadCount(); i++)
+			resp.printOut("I/O thread " + (i + 1) + " of channel " + caller.getChannel() + ": "
+					+ listener.getSessionCount(i) + " sessions, " + listener.getPacketsRead(i) + " packets read, "
+					+ listener.getBytesRead(i) + " bytes read, " + listener.getSelects(i) + " selects.");
+	}
+
+	private void printDatabase(CommandOutput resp) {
+		for (DatabaseType type : DatabaseType.values()) {
+			if (!DatabaseManager.hasPool(type))
+				continue;
+			long checkouts = DatabaseManager.getCheckouts(type);
+			long hits = DatabaseManager.getStatementCacheHits(type);
+			long misses = DatabaseManager.getStatementCacheMisses(type);
+			resp.printOut(type + " database: " + DatabaseManager.getConnectionsInUse(type) + " of "
+					+ DatabaseManager.getTotalConnections(type) + " connections in use (max " + DatabaseManager.getMaxConnections(type)
+					+ "). Created: " + DatabaseManager.getConnectionsCreated(type) + ". Evicted: " + DatabaseManager.getConnectionsEvicted(type) + ".");
+			resp.printOut(type + " database: " + checkouts + " checkouts, " + DatabaseManager.getCheckoutTimeouts(type)
+					+ " timed out. Wait time: " + DatabaseManager.getCheckoutWaitTime(type) / 1000000 + "ms total, "
+					+ DatabaseManager.getMaxCheckoutWaitTime(type) / 1000000 + "ms max. Statement cache hits: " + hits
+					+ " of " + (hits + misses) + ".");
+		}
+	}
+
+	private void printSaves(CommandOutput resp) {
+		long written = GameCharacter.getSectionsWritten();
+		long skipped = GameCharacter.getSectionsSkipped();
+		resp.printOut("Character sections saved: " + written + ". Unchanged sections skipped: " + skipped + " of " + (written + skipped) + ".");
+		WriteBehindQueue writeBehind = GameServer.getInstance().getWriteBehind();
+		long commits = writeBehind.getCommittedCount() + writeBehind.getFailedCount();
+		resp.printOut("Write-behind: " + writeBehind.getDepth() + " waiting, " + writeBehind.getSubmittedCount() + " submitted, "
+				+ writeBehind.getCoalescedCount() + " coalesced, " + writeBehind.getCommittedCount() + " committed, "
+				+ writeBehind.getFailedCount() + " failed. Latency: " + average(writeBehind.getTotalLatency() / 1000000, commits)
+				+ "ms average, " + writeBehind.getMaxLatency() / 1000000 + "ms max.");
+		PlayerAutosaver autosaver = GameServer.getInstance().getAutosaver();
+		if (!autosaver.isEnabled()) {
+			resp.printOut("Autosave is disabled.");
+			return;
+		}
+		long saves = autosaver.getSaveCount();
+		long failures = autosaver.getFailureCount();
+		resp.printOut("Autosave: " + autosaver.getRegisteredCount() + " characters, " + saves + " saved, " + failures + " failed, "
+				+ autosaver.getSkippedCount() + " skipped, " + autosaver.getBacklog() + " waiting. Latency: "
+				+ average(autosaver.getTotalLatency() / 1000000, saves + failures) + "ms average, "
+				+ autosaver.getMaxLatency() / 1000000 + "ms max.");
+	}
+
+	private void printLoads(CommandCaller caller, CommandOutput resp) {
+		long loads = GameCharacter.getLoadCount();
+		StringBuilder sb = new StringBuilder("Characters loaded: ").append(loads).append(". Average time per section:");
+		long total = 0;
+		for (GameCharacter.LoadSection section : GameCharacter.LoadSection.values()) {
+			long time = GameCharacter.getLoadTime(section);
+			total += time;
+			sb.append(' ').append(section.name().toLowerCase()).append(' ').append(average(time / 1000, loads)).append("us,");
+		}
+		sb.append(" total ").append(average(total / 1000, loads)).append("us.");
+		resp.printOut(sb.toString());
+		WorldChannel channel = GameServer.getChannel(caller.getChannel());
+		resp.printOut("Channel changes into channel " + caller.getChannel() + ": " + channel.getHandoffsUsed()
+				+ " handed off without the database, " + channel.getHandoffsDiscarded() + " handoffs discarded.");
+	}
+
+	private void printMaps(CommandCaller caller, CommandOutput resp) {
+		MapFactory maps = GameServer.getChannel(caller.getChannel()).getMapFactory();
+		resp.printOut("Maps of channel " + caller.getChannel() + ": " + maps.getLiveMapCount() + " loaded, "
+				+ maps.getInstanceMaps().size() + " instance maps. " + maps.getMapsCreated() + " created and "
+				+ maps.getMapsEvicted() + " unloaded since startup.");
+		long hits = GameCharacter.getLookCacheHits();
+		resp.printOut("Player spawn messages: " + hits + " of " + (hits + GameCharacter.getLookCacheMisses())
+				+ " reused the player's look.");
+	}
+
+	@Override
+	public void execute(CommandCaller caller, CommandArguments args, CommandOutput resp) {
+		String section = args.hasNext() ? args.next().toLowerCase() : null;
+		boolean all = (section == null);
+		boolean printed = false;
+		if (all || section.equals("net")) {
+			printNetwork(caller, resp);
+			printed = true;
+		}
+		if (all || section.equals("db")) {
+			printDatabase(resp);
+			printed = true;
+		}
+		if (all || section.equals("save")) {
+			printSaves(resp);
+			printed = true;
+		}
+		if (all || section.equals("load")) {
+			printLoads(caller, resp);
+			printed = true;
+		}
+		if (all || section.equals("map")) {
+			printMaps(caller, resp);
+			printed = true;
+		}
+		if (!printed)
+			resp.printErr(getUsage());
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.game.field;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Buckets the entities of one entity pool into square cells by their
+ * position, so that finding the entities in a rectangle only has to look at
+ * the cells that overlap the rectangle rather than at every entity on the map.
+ *
+ * Entities do not tell the grid when their position changes, so whoever moves
+ * an entity that is already on a map must call moved() afterwards, otherwise
+ * the entity may be missed by queries of its new position.
+ */
+/* package-private */ class EntityGrid {
+	/**
+	 * Cells are 2^CELL_SHIFT pixels wide and tall.
+	 */
+	private static final int CELL_SHIFT = 8;
+
+	private final Map<Long, Set<MapEntity>> cells;
+	private final Map<MapEntity, Long> cellOf;
+
+	public EntityGrid() {
+		cells = new HashMap<Long, Set<MapEntity>>();
+		cellOf = new IdentityHashMap<MapEntity, Long>();
+	}
+
+	private static long key(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+	}
+
+	private static Long keyOf(MapEntity ent) {
+		Point pos = ent.getPosition();
+		if (pos == null)
+			return Long.valueOf(0);
+		//arithmetic shift rounds negative coordinates down as well
+		return Long.valueOf(key(pos.x >> CELL_SHIFT, pos.y >> CELL_SHIFT));
+	}
+
+	private void addToCell(Long key, MapEntity ent) {
+		Set<MapEntity> cell = cells.get(key);
+		if (cell == null) {
+			cell = Collections.newSetFromMap(new IdentityHashMap<MapEntity, Boolean>());
+			cells.put(key, cell);
+		}
+		cell.add(ent);
+	}
+
+	private void removeFromCell(Long key, MapEntity ent) {
+		Set<MapEntity> cell = cells.get(key);
+		if (cell != null && cell.remove(ent) && cell.isEmpty())
+			cells.remove(key);
+	}
+
+	public synchronized void add(MapEntity ent) {
+		Long key = keyOf(ent);
+		Long old = cellOf.put(ent, key);
+		if (old != null)
+			removeFromCell(old, ent);
+		addToCell(key, ent);
+	}
+
+	public synchronized void remove(MapEntity ent) {
+		Long old = cellOf.remove(ent);
+		if (old != null)
+			removeFromCell(old, ent);
+	}
+
+	/**
+	 * Puts the given entity in the cell of its current position. Does nothing
+	 * if the entity was removed from the grid in the meantime.
+	 * @param ent
+	 */
+	public synchronized void moved(MapEntity ent) {
+		Long old = cellOf.get(ent);
+		if (old == null)
+			return;
+		Long key = keyOf(ent);
+		if (key.equals(old))
+			return;
+		cellOf.put(ent, key);
+		removeFromCell(old, ent);
+		addToCell(key, ent);
+	}
+
+	private static void addContained(Set<MapEntity> cell, Rectangle box, Collection<MapEntity> out) {
+		for (MapEntity ent : cell) {
+			Point pos = ent.getPosition();
+			if (pos != null && box.contains(pos))
+				out.add(ent);
+		}
+	}
+
+	/**
+	 * Adds every entity whose position is inside the given rectangle to out.
+	 * @param box
+	 * @param out
+	 */
+	public synchronized void getInRect(Rectangle box, Collection<MapEntity> out) {
+		if (box.isEmpty() || cells.isEmpty())
+			return;
+		int minX = box.x >> CELL_SHIFT, maxX = (box.x + box.width - 1) >> CELL_SHIFT;
+		int minY = box.y >> CELL_SHIFT, maxY = (box.y + box.height - 1) >> CELL_SHIFT;
+		if ((long) (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+			//the box covers more cells than are occupied, e.g. a whole map
+			for (Set<MapEntity> cell : cells.values())
+				addContained(cell, box, out);
+			return;
+		}
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++) {
+				Set<MapEntity> cell = cells.get(Long.valueOf(key(x, y)));
+				if (cell != null)
+					addContained(cell, box, out);
+			}
+		}
+	}
+}
@@ -28,6 +28,7 @@ import argonms.common.loading.item.ItemDataLoader;
 import argonms.common.net.external.ClientSendOps;
 import argonms.common.net.external.ClientSession;
 import argonms.common.net.external.CommonPackets;
+import argonms.common.util.Rng;
 import argonms.common.util.Scheduler;
 import argonms.common.util.collections.LockableList;
 import argonms.common.util.collections.LockableMap;
@@ -65,7 +66,6 @@ import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -73,7 +73,9 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -88,24 +90,40 @@ public class GameMap {
 	 * Amount of time in milliseconds that a dropped item will remain on the map
 	 */
 	private static final int DROP_EXPIRE = 60000;
+	/**
+	 * Amount of time in milliseconds between a monster's death and the wave
+	 * of monsters that replaces it, and between two waves while the map is
+	 * not full yet.
+	 */
+	private static final int SPAWN_WAVE_INTERVAL = 15000;
+	private static final long EVICTED = -1;
 	private final MapStats stats;
 	private final Map<EntityType, EntityPool> entPools;
 	private final LockableList<MonsterSpawn> monsterSpawns;
 	private final AtomicInteger monsters;
+	private final AtomicBoolean waveScheduled;
 	private final Map<String, String> portalOverrides;
 	private final Set<Short> occupiedChairs;
 	private final Map<GameCharacter, ScheduledFuture<?>> timeLimitTasks;
 	private final Map<GameCharacter, ScheduledFuture<?>> decHpTasks;
 	private final byte[] mysticDoorPortalIds;
 	private volatile boolean disableSpawn;
+	/**
+	 * The last time that a player left this map or that someone got this map
+	 * from the MapFactory, or EVICTED once the MapFactory has dropped it.
+	 */
+	private final AtomicLong lastUsed;
+	private volatile boolean pinned;
 
 	protected GameMap(MapStats stats) {
+		this.lastUsed = new AtomicLong(System.currentTimeMillis());
 		this.stats = stats;
 		this.entPools = new EnumMap<EntityType, EntityPool>(EntityType.class);
 		for (EntityType type : EntityType.values())
 			entPools.put(type, new EntityPool());
-		this.monsterSpawns = new LockableList<MonsterSpawn>(new LinkedList<MonsterSpawn>());
+		this.monsterSpawns = new LockableList<MonsterSpawn>(new ArrayList<MonsterSpawn>());
 		this.monsters = new AtomicInteger(0);
+		this.waveScheduled = new AtomicBoolean(false);
 		this.portalOverrides = new ConcurrentHashMap<String, String>();
 		this.occupiedChairs = Collections.newSetFromMap(new ConcurrentHashMap<Short, Boolean>());
 		for (SpawnData spawnData : stats.getLife().values()) {
@@ -310,10 +328,12 @@ public class GameMap {
 
 	public void spawnPlayer(final GameCharacter p) {
 		EntityPool players = entPools.get(EntityType.PLAYER);
+		boolean first;
 		players.lockWrite();
 		try { //write lock allows us to read in mutex, so no need for a readLock
 			if (p.isVisible()) //show ourself to other clients if we are not hidden
 				sendToAll(p.getShowNewSpawnMessage());
+			first = players.allEnts().isEmpty();
 			players.add(p);
 			for (EntityPool pool : entPools.values()) {
 				pool.lockRead();
@@ -367,6 +387,9 @@ public class GameMap {
 		}
 		p.pullPartyHp();
 		p.pushHpToParty();
+		if (first)
+			//no monsters respawned while the map was empty
+			fillSpawns();
 	}
 
 	public final void spawnMonster(final Mob monster) {
@@ -466,7 +489,10 @@ public class GameMap {
 	}
 
 	public void setNoSpawn(boolean value) {
+		pinned = true;
 		disableSpawn = value;
+		if (!value)
+			fillSpawns();
 	}
 
 	public void spawnMist(final Mist mist, final int duration, final ScheduledFuture<?> periodicTask) {
@@ -482,6 +508,7 @@ public class GameMap {
 	}
 
 	public void spawnPlayerNpc(PlayerNpc n) {
+		pinned = true;
 		spawnEntity(n);
 		sendToAll(GamePackets.writePlayerNpcLook(n));
 	}
@@ -520,6 +547,7 @@ public class GameMap {
 			if (future != null)
 				future.cancel(false);
 		}
+		markUsed();
 	}
 
 	public void killMonster(Mob monster, GameCharacter killer) {
@@ -532,6 +560,7 @@ public class GameMap {
 			monster.fireDeathEventNoRewards();
 		destroyEntity(monster);
 		monsters.decrementAndGet();
+		scheduleWave();
 	}
 
 	public void destroyReactor(final Reactor r) {
@@ -612,31 +641,81 @@ public class GameMap {
 		}
 	}
 
-	public void respawnMobs() {
+	/**
+	 * Spawns a wave of monsters SPAWN_WAVE_INTERVAL milliseconds from now,
+	 * unless one is already on its way.
+	 */
+	private void scheduleWave() {
+		if (!waveScheduled.compareAndSet(false, true))
+			return;
+		Scheduler.getWheelTimer().runAfterDelay(new Runnable() {
+			@Override
+			public void run() {
+				waveScheduled.set(false);
+				fillSpawns();
+			}
+		}, SPAWN_WAVE_INTERVAL);
+	}
+
+	/**
+	 * Spawns a wave of monsters to make up for the ones that died since the
+	 * last wave, as many as the map's mob rate allows. If the mob rate keeps
+	 * ready spawn points from spawning, another wave follows. Spawn points
+	 * that are not ready yet wait on their own timer rather than for the next
+	 * wave, so maps without players or without deaths cost nothing.
+	 */
+	private void fillSpawns() {
 		if (entPools.get(EntityType.PLAYER).getSizeSafely() == 0 || disableSpawn)
 			return;
 		monsterSpawns.lockRead();
 		try {
-			if (monsterSpawns.isEmpty())
+			int size = monsterSpawns.size();
+			if (size == 0)
+				return;
+			int numShouldSpawn = Math.round((size - monsters.get()) * stats.getMobRate());
+			if (numShouldSpawn <= 0)
 				return;
-			Collections.shuffle(monsterSpawns);
-			int numShouldSpawn = Math.round((monsterSpawns.size() - monsters.get()) * stats.getMobRate());
-			if (numShouldSpawn > 0) {
-				int spawned = 0;
-				for (MonsterSpawn spawnPoint : monsterSpawns) {
-					if (spawnPoint.shouldSpawn()) {
-						spawnMonster(spawnPoint.getNewSpawn());
-						spawned++;
+			boolean leftOver = false;
+			//start at a random spawn point instead of shuffling all of them
+			int start = Rng.getGenerator().nextInt(size);
+			for (int i = 0; i < size; i++) {
+				MonsterSpawn spawnPoint = monsterSpawns.get((start + i) % size);
+				long wait = spawnPoint.timeUntilSpawn();
+				if (wait == 0) {
+					if (numShouldSpawn == 0) {
+						leftOver = true;
+						continue;
 					}
-					if (spawned >= numShouldSpawn)
-						break;
+					spawnMonster(spawnPoint.getNewSpawn());
+					numShouldSpawn--;
+					wait = spawnPoint.timeUntilSpawn();
 				}
+				if (wait > 0)
+					spawnPoint.scheduleSpawn(wait);
 			}
+			if (leftOver)
+				scheduleWave();
 		} finally {
 			monsterSpawns.unlockRead();
 		}
 	}
 
+	private void respawnAt(MonsterSpawn spawnPoint) {
+		//the point will be woken up again by fillSpawns() once someone enters
+		//the map, a monster dies, or spawns are enabled again
+		if (entPools.get(EntityType.PLAYER).getSizeSafely() == 0 || disableSpawn)
+			return;
+		if (Math.round((monsterSpawns.getSizeWhenSafe() - monsters.get()) * stats.getMobRate()) <= 0)
+			return;
+		long wait = spawnPoint.timeUntilSpawn();
+		if (wait == 0) {
+			spawnMonster(spawnPoint.getNewSpawn());
+			wait = spawnPoint.timeUntilSpawn();
+		}
+		if (wait > 0)
+			spawnPoint.scheduleSpawn(wait);
+	}
+
 	private void checkForItemTriggeredReactors(ItemDrop d) {
 		GameCharacter p = (GameCharacter) getEntityById(EntityType.PLAYER, d.getOwner());
 		int itemId = d.getDataId();
@@ -679,6 +758,7 @@ public class GameMap {
 	}
 
 	public void playerMoved(GameCharacter p, List<LifeMovementFragment> moves, Point startPos) {
+		entPools.get(EntityType.PLAYER).moved(p);
 		sendToAll(writePlayerMovement(p, moves, startPos), p);
 	}
 
@@ -687,10 +767,12 @@ public class GameMap {
 	}
 
 	public void summonMoved(GameCharacter p, PlayerSkillSummon s, List<LifeMovementFragment> moves, Point startPos) {
+		entPools.get(EntityType.SUMMON).moved(s);
 		sendToAll(writeSummonMovement(p, s, moves, startPos), p);
 	}
 
 	public void monsterMoved(GameCharacter p, Mob m, List<LifeMovementFragment> moves, boolean useSkill, byte skill, Point projectileTarget, Point startPos) {
+		entPools.get(EntityType.MONSTER).moved(m);
 		sendToAll(writeMonsterMovement(m, useSkill, skill, projectileTarget, startPos, moves), p);
 	}
 
@@ -743,6 +825,7 @@ public class GameMap {
 	}
 
 	public void overridePortal(String portalName, String script) {
+		pinned = true;
 		portalOverrides.put(portalName, script);
 	}
 
@@ -751,6 +834,7 @@ public class GameMap {
 	}
 
 	public void overrideReactor(String reactorName, String script) {
+		pinned = true;
 		EntityPool reactors = entPools.get(EntityType.REACTOR);
 		reactors.lockRead();
 		try {
@@ -764,6 +848,56 @@ public class GameMap {
 		}
 	}
 
+	/**
+	 * Keeps this map from ever being evicted by the MapFactory, e.g. because
+	 * a script holds onto it. Maps that are changed by scripts or commands in
+	 * a way that would be lost if they were evicted are pinned automatically.
+	 */
+	public void pin() {
+		pinned = true;
+	}
+
+	/**
+	 * Records that this map is about to be used.
+	 * @return false if the MapFactory already evicted this map, in which case
+	 * it must not be used.
+	 */
+	/* package-private */ boolean markUsed() {
+		long last;
+		do {
+			last = lastUsed.get();
+			if (last == EVICTED)
+				return false;
+		} while (!lastUsed.compareAndSet(last, System.currentTimeMillis()));
+		return true;
+	}
+
+	/**
+	 * Marks this map as evicted and cancels the tasks of its monsters if it
+	 * has been empty for at least the given amount of time and nothing else
+	 * needs it to stay around.
+	 * @param now
+	 * @param idleTime in milliseconds
+	 * @return true if this map was evicted.
+	 */
+	/* package-private */ boolean evictIfIdle(long now, long idleTime) {
+		long last = lastUsed.get();
+		if (last == EVICTED || pinned || now - last < idleTime)
+			return false;
+		//doors, summons, and mini rooms belong to players in other maps
+		for (EntityType type : new EntityType[] { EntityType.PLAYER, EntityType.DOOR, EntityType.SUMMON, EntityType.MINI_ROOM })
+			if (entPools.get(type).getSizeSafely() != 0)
+				return false;
+		//anyone that got this map from the MapFactory since we read lastUsed
+		//will make this fail
+		if (!lastUsed.compareAndSet(last, EVICTED))
+			return false;
+
+		for (MapEntity ent : getAllEntities(EntityType.MONSTER))
+			((Mob) ent).cancelScheduledTasks();
+		return true;
+	}
+
 	public Point calcPointBelow(Point initial) {
 		Foothold fh = stats.getFootholds().findBelow(initial);
 		if (fh == null)
@@ -793,8 +927,14 @@ public class GameMap {
 		EntityPool players = entPools.get(EntityType.PLAYER);
 		players.lockRead();
 		try {
-			for (MapEntity p : players.allEnts())
-				((GameCharacter) p).getClient().getSession().send(message);
+			//only do the IV independent part of the encryption once for all
+			//recipients, and don't do it at all if the map is empty
+			byte[] encrypted = null;
+			for (MapEntity p : players.allEnts()) {
+				if (encrypted == null)
+					encrypted = ClientSession.prepareBroadcast(message);
+				((GameCharacter) p).getClient().getSession().sendMapleEncrypted(encrypted);
+			}
 		} finally {
 			players.unlockRead();
 		}
@@ -811,30 +951,36 @@ public class GameMap {
 		EntityPool players = entPools.get(EntityType.PLAYER);
 		players.lockRead();
 		try {
-			for (MapEntity p : players.allEnts())
-				if (!p.equals(source))
-					((GameCharacter) p).getClient().getSession().send(message);
+			byte[] encrypted = null;
+			for (MapEntity p : players.allEnts()) {
+				if (!p.equals(source)) {
+					if (encrypted == null)
+						encrypted = ClientSession.prepareBroadcast(message);
+					((GameCharacter) p).getClient().getSession().sendMapleEncrypted(encrypted);
+				}
+			}
 		} finally {
 			players.unlockRead();
 		}
 	}
 
 	public List<MapEntity> getMapEntitiesInRect(Rectangle box, Set<EntityType> types) {
-		List<MapEntity> ret = new LinkedList<MapEntity>();
-		for (EntityType type : types) {
-			EntityPool pool = entPools.get(type);
-			pool.lockRead();
-			try {
-				for (MapEntity ent : pool.allEnts())
-					if (box.contains(ent.getPosition()))
-						ret.add(ent);
-			} finally {
-				pool.unlockRead();
-			}
-		}
+		List<MapEntity> ret = new ArrayList<MapEntity>();
+		for (EntityType type : types)
+			entPools.get(type).getInRect(box, ret);
 		return ret;
 	}
 
+	/**
+	 * Call this after changing the position of an entity that is already on
+	 * this map outside of the movement handlers, so that it can still be found
+	 * by getMapEntitiesInRect.
+	 * @param ent
+	 */
+	public void entityMoved(MapEntity ent) {
+		entPools.get(ent.getEntityType()).moved(ent);
+	}
+
 	public List<MapEntity> getMapEntitiesInRect(Rectangle box) {
 		return getMapEntitiesInRect(box, EnumSet.allOf(EntityType.class));
 	}
@@ -855,10 +1001,11 @@ public class GameMap {
 		private final MobStats mobStats;
 		private final Point pos;
 		private final short foothold;
-		private long nextPossibleSpawn;
+		private volatile long nextPossibleSpawn;
 		private final int mobTime;
 		private final AtomicInteger spawnedMonsters;
 		private final boolean immobile;
+		private final AtomicBoolean scheduled;
 
 		public MonsterSpawn(MobStats stats, Point pos, short fh, int mobTime) {
 			this.mobStats = stats;
@@ -868,12 +1015,38 @@ public class GameMap {
 			this.immobile = !stats.getDelays().containsKey("move") && !stats.getDelays().containsKey("fly");
 			this.nextPossibleSpawn = System.currentTimeMillis();
 			this.spawnedMonsters = new AtomicInteger(0);
+			this.scheduled = new AtomicBoolean(false);
 		}
 
-		public boolean shouldSpawn() {
+		/**
+		 * @return -1 if no monster can spawn here until one of ours dies, 0 if
+		 * one can spawn now, or else the amount of milliseconds until one can.
+		 */
+		public long timeUntilSpawn() {
 			if (mobTime < 0 || ((mobTime != 0 || immobile) && spawnedMonsters.get() > 0) || spawnedMonsters.get() > 2)
-				return false;
-			return nextPossibleSpawn <= System.currentTimeMillis();
+				return -1;
+			return Math.max(nextPossibleSpawn - System.currentTimeMillis(), 0);
+		}
+
+		public boolean shouldSpawn() {
+			return timeUntilSpawn() == 0;
+		}
+
+		/**
+		 * Try to spawn here again after the given delay, unless we are already
+		 * waiting to.
+		 * @param delay in milliseconds
+		 */
+		public void scheduleSpawn(long delay) {
+			if (!scheduled.compareAndSet(false, true))
+				return;
+			Scheduler.getWheelTimer().runAfterDelay(new Runnable() {
+				@Override
+				public void run() {
+					scheduled.set(false);
+					respawnAt(MonsterSpawn.this);
+				}
+			}, delay);
 		}
 
 		public Mob getNewSpawn() {
@@ -951,11 +1124,13 @@ public class GameMap {
 
 	private static class EntityPool {
 		private final LockableMap<Integer, MapEntity> entities;
+		private final EntityGrid grid;
 		//no need to be Atomic because it always is locked when accessed...
 		private int nextEntId;
 
 		public EntityPool() {
 			this.entities = new LockableMap<Integer, MapEntity>(new LinkedHashMap<Integer, MapEntity>());
+			this.grid = new EntityGrid();
 			this.nextEntId = 0;
 		}
 
@@ -971,10 +1146,31 @@ public class GameMap {
 
 		public void add(MapEntity ent) {
 			entities.put(Integer.valueOf(ent.getId()), ent);
+			grid.add(ent);
 		}
 
 		public void removeByIdSafely(int entityId) {
-			entities.removeWhenSafe(Integer.valueOf(entityId));
+			entities.lockWrite();
+			try {
+				MapEntity ent = entities.remove(Integer.valueOf(entityId));
+				if (ent != null)
+					grid.remove(ent);
+			} finally {
+				entities.unlockWrite();
+			}
+		}
+
+		public void moved(MapEntity ent) {
+			grid.moved(ent);
+		}
+
+		/**
+		 * Does not need any lock to be held.
+		 * @param box
+		 * @param out
+		 */
+		public void getInRect(Rectangle box, Collection<MapEntity> out) {
+			grid.getInRect(box, out);
 		}
 
 		public int getSizeSafely() {
@@ -22,21 +22,29 @@ import argonms.game.loading.map.MapDataLoader;
 import argonms.game.loading.map.MapStats;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *
+ * Creates the maps of a channel the first time that they are needed, and
+ * drops them again once they have been empty for long enough, so that the
+ * memory and respawn work of a channel depends on how many maps are being
+ * played in rather than how many maps were visited since startup.
  * @author GoldenKevin
  */
 public class MapFactory {
 	private ConcurrentMap<Integer, GameMap> maps;
 	private Set<GameMap> instanceMaps;
+	private final AtomicLong created, evicted;
 
 	public MapFactory() {
 		maps = new ConcurrentHashMap<Integer, GameMap>();
 		instanceMaps = Collections.newSetFromMap(new ConcurrentHashMap<GameMap, Boolean>());
+		created = new AtomicLong(0);
+		evicted = new AtomicLong(0);
 	}
 
 	private GameMap newMap(int mapId) {
@@ -49,19 +57,26 @@ public class MapFactory {
 
 	public GameMap getMap(int mapid) {
 		Integer oId = Integer.valueOf(mapid);
-		GameMap map = maps.get(oId);
-		if (map == null) {
-			map = newMap(mapid);
-			if (map == null)
-				return null;
-
-			GameMap existing = maps.putIfAbsent(oId, map);
-			if (existing != null)
-				//some other thread was loading the same map and beat us in
-				//instantiating it. no big deal, just use their instance instead
-				map = existing;
+		while (true) {
+			GameMap map = maps.get(oId);
+			if (map == null) {
+				map = newMap(mapid);
+				if (map == null)
+					return null;
+
+				GameMap existing = maps.putIfAbsent(oId, map);
+				if (existing != null)
+					//some other thread was loading the same map and beat us in
+					//instantiating it. no big deal, just use their instance instead
+					map = existing;
+				else
+					created.incrementAndGet();
+			}
+			if (map.markUsed())
+				return map;
+			//evictIdleMaps() got to it first. make sure it's gone and try again
+			maps.remove(oId, map);
 		}
-		return map;
 	}
 
 	public GameMap makeInstanceMap(int mapId) {
@@ -74,6 +89,22 @@ public class MapFactory {
 		instanceMaps.remove(map);
 	}
 
+	/**
+	 * Drops every map that has not had any players in it for at least the
+	 * given amount of time, unless it is pinned. Instance maps are left alone
+	 * since they are destroyed by their events.
+	 * @param idleTime in milliseconds
+	 */
+	public void evictIdleMaps(long idleTime) {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, GameMap> entry : maps.entrySet()) {
+			if (entry.getValue().evictIfIdle(now, idleTime)) {
+				maps.remove(entry.getKey(), entry.getValue());
+				evicted.incrementAndGet();
+			}
+		}
+	}
+
 	public void clear() {
 		maps.clear();
 	}
@@ -85,4 +116,16 @@ public class MapFactory {
 	public Set<GameMap> getInstanceMaps() {
 		return Collections.unmodifiableSet(instanceMaps);
 	}
+
+	public int getLiveMapCount() {
+		return maps.size();
+	}
+
+	public long getMapsCreated() {
+		return created.get();
+	}
+
+	public long getMapsEvicted() {
+		return evicted.get();
+	}
 }
@@ -270,6 +270,26 @@ public class Mob extends AbstractEntity {
 			subscriber.monsterKilled(null, null);
 	}
 
+	/**
+	 * Cancels every task that was scheduled for this monster without killing
+	 * it, e.g. because its map is being unloaded.
+	 */
+	public void cancelScheduledTasks() {
+		for (ScheduledFuture<?> cancelTask : skillFutures.values())
+			cancelTask.cancel(false);
+		for (ScheduledFuture<?> cancelTask : diseaseFutures.values())
+			cancelTask.cancel(false);
+		ScheduledFuture<?> f = removeAfter;
+		if (f != null)
+			f.cancel(false);
+		f = poisonTask;
+		if (f != null)
+			f.cancel(false);
+		f = venomDecrementTask;
+		if (f != null)
+			f.cancel(false);
+	}
+
 	public byte getControlStatus() {
 		return controller != null ? CONTROL_STATUS_NORMAL : CONTROL_STATUS_NONE;
 	}
@@ -18,7 +18,7 @@
 
 package argonms.game.loading.beauty;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -38,10 +38,10 @@ public class KvjBeautyDataLoader extends BeautyDataLoader {
 	public boolean loadAll() {
 		String dir = dataPath + "Character.wz" + File.separatorChar;
 		try {
-			LittleEndianReader reader = new LittleEndianByteArrayReader(new File(dir + "Face.kvj"));
+			LittleEndianReader reader = LittleEndianByteBufferReader.open(new File(dir + "Face.kvj"));
 			while (reader.available() != 0)
 				eyeStyles.add(Short.valueOf(reader.readShort()));
-			reader = new LittleEndianByteArrayReader(new File(dir + "Hair.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Hair.kvj"));
 			while (reader.available() != 0)
 				hairStyles.add(Short.valueOf(reader.readShort()));
 			return true;
@@ -18,10 +18,14 @@
 
 package argonms.game.loading.map;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.loading.ParallelLoader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,7 +70,7 @@ public class KvjMapDataLoader extends MapDataLoader {
 			File f = new File(new StringBuilder(dataPath).append("Map.wz").append(File.separator).append("Map").append(File.separator).append("Map").append(id.substring(0, 1)).append(File.separator).append(id).append(".img.kvj").toString());
 			if (f.exists()) {
 				stats = new MapStats(mapid);
-				doWork(new LittleEndianByteArrayReader(f), stats);
+				doWork(LittleEndianByteBufferReader.open(f), stats);
 			}
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for map " + mapid, e);
@@ -77,19 +81,29 @@ public class KvjMapDataLoader extends MapDataLoader {
 	@Override
 	public boolean loadAll() {
 		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
 			File root = new File(dataPath + "Map.wz/Map");
 			for (String cat : root.list()) {
 				File prefFolder = new File(root.getAbsolutePath() + File.separatorChar + cat);
 				for (String kvj : prefFolder.list()) {
-					int mapid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
-					MapStats stats = new MapStats(mapid);
-					doWork(new LittleEndianByteArrayReader(new File(prefFolder.getAbsolutePath() + File.separatorChar + kvj)), stats);
-					//InputStream is = new BufferedInputStream(new FileInputStream(prefFolder.getAbsolutePath() + File.separatorChar + kvj));
-					//doWork(new LittleEndianStreamReader(is), stats);
-					//is.close();
-					mapStats.put(Integer.valueOf(mapid), stats);
+					final int mapid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
+					final File f = new File(prefFolder.getAbsolutePath() + File.separatorChar + kvj);
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							//each map is parsed into its own MapStats, so only
+							//putting it in mapStats has to be synchronized
+							MapStats stats = new MapStats(mapid);
+							doWork(LittleEndianByteBufferReader.open(f), stats);
+							synchronized (mapStats) {
+								mapStats.put(Integer.valueOf(mapid), stats);
+							}
+							return null;
+						}
+					});
 				}
 			}
+			ParallelLoader.invokeAll("map", tasks);
 			return true;
 		} catch (IOException ex) {
 			LOG.log(Level.WARNING, "Could not load all map data from KVJ files.", ex);
@@ -19,7 +19,7 @@
 package argonms.game.loading.mob;
 
 import argonms.common.character.inventory.InventoryTools;
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -78,7 +78,7 @@ public class KvjMobDataLoader extends MobDataLoader {
 			File f = new File(new StringBuilder(dataPath).append("Mob.wz").append(File.separator).append(id).append(".img.kvj").toString());
 			if (f.exists()) {
 				stats = new MobStats(mobid);
-				doWork(new LittleEndianByteArrayReader(f), stats);
+				doWork(LittleEndianByteBufferReader.open(f), stats);
 			}
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for mob " + mobid, e);
@@ -93,7 +93,7 @@ public class KvjMobDataLoader extends MobDataLoader {
 			for (String kvj : root.list()) {
 				int mobid = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
 				MobStats stats = new MobStats(mobid);
-				doWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)), stats);
+				doWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)), stats);
 				//InputStream is = new BufferedInputStream(new FileInputStream(prefFolder.getAbsolutePath() + File.separatorChar + kvj));
 				//doWork(new LittleEndianStreamReader(is), stats);
 				//is.close();
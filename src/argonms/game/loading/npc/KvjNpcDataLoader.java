@@ -18,7 +18,7 @@
 
 package argonms.game.loading.npc;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -51,7 +51,7 @@ public class KvjNpcDataLoader extends NpcDataLoader {
 		try {
 			File f = new File(new StringBuilder(dataPath).append("Npc.wz").append(File.separator).append(id).append(".img.kvj").toString());
 			if (f.exists())
-				doWork(new LittleEndianByteArrayReader(f), npcId);
+				doWork(LittleEndianByteBufferReader.open(f), npcId);
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for NPC " + npcId, e);
 		}
@@ -64,7 +64,7 @@ public class KvjNpcDataLoader extends NpcDataLoader {
 			File root = new File(dataPath + "Npc.wz");
 			for (String kvj : root.list()) {
 				int npcId = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
-				doWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)), npcId);
+				doWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)), npcId);
 				loaded.add(Integer.valueOf(npcId));
 				//InputStream is = new BufferedInputStream(new FileInputStream(root.getAbsolutePath() + File.separatorChar + kvj));
 				//storageCosts.put(Integer.valueOf(npcId), doWork(new LittleEndianStreamReader(is)));
@@ -18,7 +18,7 @@
 
 package argonms.game.loading.quest;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import argonms.game.loading.quest.QuestRewards.SkillReward;
 import java.io.File;
@@ -86,7 +86,7 @@ public class KvjQuestDataLoader extends QuestDataLoader {
 		try {
 			File root = new File(dataPath + "Quest.wz");
 			for (String kvj : root.list())
-				doWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
+				doWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
 			return true;
 		} catch (IOException ex) {
 			LOG.log(Level.WARNING, "Could not load all quest data from KVJ files.", ex);
@@ -99,7 +99,7 @@ public class KvjQuestDataLoader extends QuestDataLoader {
 		try {
 			File f = new File(dataPath + "Quest.wz" + "QuestInfo.img.kvj");
 			if (f.exists())
-				doWork(new LittleEndianByteArrayReader(f));
+				doWork(LittleEndianByteBufferReader.open(f));
 			return true;
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for quest info", e);
@@ -112,7 +112,7 @@ public class KvjQuestDataLoader extends QuestDataLoader {
 		try {
 			File f = new File(dataPath + "Quest.wz" + "Check.img.kvj");
 			if (f.exists())
-				doWork(new LittleEndianByteArrayReader(f));
+				doWork(LittleEndianByteBufferReader.open(f));
 			return true;
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for quest checks", e);
@@ -125,7 +125,7 @@ public class KvjQuestDataLoader extends QuestDataLoader {
 		try {
 			File f = new File(dataPath + "Quest.wz" + "Act.img.kvj");
 			if (f.exists())
-				doWork(new LittleEndianByteArrayReader(f));
+				doWork(LittleEndianByteBufferReader.open(f));
 			return true;
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for quest actions", e);
@@ -18,7 +18,7 @@
 
 package argonms.game.loading.reactor;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -58,7 +58,7 @@ public class KvjReactorDataLoader extends ReactorDataLoader {
 			File f = new File(new StringBuilder(dataPath).append("Reactor.wz").append(File.separator).append(id).append(".img.kvj").toString());
 			if (f.exists()) {
 				stats = new ReactorStats(reactorid);
-				doWork(new LittleEndianByteArrayReader(f), stats);
+				doWork(LittleEndianByteBufferReader.open(f), stats);
 			}
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Could not read KVJ data file for reactor " + reactorid, e);
@@ -73,7 +73,7 @@ public class KvjReactorDataLoader extends ReactorDataLoader {
 			for (String kvj : root.list()) {
 				int reactorId = Integer.parseInt(kvj.substring(0, kvj.lastIndexOf(".img.kvj")));
 				ReactorStats stats = new ReactorStats(reactorId);
-				doWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)), stats);
+				doWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)), stats);
 				//InputStream is = new BufferedInputStream(new FileInputStream(root.getAbsolutePath() + File.separatorChar + kvj));
 				//doWork(new LittleEndianStreamReader(is), stats);
 				//is.close();
@@ -19,7 +19,7 @@
 package argonms.game.loading.skill;
 
 import argonms.common.loading.KvjEffects;
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -64,7 +64,7 @@ public class KvjSkillDataLoader extends SkillDataLoader {
 			if (!loadedFiles.contains(key)) {
 				File f = new File(new StringBuilder(dataPath).append("Skill.wz").append(File.separator).append(id.substring(0, 3)).append(".img.kvj").toString());
 				if (f.exists())
-					doWork(new LittleEndianByteArrayReader(f));
+					doWork(LittleEndianByteBufferReader.open(f));
 				loadedFiles.add(key);
 			}
 		} catch (IOException e) {
@@ -79,7 +79,7 @@ public class KvjSkillDataLoader extends SkillDataLoader {
 			if (!loadedFiles.contains(key)) {
 				File f = new File(new StringBuilder(dataPath).append("Skill.wz").append(File.separator).append("MobSkill.img.kvj").toString());
 				if (f.exists())
-					doMobWork(new LittleEndianByteArrayReader(f));
+					doMobWork(LittleEndianByteBufferReader.open(f));
 				loadedFiles.add(key);
 			}
 		} catch (IOException e) {
@@ -93,13 +93,13 @@ public class KvjSkillDataLoader extends SkillDataLoader {
 			File root = new File(dataPath + "Skill.wz");
 			for (String kvj : root.list()) {
 				if (kvj.equals("MobSkill.img.kvj")) {
-					doMobWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
+					doMobWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
 					//InputStream is = new BufferedInputStream(new FileInputStream(root.getAbsolutePath() + File.separatorChar + kvj));
 					//doMobWork(new LittleEndianStreamReader(is));
 					//is.close();
 					loadedFiles.add(Integer.valueOf(-1));
 				} else {
-					doWork(new LittleEndianByteArrayReader(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
+					doWork(LittleEndianByteBufferReader.open(new File(root.getAbsolutePath() + File.separatorChar + kvj)));
 					//InputStream is = new BufferedInputStream(new FileInputStream(root.getAbsolutePath() + File.separatorChar + kvj));
 					//doWork(new LittleEndianStreamReader(is));
 					//is.close();
@@ -26,11 +26,11 @@ import argonms.common.net.internal.ChannelSynchronizationOps;
 import argonms.common.net.internal.RemoteCenterOps;
 import argonms.common.util.Scheduler;
 import argonms.common.util.collections.Pair;
+import argonms.common.util.input.LittleEndianByteArrayReader;
 import argonms.common.util.output.LittleEndianByteArrayWriter;
 import argonms.game.GameServer;
 import argonms.game.character.GameCharacter;
 import argonms.game.character.PlayerContinuation;
-import argonms.game.field.GameMap;
 import argonms.game.field.MapFactory;
 import argonms.game.net.external.ClientGamePacketProcessor;
 import argonms.game.net.external.GameClient;
@@ -42,6 +42,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,8 +53,11 @@ import java.util.logging.Logger;
 public class WorldChannel {
 	private static final Logger LOG = Logger.getLogger(WorldChannel.class.getName());
 	private static final int CHANNEL_CHANGE_TIMEOUT = 2000;
+	private static final int HANDOFF_TIMEOUT = 10000;
 
 	private final Map<Integer, PlayerContinuation> channelChangeData;
+	private final Map<Integer, byte[]> handoffs;
+	private final AtomicLong handoffsUsed, handoffsDiscarded;
 	private final Map<Integer, Pair<Byte, ScheduledFuture<?>>> queuedChannelChanges;
 	private long startTime;
 	private final ClientListener<GameClient> handler;
@@ -64,9 +68,12 @@ public class WorldChannel {
 	private final PlayerLog<GameCharacter> storage;
 	private CrossServerSynchronization worldComm;
 
-	public WorldChannel(final byte world, final byte channel, int port) {
+	public WorldChannel(final byte world, final byte channel, int port, int ioThreads) {
 		channelChangeData = new ConcurrentHashMap<Integer, PlayerContinuation>();
 		queuedChannelChanges = new ConcurrentHashMap<Integer, Pair<Byte, ScheduledFuture<?>>>();
+		handoffs = new ConcurrentHashMap<Integer, byte[]>();
+		handoffsUsed = new AtomicLong(0);
+		handoffsDiscarded = new AtomicLong(0);
 		this.world = world;
 		this.channel = channel;
 		this.port = port;
@@ -77,10 +84,10 @@ public class WorldChannel {
 			public GameClient newInstance() {
 				return new GameClient(world, channel);
 			}
-		});
+		}, ioThreads);
 	}
 
-	public void listen(boolean useNio) {
+	public void listen() {
 		if (handler.bind(port)) {
 			LOG.log(Level.INFO, "World {0} Channel {1} is online.", new Object[] { world, channel });
 		} else {
@@ -88,15 +95,15 @@ public class WorldChannel {
 			return;
 		}
 		startTime = System.currentTimeMillis();
-		Scheduler.getInstance().runRepeatedly(new Runnable() {
-			@Override
-			public void run() {
-				for (GameMap map : mapFactory.getMaps())
-					map.respawnMobs();
-				for (GameMap map : mapFactory.getInstanceMaps())
-					map.respawnMobs();
-			}
-		}, 0, 15000);
+		final long mapIdleTime = GameServer.getInstance().getMapIdleTime();
+		if (mapIdleTime > 0) {
+			Scheduler.getInstance().runRepeatedly(new Runnable() {
+				@Override
+				public void run() {
+					mapFactory.evictIdleMaps(mapIdleTime);
+				}
+			}, mapIdleTime, 60000);
+		}
 	}
 
 	public byte getWorld() {
@@ -107,6 +114,10 @@ public class WorldChannel {
 		return channel;
 	}
 
+	public ClientListener<GameClient> getClientListener() {
+		return handler;
+	}
+
 	public long getTimeStarted() {
 		return startTime;
 	}
@@ -203,7 +214,15 @@ public class WorldChannel {
 		}
 		GameCharacter p = storage.getPlayer(playerId);
 		if (destHost != null && destPort != -1) {
-			p.prepareChannelChange();
+			boolean saved = p.prepareChannelChange();
+			if (channelChangeState.left.byteValue() != ChannelSynchronizationOps.CHANNEL_CASH_SHOP) {
+				try {
+					worldComm.sendPlayerHandoff(channelChangeState.left.byteValue(), playerId, p.writeHandoff(saved));
+				} catch (Throwable ex) {
+					//the other channel will just have to load from the database
+					LOG.log(Level.WARNING, "Could not hand off character " + playerId + " to channel " + channelChangeState.left, ex);
+				}
+			}
 			p.getClient().setMigratingHost();
 			p.getClient().getSession().send(CommonPackets.writeNewGameHost(destHost, destPort));
 		} else {
@@ -215,6 +234,70 @@ public class WorldChannel {
 		channelChangeData.put(Integer.valueOf(playerId), context);
 	}
 
+	/**
+	 * Keeps a character that is changing to this channel from another channel
+	 * until its client connects to this channel, so that the character does
+	 * not have to be loaded from the database again. If the client does not
+	 * connect soon enough, the handoff is thrown away, since the character
+	 * could have logged in somewhere else in the meantime.
+	 * @param playerId
+	 * @param handoff
+	 */
+	public void storePlayerHandoff(int playerId, final byte[] handoff) {
+		if (storage.getPlayer(playerId) != null) {
+			//the client connected before the handoff got here, so the
+			//character was already loaded from the database
+			handoffsDiscarded.incrementAndGet();
+			return;
+		}
+		final Integer key = Integer.valueOf(playerId);
+		handoffs.put(key, handoff);
+		Scheduler.getWheelTimer().runAfterDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (handoffs.remove(key, handoff))
+					handoffsDiscarded.incrementAndGet();
+			}
+		}, HANDOFF_TIMEOUT);
+	}
+
+	/**
+	 * Creates the character with the given id from the handoff that its last
+	 * channel sent us, if there is one.
+	 * @param c
+	 * @param playerId
+	 * @return the character, or null if it has to be loaded from the
+	 * database.
+	 */
+	public GameCharacter takePlayerHandoff(GameClient c, int playerId) {
+		byte[] handoff = handoffs.remove(Integer.valueOf(playerId));
+		if (handoff == null)
+			return null;
+
+		try {
+			GameCharacter p = GameCharacter.readHandoff(new LittleEndianByteArrayReader(handoff), c);
+			handoffsUsed.incrementAndGet();
+			return p;
+		} catch (Throwable ex) {
+			LOG.log(Level.WARNING, "Could not read handoff of character " + playerId + ". Loading from database instead.", ex);
+			handoffsDiscarded.incrementAndGet();
+			return null;
+		}
+	}
+
+	public long getHandoffsUsed() {
+		return handoffsUsed.get();
+	}
+
+	/**
+	 * Returns the amount of handoffs that were thrown away because they came
+	 * too late, expired, or could not be read.
+	 * @return
+	 */
+	public long getHandoffsDiscarded() {
+		return handoffsDiscarded.get();
+	}
+
 	public byte applyBuffsFromLastChannel(GameCharacter p) {
 		PlayerContinuation context = channelChangeData.remove(Integer.valueOf(p.getId()));
 		if (context == null)
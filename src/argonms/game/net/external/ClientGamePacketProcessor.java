@@ -270,7 +270,7 @@ public class ClientGamePacketProcessor extends ClientPacketProcessor<GameClient>
 				EnterHandler.handleShipDockedCheck(reader, gc);
 				break;
 			case ClientRecvOps.PLAYER_UPDATE:
-				gc.getPlayer().saveCharacter();
+				gc.getPlayer().requestSave();
 				break;
 			case ClientRecvOps.MAPLE_TV:
 				//no-op
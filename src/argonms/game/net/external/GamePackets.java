@@ -1275,8 +1275,18 @@ public final class GamePackets {
 		return lew.getBytes();
 	}
 
-	public static byte[] writeShowPlayer(GameCharacter p) {
-		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter();
+	/**
+	 * Writes the parts of a SHOW_PLAYER message that only change when the
+	 * player's job, look, buffs, or guild do: everything up to the spawn magic
+	 * values, and the player's job and avatar that follow them. The spawn
+	 * magic values are random for every message, so they are written by
+	 * {@link #writeShowPlayer(GameCharacter, byte[][])} instead. The result may
+	 * be reused for any number of calls to that method.
+	 * @param p
+	 * @return the part before the spawn magic values, and the part after them.
+	 */
+	public static byte[][] writeShowPlayerLook(GameCharacter p) {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(128);
 
 		lew.writeShort(ClientSendOps.SHOW_PLAYER);
 		lew.writeInt(p.getId());
@@ -1325,6 +1335,26 @@ public final class GamePackets {
 		lew.writeByte((byte) 0);
 		lew.writeInt(0);
 
+		byte[] beforeMagic = lew.getBytes();
+
+		lew = new LittleEndianByteArrayWriter(64);
+		lew.writeShort(p.getJob()); // 40 01?
+		CommonPackets.writeAvatar(lew, p, false);
+		return new byte[][] { beforeMagic, lew.getBytes() };
+	}
+
+	/**
+	 * Writes a SHOW_PLAYER message out of a look that was written by
+	 * {@link #writeShowPlayerLook(GameCharacter)}, along with fresh spawn
+	 * magic values and everything that may change without invalidating the
+	 * look, e.g. the player's position.
+	 * @param p
+	 * @param look
+	 * @return
+	 */
+	public static byte[] writeShowPlayer(GameCharacter p, byte[][] look) {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(look[0].length + look[1].length + 128);
+		lew.writeBytes(look[0]);
 		int CHAR_MAGIC_SPAWN = Rng.getGenerator().nextInt();
 		lew.writeInt(CHAR_MAGIC_SPAWN);
 		lew.writeShort((short) 0);
@@ -1360,8 +1390,7 @@ public final class GamePackets {
 		lew.writeShort((short) 0);
 		lew.writeInt(CHAR_MAGIC_SPAWN);
 		lew.writeInt(0);
-		lew.writeShort(p.getJob()); // 40 01?
-		CommonPackets.writeAvatar(lew, p, false);
+		lew.writeBytes(look[1]);
 		lew.writeInt(0);
 		lew.writeInt(p.getItemEffect());
 		lew.writeInt(p.getItemChair());
@@ -49,7 +49,10 @@ import java.util.Random;
 public final class EnterHandler {
 	public static void handlePlayerConnection(LittleEndianReader packet, GameClient gc) {
 		int cid = packet.readInt();
-		GameCharacter player = GameCharacter.loadPlayer(gc, cid);
+		WorldChannel cserv = GameServer.getChannel(gc.getChannel());
+		GameCharacter player = cserv.takePlayerHandoff(gc, cid);
+		if (player == null)
+			player = GameCharacter.loadPlayer(gc, cid);
 		if (player == null)
 			return;
 		gc.setPlayer(player);
@@ -65,8 +68,8 @@ public final class EnterHandler {
 		}
 		gc.updateState(RemoteClient.STATUS_INGAME);
 
-		WorldChannel cserv = GameServer.getChannel(gc.getChannel());
 		cserv.addPlayer(player);
+		GameServer.getInstance().getAutosaver().register(player);
 		gc.getSession().send(writeEnterMap(player));
 		//TODO: although shop server is not interchannel, we still have to keep
 		//track of the PlayerContext in shop so that non-expired buffs from
@@ -122,7 +125,7 @@ public final class EnterHandler {
 	}
 
 	private static byte[] writeEnterMap(GameCharacter p) {
-		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter();
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(CommonPackets.estimateCharDataLength(p) + 64);
 
 		lew.writeShort(ClientSendOps.CHANGE_MAP);
 		lew.writeInt(p.getClient().getChannel() - 1);
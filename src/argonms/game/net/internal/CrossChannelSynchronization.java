@@ -39,6 +39,8 @@ public interface CrossChannelSynchronization {
 
 	public void sendChannelChangeAcceptance(int playerId);
 
+	public void sendPlayerHandoff(int playerId, byte[] handoff);
+
 	public void callPlayerExistsCheck(BlockingQueue<Pair<Byte, Object>> resultConsumer, String name);
 
 	public void sendPrivateChat(byte type, int[] recipients, String name, String message);
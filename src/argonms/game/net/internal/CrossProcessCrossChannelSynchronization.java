@@ -165,6 +165,9 @@ public class CrossProcessCrossChannelSynchronization extends ChannelOrShopSynchr
 			case ChannelSynchronizationOps.WHO_COMMAND_RESPONSE:
 				receivedRetrieveConnectedPlayersListResult(packet);
 				break;
+			case ChannelSynchronizationOps.PLAYER_HANDOFF:
+				receivedPlayerHandoff(packet);
+				break;
 		}
 	}
 
@@ -231,6 +234,24 @@ public class CrossProcessCrossChannelSynchronization extends ChannelOrShopSynchr
 		handler.receivedChannelChangeRequest(targetCh, playerId, context);
 	}
 
+	@Override
+	public void sendPlayerHandoff(int playerId, byte[] handoff) {
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(12 + handoff.length);
+		writeSynchronizationPacketHeader(lew, ChannelSynchronizationOps.PLAYER_HANDOFF);
+		lew.writeInt(playerId);
+		lew.writeInt(handoff.length);
+		lew.writeBytes(handoff);
+
+		writeSynchronizationPacket(lew.getBytes());
+	}
+
+	private void receivedPlayerHandoff(LittleEndianReader packet) {
+		int playerId = packet.readInt();
+		byte[] handoff = packet.readBytes(packet.readInt());
+
+		handler.receivedPlayerHandoff(targetCh, playerId, handoff);
+	}
+
 	@Override
 	public void sendPrivateChat(byte type, int[] recipients, String name, String message) {
 		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(10 + recipients.length * 4 + name.length() + message.length());
@@ -262,6 +262,14 @@ public class CrossServerSynchronization {
 		self.performChannelChange(playerId);
 	}
 
+	public void sendPlayerHandoff(byte destCh, int playerId, byte[] handoff) {
+		allChannelsInWorld.getWhenSafe(Byte.valueOf(destCh)).sendPlayerHandoff(playerId, handoff);
+	}
+
+	/* package-private */ void receivedPlayerHandoff(byte srcCh, int playerId, byte[] handoff) {
+		self.storePlayerHandoff(playerId, handoff);
+	}
+
 	public byte scanChannelOfPlayer(String name, boolean ignoreHidden) {
 		BlockingQueue<Pair<Byte, Object>> queue = new LinkedBlockingQueue<Pair<Byte, Object>>();
 		lockRead();
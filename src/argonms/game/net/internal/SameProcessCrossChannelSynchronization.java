@@ -76,6 +76,15 @@ public class SameProcessCrossChannelSynchronization implements CrossChannelSynch
 		handler.receivedChannelChangeAcceptance(targetCh, playerId);
 	}
 
+	@Override
+	public void sendPlayerHandoff(int playerId, byte[] handoff) {
+		pipe.receivedPlayerHandoff(playerId, handoff);
+	}
+
+	private void receivedPlayerHandoff(int playerId, byte[] handoff) {
+		handler.receivedPlayerHandoff(targetCh, playerId, handoff);
+	}
+
 	@Override
 	public void callPlayerExistsCheck(BlockingQueue<Pair<Byte, Object>> resultConsumer, String name) {
 		resultConsumer.offer(new Pair<Byte, Object>(Byte.valueOf(targetCh), Byte.valueOf(pipe.returnPlayerExistsResult(name))));
@@ -20,6 +20,7 @@ package argonms.game.script.binding;
 
 import argonms.common.util.Scheduler;
 import argonms.game.GameServer;
+import argonms.game.field.GameMap;
 import argonms.game.script.EventManipulator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -69,7 +70,10 @@ public class ScriptEvent {
 	}
 
 	public Object getMap(int mapId) {
-		return Context.javaToJS(new ScriptField(GameServer.getChannel(channel).getMapFactory().getMap(mapId), globalScope), globalScope);
+		GameMap map = GameServer.getChannel(channel).getMapFactory().getMap(mapId);
+		//events can hold onto the map for as long as they want
+		map.pin();
+		return Context.javaToJS(new ScriptField(map, globalScope), globalScope);
 	}
 
 	public Object makeMap(int id) {
@@ -24,6 +24,7 @@ import argonms.common.ServerType;
 import argonms.common.loading.DataFileType;
 import argonms.common.loading.item.ItemDataLoader;
 import argonms.common.net.external.CheatTracker;
+import argonms.common.net.external.ClientEncryption;
 import argonms.common.net.external.ClientListener;
 import argonms.common.net.external.ClientListener.ClientFactory;
 import argonms.common.net.internal.RemoteCenterSession;
@@ -76,7 +77,7 @@ public class LoginServer implements LocalServer {
 	private boolean preloadAll;
 	private DataFileType wzType;
 	private String wzPath;
-	private boolean useNio;
+	private int ioThreads;
 	private int rankingPeriod;
 	private boolean centerConnected;
 
@@ -124,7 +125,8 @@ public class LoginServer implements LocalServer {
 			centerIp = prop.getProperty("argonms.login.center.ip");
 			centerPort = Integer.parseInt(prop.getProperty("argonms.login.center.port"));
 			authKey = prop.getProperty("argonms.login.auth.key");
-			useNio = Boolean.parseBoolean(prop.getProperty("argonms.login.usenio"));
+			ioThreads = Integer.parseInt(prop.getProperty("argonms.login.iothreads", "1"));
+			ClientEncryption.setUseJce(Boolean.parseBoolean(prop.getProperty("argonms.login.crypto.jce")));
 			rankingPeriod = Integer.parseInt(prop.getProperty("argonms.login.ranking.frequency"));
 
 			String temp = prop.getProperty("argonms.login.decoratedWorlds").replaceAll("\\s", "");
@@ -163,7 +165,7 @@ public class LoginServer implements LocalServer {
 			public LoginClient newInstance() {
 				return new LoginClient();
 			}
-		});
+		}, ioThreads);
 
 		boolean mcdb = (wzType == DataFileType.MCDB);
 		prop = new Properties();
@@ -171,7 +173,7 @@ public class LoginServer implements LocalServer {
 			FileReader fr = new FileReader(System.getProperty("argonms.db.config.file", "db.properties"));
 			prop.load(fr);
 			fr.close();
-			DatabaseManager.setProps(prop, mcdb, useNio);
+			DatabaseManager.setProps(prop, mcdb);
 		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "Could not load database properties!", ex);
 			System.exit(3);
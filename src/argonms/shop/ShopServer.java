@@ -21,11 +21,13 @@ package argonms.shop;
 import argonms.common.GlobalConstants;
 import argonms.common.LocalServer;
 import argonms.common.ServerType;
+import argonms.common.character.PlayerAutosaver;
 import argonms.common.character.ShopPlayerContinuation;
 import argonms.common.loading.DataFileType;
 import argonms.common.loading.item.ItemDataLoader;
 import argonms.common.loading.string.StringDataLoader;
 import argonms.common.net.external.CheatTracker;
+import argonms.common.net.external.ClientEncryption;
 import argonms.common.net.external.ClientListener;
 import argonms.common.net.external.ClientListener.ClientFactory;
 import argonms.common.net.external.CommonPackets;
@@ -34,6 +36,7 @@ import argonms.common.net.internal.RemoteCenterSession;
 import argonms.common.util.DatabaseManager;
 import argonms.common.util.DatabaseManager.DatabaseType;
 import argonms.common.util.Scheduler;
+import argonms.common.util.WriteBehindQueue;
 import argonms.common.util.collections.Pair;
 import argonms.shop.character.ShopCharacter;
 import argonms.shop.loading.cashshop.CashShopDataLoader;
@@ -84,7 +87,12 @@ public class ShopServer implements LocalServer {
 	private boolean preloadAll;
 	private DataFileType wzType;
 	private String wzPath;
-	private boolean useNio;
+	private int ioThreads;
+	private long autosaveInterval;
+	private int autosaveThreads;
+	private PlayerAutosaver autosaver;
+	private int writeBehindThreads;
+	private WriteBehindQueue writeBehind;
 	private boolean centerConnected;
 	private final PlayerLog<ShopCharacter> storage;
 	private final Map<Integer, ShopPlayerContinuation> enterServerData;
@@ -132,7 +140,11 @@ public class ShopServer implements LocalServer {
 			centerIp = prop.getProperty("argonms.shop.center.ip");
 			centerPort = Integer.parseInt(prop.getProperty("argonms.shop.center.port"));
 			authKey = prop.getProperty("argonms.shop.auth.key");
-			useNio = Boolean.parseBoolean(prop.getProperty("argonms.shop.usenio"));
+			ioThreads = Integer.parseInt(prop.getProperty("argonms.shop.iothreads", "1"));
+			ClientEncryption.setUseJce(Boolean.parseBoolean(prop.getProperty("argonms.shop.crypto.jce")));
+			autosaveInterval = Long.parseLong(prop.getProperty("argonms.shop.autosave", "300")) * 1000;
+			autosaveThreads = Integer.parseInt(prop.getProperty("argonms.shop.autosave.threads", "1"));
+			writeBehindThreads = Integer.parseInt(prop.getProperty("argonms.shop.writebehind.threads", "1"));
 
 			ticker = prop.getProperty("argonms.shop.tickermessage");
 
@@ -160,7 +172,7 @@ public class ShopServer implements LocalServer {
 			public ShopClient newInstance() {
 				return new ShopClient();
 			}
-		});
+		}, ioThreads);
 
 		boolean mcdb = (wzType == DataFileType.MCDB);
 		prop = new Properties();
@@ -168,7 +180,7 @@ public class ShopServer implements LocalServer {
 			FileReader fr = new FileReader(System.getProperty("argonms.db.config.file", "db.properties"));
 			prop.load(fr);
 			fr.close();
-			DatabaseManager.setProps(prop, mcdb, useNio);
+			DatabaseManager.setProps(prop, mcdb);
 		} catch (IOException ex) {
 			LOG.log(Level.SEVERE, "Could not load database properties!", ex);
 			System.exit(3);
@@ -227,6 +239,8 @@ public class ShopServer implements LocalServer {
 		}
 
 		Scheduler.enable(true, true);
+		autosaver = new PlayerAutosaver(autosaveInterval, autosaveThreads);
+		writeBehind = new WriteBehindQueue("shop", writeBehindThreads);
 
 		sci = new ShopCenterInterface(this);
 		RemoteCenterSession<ShopCenterInterface> session = RemoteCenterSession.connect(centerIp, centerPort, authKey, sci);
@@ -234,6 +248,7 @@ public class ShopServer implements LocalServer {
 			session.awaitClose();
 			LOG.log(Level.SEVERE, "Lost connection with center server!");
 		}
+		writeBehind.shutdown();
 		System.exit(4); //connection with center server lost before we were able to shutdown
 	}
 
@@ -386,6 +401,14 @@ public class ShopServer implements LocalServer {
 		return enterServerData.remove(Integer.valueOf(p.getId()));
 	}
 
+	public PlayerAutosaver getAutosaver() {
+		return autosaver;
+	}
+
+	public WriteBehindQueue getWriteBehind() {
+		return writeBehind;
+	}
+
 	public ShopCrossServerSynchronization getCrossServerInterface() {
 		return worldComm;
 	}
@@ -26,6 +26,7 @@ import argonms.common.character.inventory.InventoryTools;
 import argonms.common.character.inventory.Pet;
 import argonms.common.loading.item.ItemDataLoader;
 import argonms.common.util.DatabaseManager;
+import argonms.common.util.WriteBehindQueue;
 import argonms.common.util.collections.Pair;
 import argonms.shop.ShopServer;
 import argonms.shop.loading.cashshop.CashShopDataLoader;
@@ -42,6 +43,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -56,6 +58,14 @@ public class CashShopStaging implements IInventory {
 
 	private static final short MAX_SLOTS = 0xFF;
 
+	private static final Map<Long, CashPurchaseProperties> unsavedPurchaseProperties = new ConcurrentHashMap<Long, CashPurchaseProperties>();
+	private static final WriteBehindQueue.Write COMMIT_PURCHASE_PROPERTIES = new WriteBehindQueue.Write() {
+		@Override
+		public boolean commit() {
+			return commitPurchaseProperties();
+		}
+	};
+
 	public static class CashItemGiftNotification {
 		private final long uniqueId;
 		private final int itemId;
@@ -131,6 +141,7 @@ public class CashShopStaging implements IInventory {
 		}
 
 		public static CashPurchaseProperties loadFromDatabase(long uniqueId, int itemId, int defaultAccount) {
+			commitPurchaseProperties();
 			Connection con = null;
 			PreparedStatement ps = null;
 			ResultSet rs = null;
@@ -169,6 +180,7 @@ public class CashShopStaging implements IInventory {
 	}
 
 	public void loadPurchaseProperties(int accountId) {
+		commitPurchaseProperties();
 		lockWrite();
 		Connection con = null;
 		PreparedStatement ps = null;
@@ -365,25 +377,72 @@ public class CashShopStaging implements IInventory {
 		}
 	}
 
-	public static void attachCashPurchaseProperties(long uniqueId, CashPurchaseProperties props) {
-		Connection con = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
-		try {
-			con = DatabaseManager.getConnection(DatabaseManager.DatabaseType.STATE);
-			ps = con.prepareStatement("UPDATE `cashshoppurchases` SET `purchaseracctid` = ?, `gifterchrname` = ?, `serialnumber` = ? WHERE `uniqueid` = ?");
-			ps.setInt(1, props.purchaserAccountId);
-			ps.setString(2, props.gifterName);
-			ps.setInt(3, props.getSerialNumber());
-			ps.setLong(4, uniqueId);
-			ps.executeUpdate();
-		} catch (SQLException ex) {
-			LOG.log(Level.WARNING, "Could not attach cash shop purchase properties to database", ex);
-		} finally {
-			DatabaseManager.cleanup(DatabaseManager.DatabaseType.STATE, rs, ps, con);
+	/**
+	 * Writes every purchase properties that were attached but not yet written
+	 * in one transaction. Anything that reads purchase properties from the
+	 * database must call this first.
+	 * @return false if the properties could not be written.
+	 */
+	private static boolean commitPurchaseProperties() {
+		synchronized (unsavedPurchaseProperties) {
+			if (unsavedPurchaseProperties.isEmpty())
+				return true;
+
+			Map<Long, CashPurchaseProperties> toSave = new HashMap<Long, CashPurchaseProperties>(unsavedPurchaseProperties);
+			Connection con = null;
+			PreparedStatement ps = null;
+			try {
+				con = DatabaseManager.getConnection(DatabaseManager.DatabaseType.STATE);
+				con.setAutoCommit(false);
+				ps = con.prepareStatement("UPDATE `cashshoppurchases` SET `purchaseracctid` = ?, `gifterchrname` = ?, `serialnumber` = ? WHERE `uniqueid` = ?");
+				for (Map.Entry<Long, CashPurchaseProperties> entry : toSave.entrySet()) {
+					CashPurchaseProperties props = entry.getValue();
+					ps.setInt(1, props.purchaserAccountId);
+					ps.setString(2, props.gifterName);
+					ps.setInt(3, props.getSerialNumber());
+					ps.setLong(4, entry.getKey().longValue());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				con.commit();
+				for (Map.Entry<Long, CashPurchaseProperties> entry : toSave.entrySet())
+					unsavedPurchaseProperties.remove(entry.getKey(), entry.getValue());
+				return true;
+			} catch (SQLException ex) {
+				LOG.log(Level.WARNING, "Could not attach cash shop purchase properties to database", ex);
+				if (con != null) {
+					try {
+						con.rollback();
+					} catch (SQLException ex2) {
+						LOG.log(Level.WARNING, "Error rolling back cash shop purchase properties.", ex2);
+					}
+				}
+				return false;
+			} finally {
+				if (con != null) {
+					try {
+						con.setAutoCommit(true);
+					} catch (SQLException ex) {
+						LOG.log(Level.WARNING, "Could not reset Connection config after attaching cash shop purchase properties", ex);
+					}
+				}
+				DatabaseManager.cleanup(DatabaseManager.DatabaseType.STATE, null, ps, con);
+			}
 		}
 	}
 
+	/**
+	 * Queues the purchase properties of a newly created item to be written to
+	 * the database on one of the shop server's write-behind threads. Items
+	 * that are bought together are written in the same transaction.
+	 * @param uniqueId
+	 * @param props
+	 */
+	public static void attachCashPurchaseProperties(long uniqueId, CashPurchaseProperties props) {
+		unsavedPurchaseProperties.put(Long.valueOf(uniqueId), props);
+		ShopServer.getInstance().getWriteBehind().submit(unsavedPurchaseProperties, COMMIT_PURCHASE_PROPERTIES);
+	}
+
 	public static Pair<InventorySlot, CashPurchaseProperties> createItem(Commodity c, int serialNumber, int senderAcctId, String senderName) {
 		InventorySlot item = InventoryTools.makeItemWithId(c.itemDataId);
 		if (!InventoryTools.isPet(c.itemDataId))
@@ -229,6 +229,7 @@ public class ShopCharacter extends LoggedInPlayer {
 	}
 
 	private void prepareExitServer() {
+		ShopServer.getInstance().getAutosaver().unregister(this);
 		itemExpireTask.cancel();
 		for (Cooldown cooling : cooldowns.values())
 			cooling.cancel();
@@ -253,7 +254,9 @@ public class ShopCharacter extends LoggedInPlayer {
 		prepareExitServer();
 	}
 
-	public void saveCharacter() {
+	@Override
+	protected boolean commitCharacter() {
+		boolean saved = false;
 		int prevTransactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
 		boolean prevAutoCommit = true;
 		Connection con = null;
@@ -269,6 +272,7 @@ public class ShopCharacter extends LoggedInPlayer {
 			updateDbCooldowns(con);
 			updateDbWishList(con);
 			con.commit();
+			saved = true;
 		} catch (Throwable ex) {
 			LOG.log(Level.WARNING, "Could not save character " + getDataId() + ". Rolling back all changes...", ex);
 			if (con != null) {
@@ -289,12 +293,20 @@ public class ShopCharacter extends LoggedInPlayer {
 			}
 			DatabaseManager.cleanup(DatabaseType.STATE, null, null, con);
 		}
+		return saved;
+	}
+
+	/**
+	 * Saves this character on one of the shop server's write-behind threads.
+	 */
+	public void requestSave() {
+		requestSave(ShopServer.getInstance().getWriteBehind());
 	}
 
 	private void updateDbAccount(Connection con) throws SQLException {
 		PreparedStatement ps = null;
 		try {
-			ps = con.prepareStatement("UPDATE `accounts` SET `characters` = ?, `paypalnx` = ?, `maplepoints` = ?, `gamecardnx` = ? WHERE `id` = ?");
+			ps = con.prepareStatement("UPDATE `accounts` SET `characters` = ?, `paypalnx` = ?, `maplepoints` = ?, `gamecardnx` = ?, `savecount` = `savecount` + 1 WHERE `id` = ?");
 			ps.setByte(1, maxCharacters);
 			ps.setInt(2, getCashShopCurrency(PAYPAL_NX));
 			ps.setInt(3, getCashShopCurrency(MAPLE_POINTS));
@@ -488,52 +500,41 @@ public class ShopCharacter extends LoggedInPlayer {
 			ps.close();
 			p.buddies = new ShopBuddyList(maxBuddies, buddies);
 
-			ps = con.prepareStatement("SELECT `partyid` FROM `parties` WHERE `characterid` = ?");
+			ps = con.prepareStatement("SELECT (SELECT `partyid` FROM `parties` WHERE `characterid` = ? LIMIT 1),"
+					+ "(SELECT `g`.`id` FROM `guilds` `g` LEFT JOIN `guildmembers` `m` ON `g`.`id` = `m`.`guildid` WHERE `m`.`characterid` = ? LIMIT 1)");
 			ps.setInt(1, id);
+			ps.setInt(2, id);
 			rs = ps.executeQuery();
-			if (rs.next())
-				p.partyId = rs.getInt(1);
+			rs.next();
+			p.partyId = rs.getInt(1);
+			p.guildId = rs.getInt(2);
 			rs.close();
 			ps.close();
 
-			ps = con.prepareStatement("SELECT `g`.`id` FROM `guilds` `g` LEFT JOIN `guildmembers` `m` ON `g`.`id` = `m`.`guildid` WHERE `m`.`characterid` = ?");
+			ps = con.prepareStatement("SELECT `q`.`id`,`q`.`questid`,`q`.`state`,`q`.`completed`,`m`.`mobid`,`m`.`count` "
+					+ "FROM `queststatuses` `q` LEFT JOIN `questmobprogress` `m` ON `m`.`queststatusid` = `q`.`id` "
+					+ "WHERE `q`.`characterid` = ? ORDER BY `q`.`id`,`m`.`id`");
 			ps.setInt(1, id);
 			rs = ps.executeQuery();
-			if (rs.next())
-				p.guildId = rs.getInt(1);
+			boolean more = rs.next();
+			while (more) {
+				int questEntryId = rs.getInt(1);
+				short questId = rs.getShort(2);
+				byte state = rs.getByte(3);
+				long completionTime = rs.getLong(4);
+				Map<Integer, AtomicInteger> mobProgress = new LinkedHashMap<Integer, AtomicInteger>();
+				do {
+					int mobId = rs.getInt(5);
+					if (!rs.wasNull())
+						mobProgress.put(Integer.valueOf(mobId), new AtomicInteger(rs.getShort(6)));
+				} while ((more = rs.next()) && rs.getInt(1) == questEntryId);
+				QuestEntry status = new QuestEntry(state, mobProgress);
+				status.setCompletionTime(completionTime);
+				p.questStatuses.put(Short.valueOf(questId), status);
+			}
 			rs.close();
 			ps.close();
 
-			ps = con.prepareStatement("SELECT `id`,`questid`,`state`,`completed` "
-					+ "FROM `queststatuses` WHERE `characterid` = ?");
-			ps.setInt(1, id);
-			rs = ps.executeQuery();
-			PreparedStatement mps = null;
-			ResultSet mrs;
-			try {
-				mps = con.prepareStatement("SELECT `mobid`,`count` "
-						+ "FROM `questmobprogress` WHERE `queststatusid` = ?");
-				while (rs.next()) {
-					int questEntryId = rs.getInt(1);
-					short questId = rs.getShort(2);
-					Map<Integer, AtomicInteger> mobProgress = new LinkedHashMap<Integer, AtomicInteger>();
-					mps.setInt(1, questEntryId);
-					mrs = null;
-					try {
-						mrs = mps.executeQuery();
-						while (mrs.next())
-							mobProgress.put(Integer.valueOf(mrs.getInt(1)), new AtomicInteger(mrs.getShort(2)));
-					} finally {
-						DatabaseManager.cleanup(DatabaseType.STATE, mrs, null, null);
-					}
-					QuestEntry status = new QuestEntry(rs.getByte(3), mobProgress);
-					status.setCompletionTime(rs.getLong(4));
-					p.questStatuses.put(Short.valueOf(questId), status);
-				}
-			} finally {
-				DatabaseManager.cleanup(DatabaseType.STATE, null, mps, null);
-			}
-
 			ps = con.prepareStatement("SELECT `sn` FROM `wishlists` WHERE `characterid` = ?");
 			ps.setInt(1, id);
 			rs = ps.executeQuery();
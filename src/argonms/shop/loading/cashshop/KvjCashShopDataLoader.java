@@ -18,7 +18,7 @@
 
 package argonms.shop.loading.cashshop;
 
-import argonms.common.util.input.LittleEndianByteArrayReader;
+import argonms.common.util.input.LittleEndianByteBufferReader;
 import argonms.common.util.input.LittleEndianReader;
 import java.io.File;
 import java.io.IOException;
@@ -39,11 +39,11 @@ public class KvjCashShopDataLoader extends CashShopDataLoader {
 		String dir = dataPath + "Etc.wz" + File.separatorChar;
 		LittleEndianReader reader;
 		try {
-			reader = new LittleEndianByteArrayReader(new File(dir + "Commodity.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "Commodity.img.kvj"));
 			for (int serialNumber = reader.readInt(); serialNumber != -1; serialNumber = reader.readInt())
 				commodities.put(Integer.valueOf(serialNumber), new Commodity(reader.readInt(), reader.readShort(), reader.readInt(), reader.readByte(), reader.readByte(), reader.readBool()));
 
-			reader = new LittleEndianByteArrayReader(new File(dir + "CashPackage.img.kvj"));
+			reader = LittleEndianByteBufferReader.open(new File(dir + "CashPackage.img.kvj"));
 			for (int packageNumber = reader.readInt(); packageNumber != -1; packageNumber = reader.readInt()) {
 				int[] serialNumbers = new int[reader.readByte()];
 				for (int i = 0; i < serialNumbers.length; i++)
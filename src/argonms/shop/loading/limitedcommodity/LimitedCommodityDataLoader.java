@@ -20,12 +20,16 @@ package argonms.shop.loading.limitedcommodity;
 
 import argonms.common.loading.DataFileType;
 import argonms.common.util.DatabaseManager;
+import argonms.common.util.WriteBehindQueue;
+import argonms.shop.ShopServer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,9 +43,18 @@ public abstract class LimitedCommodityDataLoader {
 	private static LimitedCommodityDataLoader instance;
 
 	protected final Map<Integer, LimitedCommodity> limitedCommodities;
+	private final ConcurrentMap<Integer, Integer> unsavedUsed;
+	private final WriteBehindQueue.Write commitUnsavedUsed;
 
 	protected LimitedCommodityDataLoader() {
 		limitedCommodities = new HashMap<Integer, LimitedCommodity>();
+		unsavedUsed = new ConcurrentHashMap<Integer, Integer>();
+		commitUnsavedUsed = new WriteBehindQueue.Write() {
+			@Override
+			public boolean commit() {
+				return commitUnsavedUsed();
+			}
+		};
 	}
 
 	protected int getUsed(int itemId) {
@@ -63,23 +76,76 @@ public abstract class LimitedCommodityDataLoader {
 		return 0;
 	}
 
-	public void commitUsed(int itemId, int used) {
-		Connection con = null;
-		PreparedStatement ps = null;
-		try {
-			con = DatabaseManager.getConnection(DatabaseManager.DatabaseType.STATE);
-			ps = con.prepareStatement("INSERT INTO `cashshoplimitedcommodities` (`itemid`,`used`) VALUES (?,?) ON DUPLICATE KEY UPDATE `used` = ?");
-			ps.setInt(1, itemId);
-			ps.setInt(2, used);
-			ps.setInt(3, used);
-			ps.executeUpdate();
-		} catch (SQLException e) {
-			LOG.log(Level.WARNING, "Could not update remainder of limited commodity in database", e);
-		} finally {
-			DatabaseManager.cleanup(DatabaseManager.DatabaseType.STATE, null, ps, con);
+	/**
+	 * Writes the latest used count of every limited commodity that was sold
+	 * since the last time this was called in one transaction.
+	 * @return false if the counts could not be written.
+	 */
+	private boolean commitUnsavedUsed() {
+		synchronized (unsavedUsed) {
+			if (unsavedUsed.isEmpty())
+				return true;
+
+			Map<Integer, Integer> toSave = new HashMap<Integer, Integer>(unsavedUsed);
+			Connection con = null;
+			PreparedStatement ps = null;
+			try {
+				con = DatabaseManager.getConnection(DatabaseManager.DatabaseType.STATE);
+				con.setAutoCommit(false);
+				ps = con.prepareStatement("INSERT INTO `cashshoplimitedcommodities` (`itemid`,`used`) VALUES (?,?) ON DUPLICATE KEY UPDATE `used` = ?");
+				for (Map.Entry<Integer, Integer> entry : toSave.entrySet()) {
+					ps.setInt(1, entry.getKey().intValue());
+					ps.setInt(2, entry.getValue().intValue());
+					ps.setInt(3, entry.getValue().intValue());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				con.commit();
+				for (Map.Entry<Integer, Integer> entry : toSave.entrySet())
+					unsavedUsed.remove(entry.getKey(), entry.getValue());
+				return true;
+			} catch (SQLException e) {
+				LOG.log(Level.WARNING, "Could not update remainder of limited commodities in database", e);
+				if (con != null) {
+					try {
+						con.rollback();
+					} catch (SQLException ex2) {
+						LOG.log(Level.WARNING, "Error rolling back limited commodities.", ex2);
+					}
+				}
+				return false;
+			} finally {
+				if (con != null) {
+					try {
+						con.setAutoCommit(true);
+					} catch (SQLException ex) {
+						LOG.log(Level.WARNING, "Could not reset Connection config after updating limited commodities", ex);
+					}
+				}
+				DatabaseManager.cleanup(DatabaseManager.DatabaseType.STATE, null, ps, con);
+			}
 		}
 	}
 
+	/**
+	 * Queues the used count of a limited commodity to be written on one of
+	 * the shop server's write-behind threads. If the commodity is sold again
+	 * before the count is written, only the latest count is written.
+	 * @param itemId
+	 * @param used
+	 */
+	public void commitUsed(int itemId, int used) {
+		Integer key = Integer.valueOf(itemId);
+		Integer value = Integer.valueOf(used);
+		//two purchases may race to get here, so never replace a later count
+		//with an earlier one
+		Integer old;
+		do {
+			old = unsavedUsed.putIfAbsent(key, value);
+		} while (old != null && old.intValue() < used && !unsavedUsed.replace(key, old, value));
+		ShopServer.getInstance().getWriteBehind().submit(this, commitUnsavedUsed);
+	}
+
 	public abstract boolean loadAll();
 
 	public LimitedCommodity getLimitedCommodity(int itemId) {
@@ -63,7 +63,7 @@ public class ClientShopPacketProcessor extends ClientPacketProcessor<ShopClient>
 				CashShopHandler.handleRedeemCoupon(reader, sc);
 				break;
 			case ClientRecvOps.PLAYER_UPDATE:
-				sc.getPlayer().saveCharacter();
+				sc.getPlayer().requestSave();
 				break;
 			default:
 				LOG.log(Level.FINE, "Received unhandled client packet {0} bytes long:\n{1}", new Object[] { reader.available() + 2, reader });
@@ -762,8 +762,11 @@ public class CashShopHandler {
 				break;
 			default:
 				LOG.log(Level.INFO, "Received unhandled cash shop action packet:\n{0}", packet);
-				break;
+				return;
 		}
+		//currency was spent or items were moved, so don't leave it all to
+		//the autosave
+		p.requestSave();
 	}
 
 	public static void handleRedeemCoupon(LittleEndianReader packet, ShopClient sc) {
@@ -805,5 +808,6 @@ public class CashShopHandler {
 			sc.getPlayer().gainMesos(c.getMesosReward());
 			sc.getSession().send(CashShopPackets.writeCouponRewards(items, c.getMaplePointsReward(), c.getMesosReward()));
 		}
+		sc.getPlayer().requestSave();
 	}
 }
@@ -66,6 +66,7 @@ public final class EnterShopHandler {
 			sc.getSession().close(player.getName() + " tried to illegally enter cash shop");
 			return;
 		}
+		sserv.getAutosaver().register(player);
 
 		sc.setChannel(context.getOriginChannel());
 		sserv.getCrossServerInterface().sendBuddyLogInNotifications(player);
@@ -125,7 +126,8 @@ public final class EnterShopHandler {
 			Map<Integer, Map<CommodityMod, Object>> moddedCommodities,
 			int[] bestItems,
 			Map<Integer, LimitedCommodity> limitedCommodities) {
-		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter();
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(CommonPackets.estimateCharDataLength(p)
+				+ blockedSerials.size() * 4 + moddedCommodities.size() * 16 + ADDITIONAL_CS_BYTES.length + 1024);
 		lew.writeShort(ClientSendOps.CS_OPEN);
 		CommonPackets.writeCharData(lew, p);
 		lew.writeBool(true);
@@ -226,7 +228,7 @@ public final class EnterShopHandler {
 	);
 
 	private static byte[] writeEnterMts(ShopCharacter p) {
-		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter();
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter(CommonPackets.estimateCharDataLength(p) + 64);
 		lew.writeShort(ClientSendOps.MTS_OPEN);
 		CommonPackets.writeCharData(lew, p);
 		lew.writeLengthPrefixedString(p.getClient().getAccountName());
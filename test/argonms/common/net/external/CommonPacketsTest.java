@@ -0,0 +1,137 @@
+/*
+ * ArgonMS MapleStory server emulator written in Java
+ * Copyright (C) 2011-2013  GoldenKevin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package argonms.common.net.external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import argonms.common.character.BuddyListEntry;
+import argonms.common.character.Cooldown;
+import argonms.common.character.LoggedInPlayer;
+import argonms.common.character.QuestEntry;
+import argonms.common.character.ReadableBuddyList;
+import argonms.common.character.SkillEntry;
+import argonms.common.character.inventory.Inventory.InventoryType;
+import argonms.common.util.output.LittleEndianByteArrayWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Checks CommonPackets against a character that was just loaded, i.e. one
+ * that only has the inventories that are read from the characters table.
+ */
+public class CommonPacketsTest {
+	/**
+	 * A character whose stats row is all zeroes, except for the name and the
+	 * inventory sizes.
+	 */
+	private static class FreshCharacter extends LoggedInPlayer {
+		public FreshCharacter() throws SQLException {
+			loadPlayerStats((ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					Class<?> type = method.getReturnType();
+					if (type == String.class)
+						return "Tester";
+					if (type == short.class)
+						return Short.valueOf((short) 24);
+					if (type == byte.class)
+						return Byte.valueOf((byte) 0);
+					if (type == int.class)
+						return Integer.valueOf(0);
+					return null;
+				}
+			}), 1);
+		}
+
+		@Override
+		public RemoteClient getClient() {
+			return null;
+		}
+
+		@Override
+		protected boolean commitCharacter() {
+			return true;
+		}
+
+		@Override
+		public ReadableBuddyList getBuddyList() {
+			return new ReadableBuddyList() {
+				@Override
+				public Collection<BuddyListEntry> getBuddies() {
+					return Collections.emptyList();
+				}
+
+				@Override
+				public short getCapacity() {
+					return 20;
+				}
+			};
+		}
+
+		@Override
+		public int getMesos() {
+			return 0;
+		}
+
+		@Override
+		public Map<Integer, SkillEntry> getSkillEntries() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Map<Integer, Cooldown> getCooldowns() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Map<Short, QuestEntry> getAllQuests() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public void checkForExpiredItems() {
+		}
+	}
+
+	@Test
+	public void estimateCharDataLengthSkipsInventoriesThatWereNotLoaded() throws SQLException {
+		LoggedInPlayer p = new FreshCharacter();
+		assertNull(p.getInventory(InventoryType.STORAGE));
+		assertNull(p.getInventory(InventoryType.CASH_SHOP));
+		assertEquals(0, p.getItemCount());
+		assertTrue(CommonPackets.estimateCharDataLength(p) > 0);
+	}
+
+	@Test
+	public void estimateCharDataLengthCoversCharDataOfEmptyCharacter() throws SQLException {
+		LoggedInPlayer p = new FreshCharacter();
+		LittleEndianByteArrayWriter lew = new LittleEndianByteArrayWriter();
+		CommonPackets.writeCharData(lew, p);
+		assertTrue(CommonPackets.estimateCharDataLength(p) >= lew.length());
+	}
+}